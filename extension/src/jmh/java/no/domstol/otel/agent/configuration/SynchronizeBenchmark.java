@@ -0,0 +1,195 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.sdk.autoconfigure.spi.ConfigProperties;
+import io.opentelemetry.sdk.autoconfigure.spi.internal.DefaultConfigProperties;
+import no.domstol.otel.trace.samplers.SamplerMetrics;
+
+/**
+ * Measures a synchronization with the configuration service when the
+ * configuration has not changed, which is what nearly every cycle is, using
+ * each of the HTTP clients. The service is a stub on the loopback interface
+ * answering at once, keeping the connections open and writing each response
+ * in one go, so what is measured is the cost of the client itself:
+ * <code>two</code> requests, asking for the configuration and posting the
+ * metrics, or <code>one</code>, when the service supports synchronizing in
+ * one request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynchronizeBenchmark {
+
+    private static final String ETAG = "\"5d41402abc4b2a76\"";
+    private static final String CONFIGURATION = "{\"serviceName\":\"svc\",\"sampler\":\"always_on\","
+            + "\"timestamp\":1000}";
+
+    @Param({ "apache", "jdk" })
+    String client;
+
+    @Param({ "two", "one" })
+    String requests;
+
+    private ServerSocket server;
+    private ExecutorService executor;
+    private ConfigProperties config;
+    private AgentConfigurationServiceClient serviceClient;
+    private AgentConfiguration configuration;
+    private SamplerMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool();
+        executor.execute(this::accept);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("otel.configuration.service.url", "http://localhost:" + server.getLocalPort());
+        properties.put("otel.configuration.service.client", client);
+        config = DefaultConfigProperties.createFromMap(properties);
+        serviceClient = new AgentConfigurationServiceClient();
+        metrics = new SamplerMetrics();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        // reads the configuration and its tag, so that it is not modified from now on
+        configuration = serviceClient.synchronize(local, config, metrics);
+        if (configuration == local) {
+            throw new IllegalStateException("The configuration could not be read");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public AgentConfiguration synchronize() {
+        return serviceClient.synchronize(configuration, config, metrics);
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Answers the requests of a connection, ignoring any request to upgrade
+     * to HTTP/2, until the client closes it
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null && !requestLine.isEmpty()) {
+                int contentLength = 0;
+                String ifNoneMatch = null;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    String name = header.substring(0, header.indexOf(':')).trim();
+                    String value = header.substring(header.indexOf(':') + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Integer.parseInt(value);
+                    } else if (name.equalsIgnoreCase("If-None-Match")) {
+                        ifNoneMatch = value;
+                    }
+                }
+                in.readNBytes(contentLength);
+                out.write(respond(requestLine.split(" ")[1], ifNoneMatch));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private byte[] respond(String path, String ifNoneMatch) {
+        StringBuilder response = new StringBuilder();
+        if (path.startsWith("/metrics")) {
+            return "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        }
+        if (ETAG.equals(ifNoneMatch)) {
+            response.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            response.append("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n");
+            response.append("Content-Length: ").append(CONFIGURATION.length()).append("\r\n");
+        }
+        response.append("ETag: ").append(ETAG).append("\r\n");
+        if ("one".equals(requests)) {
+            response.append("Link: </agent-configuration/svc/sync>; rel=\"sync\"\r\n");
+        }
+        response.append("\r\n");
+        if (!ETAG.equals(ifNoneMatch)) {
+            response.append(CONFIGURATION);
+        }
+        return response.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII);
+    }
+
+}
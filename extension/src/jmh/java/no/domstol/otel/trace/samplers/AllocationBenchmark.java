@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import no.domstol.otel.agent.configuration.CompiledRule;
+import no.domstol.otel.agent.configuration.TypedCondition;
+
+/**
+ * Runs {@link DynamicSamplerWrapper#shouldSample} for spans decided by the
+ * filtering rules. This is run with the GC profiler by the
+ * <code>jmhAllocationCheck</code> task, which fails if any of these allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 2, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+    private static final AttributeKey<Long> HTTP_STATUS_CODE = AttributeKey.longKey("http.status_code");
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    /** The rule deciding the span, and whether decisions are cached or timed */
+    @Param({ "include", "exclude", "regex", "typed", "cached", "timed" })
+    String scenario;
+
+    private DynamicSamplerWrapper wrapper;
+    private Attributes attributes;
+
+    @Setup
+    public void setUp() {
+        Map<String, List<CompiledRule>> rules = RuleEvaluationBenchmark.createRules(10);
+        rules.put("exclude", List.of(new CompiledRule(Map.of(HTTP_TARGET, Pattern.compile("^/health/.+"))),
+                new CompiledRule(Map.of(HTTP_TARGET, Pattern.compile("/cases/\\d{4}-\\d+/documents"))),
+                new CompiledRule(null, null, Map.of(HTTP_TARGET, Pattern.compile("^/api/")),
+                        List.of(TypedCondition.parse("http.status_code:long", "range 500..599")), Double.NaN)));
+        wrapper = new DynamicSamplerWrapper(Sampler.alwaysOn(), rules, "cached".equals(scenario) ? 1024 : 0,
+                "timed".equals(scenario) ? 1 : 0);
+        switch (scenario) {
+        case "include":
+            attributes = Attributes.of(HTTP_TARGET, "/api/v2/resource7/42", HTTP_METHOD, "POST");
+            break;
+        case "typed":
+            attributes = Attributes.of(HTTP_TARGET, "/api/v1/search", HTTP_METHOD, "GET", HTTP_STATUS_CODE, 503L);
+            break;
+        case "regex":
+            attributes = Attributes.of(HTTP_TARGET, "/api/v1/cases/2024-0042/documents", HTTP_METHOD, "GET");
+            break;
+        default:
+            attributes = Attributes.of(HTTP_TARGET, "/health/ready", HTTP_METHOD, "GET");
+            break;
+        }
+    }
+
+    @Benchmark
+    public SamplingResult shouldSample() {
+        return wrapper.shouldSample(Context.root(), TRACE_ID, "GET", SpanKind.SERVER, attributes,
+                Collections.emptyList());
+    }
+
+}
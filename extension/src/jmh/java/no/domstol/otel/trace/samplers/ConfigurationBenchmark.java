@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.domstol.otel.agent.configuration.AgentConfiguration;
+import no.domstol.otel.agent.configuration.CompiledRule;
+
+/**
+ * Measures the work done when a configuration is loaded: reading the YAML
+ * file, compiling the rules into patterns using
+ * {@link AgentConfiguration#getRules()} and compiling these into a
+ * {@link RuleProgram}. The compiled rules are cached, so <code>getRules</code>
+ * and <code>reload</code>, reading the unchanged file again, measure the cost
+ * of finding them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    int groups;
+
+    private Path file;
+    private AgentConfiguration configuration;
+    private Map<String, List<CompiledRule>> rules;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append("serviceName: da-otel-agent-service\n");
+        yaml.append("sampler: parentbased_traceidratio\n");
+        yaml.append("sampleRatio: 0.1\n");
+        yaml.append("rules:\n");
+        yaml.append("  - exclude:\n");
+        for (int i = 0; i < groups; i++) {
+            yaml.append("    - http.target: \"/api/v1/resource").append(i).append("/.+\"\n");
+            yaml.append("      http.method: \"GET\"\n");
+        }
+        yaml.append("  - include:\n");
+        for (int i = 0; i < groups; i++) {
+            yaml.append("    - http.target: \"/api/v2/resource").append(i).append("/.+\"\n");
+            yaml.append("      http.method: \"POST\"\n");
+        }
+        file = Files.createTempFile("otel-configuration", ".yaml");
+        Files.write(file, yaml.toString().getBytes(StandardCharsets.UTF_8));
+        configuration = DynamicSamplerProvider.readConfigurationFile(file);
+        rules = configuration.getRules();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public AgentConfiguration loadYaml() throws IOException {
+        return DynamicSamplerProvider.readConfigurationFile(file);
+    }
+
+    @Benchmark
+    public Map<String, List<CompiledRule>> getRules() {
+        return configuration.getRules();
+    }
+
+    @Benchmark
+    public Map<String, List<CompiledRule>> reload() throws IOException {
+        return DynamicSamplerProvider.readConfigurationFile(file).getRules();
+    }
+
+    @Benchmark
+    public RuleProgram compileProgram() {
+        return RuleProgram.compile(rules);
+    }
+
+}
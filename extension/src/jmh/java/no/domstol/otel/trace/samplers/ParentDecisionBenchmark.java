@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+import no.domstol.otel.trace.samplers.DynamicSamplerWrapper.RuleScope;
+
+/**
+ * Measures {@link DynamicSamplerWrapper#shouldSample} for the spans of a
+ * typical trace through a service, with each {@link RuleScope}: a request
+ * received without a parent and one from another service, each followed by
+ * a call to a database, one to another service and a few internal spans. The
+ * rules are the 100 groups of
+ * {@link RuleEvaluationBenchmark#createRules(int, boolean)}, matched by none
+ * of the spans, which then fall through to a
+ * <code>parentbased_traceidratio</code> sampler.
+ *
+ * @since 1.8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ParentDecisionBenchmark {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+    private static final AttributeKey<String> DB_SYSTEM = AttributeKey.stringKey("db.system");
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final int SPANS = 12;
+
+    @Param({ "all", "root", "entry" })
+    RuleScope scope;
+
+    private DynamicSamplerWrapper wrapper;
+    private final Context[] parents = new Context[SPANS];
+    private final SpanKind[] kinds = new SpanKind[SPANS];
+    private final Attributes[] attributes = new Attributes[SPANS];
+
+    @Setup
+    public void setUp() {
+        wrapper = new DynamicSamplerWrapper(Sampler.parentBased(Sampler.traceIdRatioBased(0.1)),
+                RuleEvaluationBenchmark.createRules(100, false), 0, 0, RegexEngine.java, scope,
+                List.of(SpanKind.SERVER, SpanKind.CONSUMER));
+        Context local = Context.root().with(Span.wrap(SpanContext.create(TRACE_ID, "00f067aa0ba902b7",
+                TraceFlags.getSampled(), TraceState.getDefault())));
+        Context remote = Context.root().with(Span.wrap(SpanContext.createFromRemoteParent(TRACE_ID,
+                "53995c3f42cd8ad8", TraceFlags.getSampled(), TraceState.getDefault())));
+        Attributes request = Attributes.of(HTTP_TARGET, "/api/v1/cases/2024-0042/documents", HTTP_METHOD, "GET");
+        Attributes query = Attributes.of(DB_SYSTEM, "postgresql");
+        Attributes call = Attributes.of(HTTP_TARGET, "/api/v1/parties/17", HTTP_METHOD, "GET");
+        for (int i = 0; i < SPANS; i += SPANS / 2) {
+            parents[i] = i == 0 ? Context.root() : remote;
+            kinds[i] = SpanKind.SERVER;
+            attributes[i] = request;
+            parents[i + 1] = local;
+            kinds[i + 1] = SpanKind.CLIENT;
+            attributes[i + 1] = query;
+            parents[i + 2] = local;
+            kinds[i + 2] = SpanKind.CLIENT;
+            attributes[i + 2] = call;
+            for (int j = i + 3; j < i + SPANS / 2; j++) {
+                parents[j] = local;
+                kinds[j] = SpanKind.INTERNAL;
+                attributes[j] = Attributes.empty();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SPANS)
+    public void shouldSample(Blackhole blackhole) {
+        for (int i = 0; i < SPANS; i++) {
+            blackhole.consume(wrapper.shouldSample(parents[i], TRACE_ID, "span", kinds[i], attributes[i],
+                    Collections.emptyList()));
+        }
+    }
+
+}
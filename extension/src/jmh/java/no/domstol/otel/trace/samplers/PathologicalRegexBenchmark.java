@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+
+/**
+ * Compares the regular expression engines on a rule that backtracks
+ * catastrophically in Java when the value almost matches, and on a typical
+ * rule, for values of increasing length. The time taken by Java grows much
+ * faster than the length for the nested rule, while RE2/J stays linear, but
+ * at a higher cost for the typical rule.
+ *
+ * @since 1.8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class PathologicalRegexBenchmark {
+
+    @Param({ "java", "re2j" })
+    RegexEngine engine;
+
+    @Param({ "nested", "typical" })
+    String rule;
+
+    @Param({ "8", "16", "24" })
+    int length;
+
+    private RuleMatcher matcher;
+    private String value;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("/api/");
+        switch (rule) {
+        case "nested":
+            matcher = RuleMatcher.of(Pattern.compile("^/api/(x+x+)+y"), engine);
+            builder.append("x".repeat(length));
+            break;
+        default:
+            matcher = RuleMatcher.of(Pattern.compile("/cases/\\d{4}-\\d+/documents"), engine);
+            builder.append("v1/cases/2024-").append("4".repeat(length)).append("/parties");
+            break;
+        }
+        value = builder.toString();
+        if (matcher.matches(value)) {
+            throw new IllegalStateException(matcher.kind + " rule matches " + value);
+        }
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return matcher.matches(value);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of {@link RateLimitingSampler} with an increasing
+ * number of threads sharing it, compared with a token bucket guarded by a
+ * lock. With a low limit nearly every span is dropped, with a high limit
+ * nearly every span is sampled, updating the shared time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimitingBenchmark {
+
+    @Param({ "1000", "1000000000" })
+    double maxSpansPerSecond;
+
+    private RateLimitingSampler sampler;
+    private LockingTokenBucket bucket;
+
+    @Setup
+    public void setUp() {
+        sampler = new RateLimitingSampler(maxSpansPerSecond);
+        bucket = new LockingTokenBucket(maxSpansPerSecond);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean lockFreeThreads1() {
+        return sampler.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lockFreeThreads4() {
+        return sampler.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean lockFreeThreads16() {
+        return sampler.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean lockFreeThreads64() {
+        return sampler.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean lockingThreads1() {
+        return bucket.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lockingThreads4() {
+        return bucket.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean lockingThreads16() {
+        return bucket.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean lockingThreads64() {
+        return bucket.tryAcquire();
+    }
+
+    /**
+     * A conventional token bucket, counting tokens refilled on each call.
+     */
+    static final class LockingTokenBucket {
+
+        private final double maxSpansPerSecond;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        LockingTokenBucket(double maxSpansPerSecond) {
+            this.maxSpansPerSecond = maxSpansPerSecond;
+            this.tokens = maxSpansPerSecond;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(maxSpansPerSecond, tokens + (now - last) * maxSpansPerSecond / 1e9);
+            last = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+}
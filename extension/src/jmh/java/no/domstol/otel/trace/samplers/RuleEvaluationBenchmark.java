@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import no.domstol.otel.agent.configuration.CompiledRule;
+
+/**
+ * Compares the compiled {@link RuleProgram}, with and without a
+ * {@link DecisionCache}, with the map based loop that
+ * <code>DynamicSamplerWrapper</code> used before the rules were compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleEvaluationBenchmark {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+
+    @Param({ "1", "10", "40", "100", "300" })
+    int groups;
+
+    /** Whether the span matches the last exclude group or no group at all */
+    @Param({ "hit", "miss" })
+    String scenario;
+
+    private Map<String, List<CompiledRule>> rules;
+    private RuleProgram program;
+    private RuleProgram cachedProgram;
+    private Attributes attributes;
+
+    @Setup
+    public void setUp() {
+        rules = createRules(groups);
+        program = RuleProgram.compile(rules);
+        cachedProgram = RuleProgram.compile(rules, 1024);
+        String target = "hit".equals(scenario) ? "/api/v1/resource" + (groups - 1) + "/42"
+                : "/api/v1/cases/2024-0042/documents";
+        attributes = Attributes.of(HTTP_TARGET, target, HTTP_METHOD, "GET");
+    }
+
+    /**
+     * Creates as many include and exclude groups, each testing both the HTTP
+     * target and method, as is typical for the rules in use.
+     */
+    static Map<String, List<CompiledRule>> createRules(int groups) {
+        return createRules(groups, false);
+    }
+
+    /**
+     * Creates as many include and exclude groups as above, with the HTTP target
+     * either a literal, or a regular expression matching the same targets used
+     * by the benchmarks.
+     */
+    static Map<String, List<CompiledRule>> createRules(int groups, boolean regex) {
+        String any = regex ? "\\d+" : ".+";
+        List<CompiledRule> include = new ArrayList<>();
+        List<CompiledRule> exclude = new ArrayList<>();
+        for (int i = 0; i < groups; i++) {
+            Map<AttributeKey<String>, Pattern> includeGroup = new LinkedHashMap<>();
+            includeGroup.put(HTTP_TARGET, Pattern.compile("/api/v2/resource" + i + "/" + any));
+            includeGroup.put(HTTP_METHOD, Pattern.compile("POST"));
+            include.add(new CompiledRule(includeGroup));
+            Map<AttributeKey<String>, Pattern> excludeGroup = new LinkedHashMap<>();
+            excludeGroup.put(HTTP_TARGET, Pattern.compile("/api/v1/resource" + i + "/" + any));
+            excludeGroup.put(HTTP_METHOD, Pattern.compile("GET"));
+            exclude.add(new CompiledRule(excludeGroup));
+        }
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("include", include);
+        rules.put("exclude", exclude);
+        return rules;
+    }
+
+    @Benchmark
+    public int legacyLoop() {
+        return legacyMatch(rules.get("include"), attributes) ? 1 : legacyMatch(rules.get("exclude"), attributes) ? 2 : 0;
+    }
+
+    @Benchmark
+    public int compiledProgram() {
+        int group = program.evaluate(attributes);
+        return group < 0 ? 0 : program.isInclude(group) ? 1 : 2;
+    }
+
+    @Benchmark
+    public int cachedProgram() {
+        DecisionCache cache = cachedProgram.cache();
+        int group = cache.get(attributes);
+        if (group == DecisionCache.MISS) {
+            group = cachedProgram.evaluate(attributes);
+            cache.put(attributes, group);
+        }
+        return group < 0 ? 0 : cachedProgram.isInclude(group) ? 1 : 2;
+    }
+
+    /**
+     * The evaluation as it was done before the rules were compiled.
+     */
+    private static boolean legacyMatch(List<CompiledRule> set, Attributes attributes) {
+        if (set != null) {
+            for (CompiledRule rule : set) {
+                Map<AttributeKey<String>, Pattern> group = rule.getAttributes();
+                boolean match = false;
+                for (AttributeKey<String> key : group.keySet()) {
+                    String string = attributes.get(key);
+                    if (string != null && group.get(key).matcher(string).find()) {
+                        match = true;
+                    } else {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
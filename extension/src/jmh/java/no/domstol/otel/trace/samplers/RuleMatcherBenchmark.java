@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares each kind of {@link RuleMatcher} with using
+ * <code>Pattern.matcher(value).find()</code> for the same rule value, on a
+ * mix of typical <code>http.target</code> values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleMatcherBenchmark {
+
+    static final String[] HTTP_TARGETS = {
+            "/health/live",
+            "/health/ready",
+            "/metrics",
+            "/agent-configuration/da-otel-agent-service",
+            "/api/v1/cases/2024-004213/documents?page=2&size=50",
+            "/api/v1/cases/2024-004213/parties/17",
+            "/api/v1/search?q=tingrett&from=2024-01-01&to=2024-12-31",
+            "/static/js/main.8f3c2a1b.js",
+            "/static/css/bootstrap.min.css",
+            "/",
+    };
+
+    @Param({ "exact", "prefix", "suffix", "contains", "regex" })
+    String kind;
+
+    private Pattern pattern;
+    private RuleMatcher matcher;
+
+    @Setup
+    public void setUp() {
+        switch (kind) {
+        case "exact":
+            pattern = Pattern.compile("^/metrics$");
+            break;
+        case "prefix":
+            pattern = Pattern.compile("^/api/v1/cases/");
+            break;
+        case "suffix":
+            pattern = Pattern.compile("\\.js$");
+            break;
+        case "contains":
+            pattern = Pattern.compile("/health/.+");
+            break;
+        default:
+            pattern = Pattern.compile("/cases/\\d{4}-\\d+/documents");
+            break;
+        }
+        matcher = RuleMatcher.of(pattern);
+        if (!matcher.kind.name().equalsIgnoreCase(kind)) {
+            throw new IllegalStateException(pattern + " was compiled as " + matcher.kind);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void patternFind(Blackhole blackhole) {
+        for (String target : HTTP_TARGETS) {
+            blackhole.consume(pattern.matcher(target).find());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void ruleMatcher(Blackhole blackhole) {
+        for (String target : HTTP_TARGETS) {
+            blackhole.consume(matcher.matches(target));
+        }
+    }
+
+}
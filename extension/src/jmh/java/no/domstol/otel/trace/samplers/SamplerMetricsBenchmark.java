@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+/**
+ * Measures the throughput of {@link DynamicSamplerWrapper#shouldSample} with
+ * an increasing number of threads sharing the same {@link SamplerMetrics},
+ * compared with counting the same samples the way it was done before, using
+ * a shared <code>AtomicLong</code> for each counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerMetricsBenchmark {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    private DynamicSamplerWrapper wrapper;
+    private RuleProgram program;
+    private Sampler sampler;
+    private Attributes attributes;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong filterExcluded = new AtomicLong();
+    private final AtomicLong filterIncluded = new AtomicLong();
+    private final AtomicLong samplerExcluded = new AtomicLong();
+    private final AtomicLong samplerIncluded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        sampler = Sampler.alwaysOn();
+        wrapper = new DynamicSamplerWrapper(sampler, RuleEvaluationBenchmark.createRules(10));
+        program = RuleProgram.compile(RuleEvaluationBenchmark.createRules(10));
+        attributes = Attributes.of(AttributeKey.stringKey("http.target"), "/api/v1/cases/2024-0042/documents",
+                AttributeKey.stringKey("http.method"), "GET");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SamplingResult stripedThreads1() {
+        return striped();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SamplingResult stripedThreads4() {
+        return striped();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public SamplingResult stripedThreads16() {
+        return striped();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public SamplingResult stripedThreads64() {
+        return striped();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SamplingResult atomicThreads1() {
+        return atomic();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SamplingResult atomicThreads4() {
+        return atomic();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public SamplingResult atomicThreads16() {
+        return atomic();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public SamplingResult atomicThreads64() {
+        return atomic();
+    }
+
+    private SamplingResult striped() {
+        return wrapper.shouldSample(Context.root(), TRACE_ID, "GET /api/v1/cases", SpanKind.SERVER, attributes,
+                Collections.emptyList());
+    }
+
+    /**
+     * The same work as {@link DynamicSamplerWrapper#shouldSample}, counted the
+     * way it was done before the counters were striped.
+     */
+    private SamplingResult atomic() {
+        processed.incrementAndGet();
+        int group = program.evaluate(attributes);
+        if (group >= 0) {
+            if (program.isInclude(group)) {
+                filterIncluded.incrementAndGet();
+                recorded.incrementAndGet();
+                return SamplingResult.create(SamplingDecision.RECORD_AND_SAMPLE);
+            }
+            filterExcluded.incrementAndGet();
+            dropped.incrementAndGet();
+            return SamplingResult.create(SamplingDecision.DROP);
+        }
+        SamplingResult result = sampler.shouldSample(Context.root(), TRACE_ID, "GET /api/v1/cases", SpanKind.SERVER,
+                attributes, Collections.emptyList());
+        if (result.getDecision().equals(SamplingDecision.DROP)) {
+            samplerExcluded.incrementAndGet();
+            dropped.incrementAndGet();
+        } else if (result.getDecision().equals(SamplingDecision.RECORD_AND_SAMPLE)) {
+            samplerIncluded.incrementAndGet();
+            recorded.incrementAndGet();
+        }
+        return result;
+    }
+
+}
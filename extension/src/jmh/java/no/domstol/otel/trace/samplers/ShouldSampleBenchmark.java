@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+/**
+ * Measures {@link DynamicSamplerWrapper#shouldSample} as called for every span
+ * created by the application. The rule groups are those of
+ * {@link RuleEvaluationBenchmark#createRules(int, boolean)}, and the span
+ * either matches the last exclude group or falls through to a
+ * <code>parentbased_traceidratio</code> sampler. With no rules, every span
+ * falls through.
+ * <p>
+ * The benchmark is run by one thread and by as many threads as there are
+ * processors, sharing the same sampler, see the nested classes.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public abstract class ShouldSampleBenchmark {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    @Param({ "0", "10", "100", "1000" })
+    int groups;
+
+    /** Whether the rules test the HTTP target using literals or regular expressions */
+    @Param({ "literal", "regex" })
+    String values;
+
+    /** Whether the span matches the last exclude group or no group at all */
+    @Param({ "hit", "miss" })
+    String scenario;
+
+    private DynamicSamplerWrapper wrapper;
+    private Attributes attributes;
+
+    @Setup
+    public void setUp() {
+        Sampler sampler = Sampler.parentBased(Sampler.traceIdRatioBased(0.1));
+        wrapper = new DynamicSamplerWrapper(sampler,
+                RuleEvaluationBenchmark.createRules(groups, "regex".equals(values)));
+        String target = "hit".equals(scenario) ? "/api/v1/resource" + (groups - 1) + "/42"
+                : "/api/v1/cases/2024-0042/documents";
+        attributes = Attributes.of(HTTP_TARGET, target, HTTP_METHOD, "GET");
+    }
+
+    @Benchmark
+    public SamplingResult shouldSample() {
+        return wrapper.shouldSample(Context.root(), TRACE_ID, "GET /api/v1", SpanKind.SERVER, attributes,
+                Collections.emptyList());
+    }
+
+    @Threads(1)
+    public static class SingleThread extends ShouldSampleBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class AllThreads extends ShouldSampleBenchmark {
+    }
+
+}
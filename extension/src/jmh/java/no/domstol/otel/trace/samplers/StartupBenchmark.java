@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentelemetry.sdk.autoconfigure.spi.internal.DefaultConfigProperties;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+
+/**
+ * Measures the time {@link DynamicSamplerProvider#createSampler} adds to the
+ * start of the agent, once per JVM as when the agent starts, when the
+ * configuration service answers at once and when it accepts the connection
+ * but never answers. With <code>cache</code> the configuration is also read
+ * from the cache file written by a previous run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+
+    private static final String CONFIGURATION = "{\"serviceName\":\"svc\",\"sampler\":\"always_on\","
+            + "\"timestamp\":1000,\"rules\":[{\"exclude\":[{\"http.target\":\"/health.*\"}]}]}";
+
+    @Param({ "reachable", "hung" })
+    String service;
+
+    @Param({ "false", "true" })
+    boolean cache;
+
+    private ServerSocket server;
+    private Path cacheFile;
+    private Map<String, String> properties;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::accept, "service");
+        thread.setDaemon(true);
+        thread.start();
+        cacheFile = Files.createTempFile("otel-configuration", ".json");
+        Files.write(cacheFile, ("{\"revision\":\"\\\"5d41402abc4b2a76\\\"\",\"configuration\":" + CONFIGURATION
+                + "}").getBytes(StandardCharsets.UTF_8));
+        properties = new HashMap<>();
+        properties.put("otel.service.name", "svc");
+        properties.put("otel.configuration.service.url", "http://localhost:" + server.getLocalPort());
+        properties.put("otel.configuration.reorder.interval", "0");
+        if (cache) {
+            properties.put("otel.configuration.cache.file", cacheFile.toString());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(cacheFile);
+    }
+
+    @Benchmark
+    public Sampler createSampler() {
+        return new DynamicSamplerProvider().createSampler(DefaultConfigProperties.createFromMap(properties));
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                if ("reachable".equals(service)) {
+                    Thread thread = new Thread(() -> serve(socket));
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Answers every request with the configuration, ignoring any body
+     */
+    private static void serve(Socket socket) {
+        try (Socket connection = socket) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = connection.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int contentLength = 0;
+                while (line != null && !line.isEmpty()) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    }
+                    line = in.readLine();
+                }
+                in.skip(contentLength);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nETag: \"5d41402abc4b2a76\"\r\n"
+                        + "Content-Length: " + CONFIGURATION.length() + "\r\n\r\n" + CONFIGURATION)
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+}
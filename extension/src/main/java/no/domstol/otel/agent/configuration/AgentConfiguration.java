@@ -18,10 +18,15 @@
 package no.domstol.otel.agent.configuration;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -32,6 +37,7 @@ import tools.jackson.databind.ObjectMapper;
 import tools.jackson.databind.ObjectWriter;
 
 import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanKind;
 
 /**
  * Represents a sampler configuration as serviced by the Agent Configuration
@@ -42,8 +48,52 @@ import io.opentelemetry.api.common.AttributeKey;
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class AgentConfiguration {
 
+    /**
+     * The reserved key of a rule condition matching the name of the span
+     * rather than an attribute. An attribute of this name is tested using the
+     * key <code>span.name:string</code>.
+     *
+     * @since 1.8
+     */
+    public static final String SPAN_NAME = "span.name";
+
+    /**
+     * The reserved key of a rule condition listing the kinds of span accepted,
+     * e.g. <code>SERVER,CONSUMER</code>, rather than an attribute. An
+     * attribute of this name is tested using the key
+     * <code>span.kind:string</code>.
+     *
+     * @since 1.8
+     */
+    public static final String SPAN_KIND = "span.kind";
+
+    /** The suffix of a key always naming a string attribute, even a reserved one */
+    private static final String STRING_SUFFIX = ":string";
+
     public enum SamplerType {
         always_on, always_off, traceidratio, parentbased_always_on, parentbased_always_off, parentbased_traceidratio,
+        ratelimited, parentbased_ratelimited, adaptive;
+
+        /**
+         * @return <code>true</code> if a span with a valid parent is sampled if
+         *         and only if the parent is
+         * @since 1.8
+         */
+        public boolean isParentBased() {
+            return name().startsWith("parentbased_");
+        }
+    }
+
+    /**
+     * The engines evaluating the regular expressions of the rules.
+     *
+     * @since 1.8
+     */
+    public enum RegexEngine {
+        /** <code>java.util.regex</code>, supporting its full syntax */
+        java,
+        /** RE2/J, matching in time linear in the length of the value */
+        re2j,
     }
 
     // use the same default value as OpenTelemetry, in case the same somehow
@@ -58,6 +108,18 @@ public class AgentConfiguration {
     @JsonProperty("sampleRatio")
     private Double sampleRatio = 0.0;
 
+    /** The maximum number of spans sampled per second by the rate limited samplers */
+    @JsonProperty("maxSpansPerSecond")
+    private Double maxSpansPerSecond;
+
+    /** The number of root spans to sample per minute by the adaptive sampler */
+    @JsonProperty("targetSpansPerMinute")
+    private Double targetSpansPerMinute;
+
+    /** The engine evaluating the regular expressions of the rules, if not the default */
+    @JsonProperty("regexEngine")
+    private RegexEngine regexEngine;
+
     @JsonProperty("readOnly")
     private boolean readOnly = false;
 
@@ -76,6 +138,9 @@ public class AgentConfiguration {
         @JsonProperty("include")
         private List<Map<String, String>> include;
 
+        @JsonProperty("sample")
+        private List<Map<String, String>> sample;
+
         public List<Map<String, String>> getExclude() {
             return exclude;
         }
@@ -92,6 +157,19 @@ public class AgentConfiguration {
             this.include = include;
         }
 
+        /**
+         * @return the rules sampling a ratio of the spans they match, each
+         *         with a <code>ratio</code> entry
+         * @since 1.8
+         */
+        public List<Map<String, String>> getSample() {
+            return sample;
+        }
+
+        public void setSample(List<Map<String, String>> sample) {
+            this.sample = sample;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj)
@@ -101,7 +179,13 @@ public class AgentConfiguration {
             if (getClass() != obj.getClass())
                 return false;
             Rules other = (Rules) obj;
-            return Objects.equals(exclude, other.exclude) && Objects.equals(include, other.include);
+            return Objects.equals(exclude, other.exclude) && Objects.equals(include, other.include)
+                    && Objects.equals(sample, other.sample);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(exclude, include, sample);
         }
 
     }
@@ -130,6 +214,61 @@ public class AgentConfiguration {
         this.sampleRatio = sampleRatio;
     }
 
+    /**
+     * @return the maximum number of spans sampled per second, or
+     *         <code>null</code> if not specified
+     * @since 1.8
+     */
+    public Double getMaxSpansPerSecond() {
+        return maxSpansPerSecond;
+    }
+
+    /**
+     * @param maxSpansPerSecond the maximum number of spans sampled per second
+     *                          when using a rate limited sampler
+     * @since 1.8
+     */
+    public void setMaxSpansPerSecond(Double maxSpansPerSecond) {
+        this.maxSpansPerSecond = maxSpansPerSecond;
+    }
+
+    /**
+     * @return the number of root spans to sample per minute, or
+     *         <code>null</code> if not specified
+     * @since 1.8
+     */
+    public Double getTargetSpansPerMinute() {
+        return targetSpansPerMinute;
+    }
+
+    /**
+     * @param targetSpansPerMinute the number of root spans to sample per
+     *                             minute when using the adaptive sampler
+     * @since 1.8
+     */
+    public void setTargetSpansPerMinute(Double targetSpansPerMinute) {
+        this.targetSpansPerMinute = targetSpansPerMinute;
+    }
+
+    /**
+     * @return the engine evaluating the regular expressions of the rules, or
+     *         <code>null</code> to use the one given by the agent settings
+     * @since 1.8
+     */
+    public RegexEngine getRegexEngine() {
+        return regexEngine;
+    }
+
+    /**
+     * @param regexEngine the engine evaluating the regular expressions of the
+     *                    rules, or <code>null</code> to use the one given by
+     *                    the agent settings
+     * @since 1.8
+     */
+    public void setRegexEngine(RegexEngine regexEngine) {
+        this.regexEngine = regexEngine;
+    }
+
     public SamplerType getSampler() {
         return sampler;
     }
@@ -141,29 +280,50 @@ public class AgentConfiguration {
     /**
      * Returns a compiled set of rules. This representation is already converted
      * into {@link AttributeKey} and {@link Pattern}, removing the need for doing
-     * this conversion during filtering.
+     * this conversion during filtering, and each <code>sample</code> rule holds
+     * its ratio. Conditions on the span name and kind are kept apart from
+     * those on the attributes. The comparison of a typed attribute, such as
+     * <code>http.status_code:long</code>, is parsed into a
+     * {@link TypedCondition}.
+     * <p>
+     * The compiled rules are shared by all configurations with the same rules,
+     * and are not to be modified. Configurations with different rules still
+     * share the compiled form of the patterns they have in common.
+     * </p>
      *
      * @return a compiled set of filtering rules
+     * @throws IllegalArgumentException if a <code>sample</code> rule does not
+     *                                  have a valid ratio, a rule names an
+     *                                  unknown span kind, or a comparison is
+     *                                  not valid
      */
     @JsonIgnore
-    public Map<String, List<Map<AttributeKey<String>, Pattern>>> getRules() {
-        Map<String, List<Map<AttributeKey<String>, Pattern>>> ruleSets = new HashMap<>();
+    public Map<String, List<CompiledRule>> getRules() {
         if (rules == null) {
-            return ruleSets;
+            return new HashMap<>();
         }
+        return RuleCache.get(rules, this::compileRuleSets);
+    }
 
-        List<Map<AttributeKey<String>, Pattern>> excludeSet = new ArrayList<>();
-        List<Map<AttributeKey<String>, Pattern>> includeSet = new ArrayList<>();
+    private Map<String, List<CompiledRule>> compileRuleSets() {
+        Map<String, List<CompiledRule>> ruleSets = new HashMap<>();
+        List<CompiledRule> excludeSet = new ArrayList<>();
+        List<CompiledRule> includeSet = new ArrayList<>();
+        List<CompiledRule> sampleSet = new ArrayList<>();
 
         for (Rules rule : rules) {
             compileRules(excludeSet, rule.getExclude());
             compileRules(includeSet, rule.getInclude());
+            compileSampleRules(sampleSet, rule.getSample());
         }
 
-        ruleSets.put("exclude", excludeSet);
-        ruleSets.put("include", includeSet);
+        ruleSets.put("exclude", Collections.unmodifiableList(excludeSet));
+        ruleSets.put("include", Collections.unmodifiableList(includeSet));
+        if (!sampleSet.isEmpty()) {
+            ruleSets.put("sample", Collections.unmodifiableList(sampleSet));
+        }
 
-        return ruleSets;
+        return Collections.unmodifiableMap(ruleSets);
     }
 
     public long getTimestamp() {
@@ -174,16 +334,80 @@ public class AgentConfiguration {
         this.timestamp = timestamp;
     }
 
-    private void compileRules(List<Map<AttributeKey<String>, Pattern>> set, List<Map<String, String>> spec) {
+    private void compileRules(List<CompiledRule> set, List<Map<String, String>> spec) {
+        if (spec != null) {
+            for (Map<String, String> map : spec) {
+                set.add(compileRuleGroup(map, Double.NaN));
+            }
+        }
+    }
+
+    /**
+     * Compiles the conditions of a rule group, those on the reserved keys
+     * {@link #SPAN_NAME} and {@link #SPAN_KIND} testing the span itself.
+     *
+     * @throws IllegalArgumentException if a span kind is not known, or a
+     *                                  comparison of a typed attribute is not
+     *                                  valid
+     */
+    private static CompiledRule compileRuleGroup(Map<String, String> map, double ratio) {
+        Map<AttributeKey<String>, Pattern> ruleGroup = new HashMap<AttributeKey<String>, Pattern>();
+        List<TypedCondition> typedConditions = new ArrayList<>();
+        Pattern spanName = null;
+        Set<SpanKind> spanKinds = null;
+        for (String string : map.keySet()) {
+            if (map.get(string) instanceof String) {
+                if (string.equals(SPAN_NAME)) {
+                    spanName = RuleCache.pattern(map.get(string), 0);
+                } else if (string.equals(SPAN_KIND)) {
+                    spanKinds = spanKinds(map.get(string));
+                } else if (string.endsWith(STRING_SUFFIX)) {
+                    ruleGroup.put(AttributeKey.stringKey(string.substring(0, string.length() - STRING_SUFFIX.length())),
+                            RuleCache.pattern(map.get(string), 0));
+                } else if (TypedCondition.key(string) != null) {
+                    typedConditions.add(TypedCondition.parse(string, map.get(string)));
+                } else {
+                    ruleGroup.put(AttributeKey.stringKey(string), RuleCache.pattern(map.get(string), 0));
+                }
+            }
+        }
+        return new CompiledRule(spanName, spanKinds, ruleGroup, typedConditions, ratio);
+    }
+
+    /**
+     * @param names a comma separated list of span kind names, in any case
+     * @return the span kinds named
+     * @throws IllegalArgumentException if a name is not that of a span kind
+     */
+    private static Set<SpanKind> spanKinds(String names) {
+        Set<SpanKind> kinds = EnumSet.noneOf(SpanKind.class);
+        for (String name : names.split(",", -1)) {
+            try {
+                kinds.add(SpanKind.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown span kind '" + name.trim() + "' in " + SPAN_KIND + ": "
+                        + names + ", the kinds are " + Arrays.toString(SpanKind.values()));
+            }
+        }
+        return kinds;
+    }
+
+    private void compileSampleRules(List<CompiledRule> set, List<Map<String, String>> spec) {
         if (spec != null) {
             for (Map<String, String> map : spec) {
-                Map<AttributeKey<String>, Pattern> ruleGroup = new HashMap<AttributeKey<String>, Pattern>();
-                for (String string : map.keySet()) {
-                    if (map.get(string) instanceof String) {
-                        ruleGroup.put(AttributeKey.stringKey(string), Pattern.compile(map.get(string)));
-                    }
+                Map<String, String> conditions = new HashMap<>(map);
+                String ratio = conditions.remove("ratio");
+                double value;
+                try {
+                    value = ratio == null ? Double.NaN : Double.parseDouble(ratio);
+                } catch (NumberFormatException e) {
+                    value = Double.NaN;
+                }
+                if (!(value >= 0 && value <= 1)) {
+                    throw new IllegalArgumentException(
+                            "A sample rule must have a 'ratio' between 0 and 1, was " + ratio + " in " + map);
                 }
-                set.add(ruleGroup);
+                set.add(compileRuleGroup(conditions, value));
             }
         }
     }
@@ -215,6 +439,9 @@ public class AgentConfiguration {
             return false;
         AgentConfiguration other = (AgentConfiguration) obj;
         return Objects.equals(rules, other.rules) && Objects.equals(sampleRatio, other.sampleRatio)
+                && Objects.equals(maxSpansPerSecond, other.maxSpansPerSecond)
+                && Objects.equals(targetSpansPerMinute, other.targetSpansPerMinute)
+                && regexEngine == other.regexEngine
                 && sampler == other.sampler && Objects.equals(serviceName, other.serviceName)
                 && Objects.equals(readOnly, other.isReadOnly());
     }
@@ -226,6 +453,9 @@ public class AgentConfiguration {
             return false;
         AgentConfiguration other = (AgentConfiguration) obj;
         return Objects.equals(rules, other.rules) && Objects.equals(sampleRatio, other.sampleRatio)
+                && Objects.equals(maxSpansPerSecond, other.maxSpansPerSecond)
+                && Objects.equals(targetSpansPerMinute, other.targetSpansPerMinute)
+                && regexEngine == other.regexEngine
                 && sampler == other.sampler && Objects.equals(serviceName, other.serviceName);
     }
 
@@ -18,32 +18,41 @@
 package no.domstol.otel.agent.configuration;
 
 import java.io.IOException;
-import java.nio.charset.UnsupportedCharsetException;
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-
-import tools.jackson.core.JacksonException;
 import tools.jackson.databind.ObjectMapper;
 
 import io.opentelemetry.sdk.autoconfigure.spi.ConfigProperties;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
+import no.domstol.otel.agent.configuration.ServiceTransport.Client;
+import no.domstol.otel.agent.configuration.ServiceTransport.Response;
 import no.domstol.otel.trace.samplers.SamplerMetrics;
 
 /**
  * This type deals with the OpenTelemetry Configuration Service.
+ * <p>
+ * The HTTP client is given by <code>otel.configuration.service.client</code>,
+ * either <code>apache</code>, the default, or <code>jdk</code> for the
+ * asynchronous client of the JDK. Connecting must succeed within
+ * <code>otel.configuration.service.connect.timeout</code> and each request
+ * within <code>otel.configuration.service.timeout</code>, or it fails and
+ * the configuration in use is kept.
+ * </p>
+ * <p>
+ * Should the service fail <code>otel.configuration.service.failure.threshold</code>
+ * times in a row, it is not asked again until a random delay has passed, see
+ * {@link CircuitBreaker}. The delays are between
+ * <code>otel.configuration.service.interval</code>, at which the caller is to
+ * synchronize while the service can be reached, and
+ * <code>otel.configuration.service.backoff.max</code>.
+ * </p>
  *
  * @since 1.0
  */
@@ -52,9 +61,54 @@ public class AgentConfigurationServiceClient {
     private static final String API_KEY_HEADER = "X-API-KEY";
     private static final String USER_AGENT_HEADER = "AgentConfigurationServiceClient/1.2";
     private static final Logger logger = Logger.getLogger(AgentConfigurationServiceClient.class.getName());
-    private static final CloseableHttpClient httpClient = HttpClients.createDefault();
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
+    /** The default time allowed for connecting to the service */
+    static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+
+    /** The default time allowed for a request to the service */
+    static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    /** The default interval between synchronizations */
+    static final Duration INTERVAL = Duration.ofSeconds(30);
+
+    /** The default longest delay before trying an unreachable service again */
+    static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+    /** The default number of consecutive failures opening the circuit */
+    static final int FAILURE_THRESHOLD = 3;
+
+    /** Sends the requests, created when first needed */
+    private volatile ServiceTransport transport;
+
+    /** Whether the service can be reached, created when first needed */
+    private volatile CircuitBreaker breaker;
+
+    /**
+     * The entity tag of the remote configuration most recently read, and its
+     * timestamp, or <code>null</code> if it must be read again
+     */
+    private volatile String etag;
+    private volatile long etagTimestamp;
+
+    /** The longest time the service is asked to hold a watch, in seconds */
+    static final int WATCH_TIMEOUT = 30;
+
+    /** The shortest time to wait before watching again after a failure, in milliseconds */
+    static final long WATCH_RETRY = 30_000;
+
+    /** The transport holding the watch, or <code>null</code> if not watching */
+    private volatile ServiceTransport watchTransport;
+
+    /** Whether the most recent watch succeeded, so that polling is not needed */
+    private volatile boolean watching;
+
+    /**
+     * The path to post the metrics to and get the configuration from in one
+     * request, or <code>null</code> if the service does not support it
+     */
+    private volatile String syncPath;
+
     /**
      * Calls the configuration service to obtain a sampler configuration for this
      * agent. If the agent is not registered or obtaining a configuration fails, the
@@ -63,6 +117,21 @@ public class AgentConfigurationServiceClient {
      * If the configuration service contains the agent configuration, collected
      * {@link Sampler} metrics for this will be posted.
      * </p>
+     * <p>
+     * The remote configuration is only read when it has changed since it was
+     * last read, otherwise the service answers <code>304 Not Modified</code>
+     * and the local configuration is returned, as it is, so that the caller
+     * can tell nothing changed by its identity.
+     * </p>
+     * <p>
+     * If the service advertises it, the metrics are posted and the
+     * configuration returned in one request, rather than two.
+     * </p>
+     * <p>
+     * While the circuit to the service is open, no request is made and the
+     * initial configuration is returned. The metrics are kept until they can
+     * be posted.
+     * </p>
      *
      * @param localConfig Initial agent configuration
      * @param otelConfig    OpenTelemetry configuration
@@ -73,64 +142,352 @@ public class AgentConfigurationServiceClient {
     public AgentConfiguration synchronize(AgentConfiguration localConfig, ConfigProperties otelConfig,
             SamplerMetrics metrics) {
         String configurationServiceUrl = otelConfig.getString("otel.configuration.service.url");
-        String apiKey = otelConfig.getString("otel.configuration.service.api.key");
+        CircuitBreaker breaker = breaker(otelConfig);
+        if (!breaker.allowRequest()) {
+            return localConfig;
+        }
         try {
-            HttpGet request = new HttpGet(
-                    configurationServiceUrl + "/agent-configuration/" + localConfig.getServiceName());
-            request.addHeader("Accept", "application/json");
-            request.setHeader("User-Agent", USER_AGENT_HEADER);
-            if (apiKey != null)
-                request.addHeader(API_KEY_HEADER, apiKey);
-            try (CloseableHttpResponse response = httpClient.execute(request)) {
-                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        String result = EntityUtils.toString(entity);
-                        // read the remote agent configuration
-                        AgentConfiguration remoteConfig = objectMapper.readValue(result,
+            AgentConfiguration configuration = exchange(localConfig, otelConfig, metrics);
+            succeeded(breaker, configurationServiceUrl);
+            return configuration;
+        } catch (Exception e) {
+            // only the first failure is logged, rather than every attempt
+            if (failed(breaker, configurationServiceUrl) == 1) {
+                logger.warning("Could not connect to OTEL Configuration Service at " + configurationServiceUrl
+                        + ", using sampler \"" + localConfig.getSampler() + "\": " + e);
+            }
+            logger.log(Level.FINE, "Synchronizing with the OTEL Configuration Service failed", e);
+        }
+        return localConfig;
+    }
+
+    /**
+     * Records that the service was reached, logging it if it had failed.
+     */
+    private void succeeded(CircuitBreaker breaker, String configurationServiceUrl) {
+        int failures = breaker.succeeded();
+        if (failures > 0) {
+            logger.info("Reached the OTEL Configuration Service at " + configurationServiceUrl + " again after "
+                    + failures + " failed attempts");
+        }
+    }
+
+    /**
+     * Records that the service failed, logging it if the circuit was opened.
+     *
+     * @return the number of consecutive failures
+     */
+    private int failed(CircuitBreaker breaker, String configurationServiceUrl) {
+        boolean opened = breaker.failed();
+        int failures = breaker.getConsecutiveFailures();
+        if (opened) {
+            logger.warning("The OTEL Configuration Service at " + configurationServiceUrl + " failed " + failures
+                    + " times in a row, trying again in " + breaker.getDelay() / 1000 + " seconds");
+        }
+        return failures;
+    }
+
+    /**
+     * Asks the service for the configuration, posting the metrics.
+     *
+     * @throws IOException if the service cannot be reached or fails
+     */
+    private AgentConfiguration exchange(AgentConfiguration localConfig, ConfigProperties otelConfig,
+            SamplerMetrics metrics) throws IOException {
+        String configurationServiceUrl = otelConfig.getString("otel.configuration.service.url");
+        String apiKey = otelConfig.getString("otel.configuration.service.api.key");
+        ServiceTransport transport = transport(otelConfig);
+        String etag = this.etag;
+        String syncPath = this.syncPath;
+        Response response;
+        Map<String, String> headers = headers(apiKey);
+        headers.put("Accept", "application/json");
+        if (etag != null)
+            headers.put("If-None-Match", etag);
+        // the metrics posted along with asking for the configuration, if any
+        SamplerMetrics synced = null;
+        SamplerMetrics.Snapshot snapshot = null;
+        int failures = 0;
+        if (syncPath != null) {
+            String body = null;
+            if (metrics != null) {
+                synced = metrics;
+                failures = breaker.getUnreportedFailures();
+                snapshot = snapshot(metrics, failures);
+                body = objectMapper.writeValueAsString(snapshot);
+                metrics = null;
+            }
+            response = transport.send("POST", configurationServiceUrl + syncPath, headers, body);
+        } else if (etag != null && watching) {
+            // changes are pushed while watching, so there is no need to ask
+            return unchanged(localConfig, configurationServiceUrl, apiKey, metrics);
+        } else {
+            response = transport.send("GET", configurationServiceUrl + "/agent-configuration/"
+                    + localConfig.getServiceName(), headers, null);
+        }
+        if (response.getStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR || response.getStatusCode() == 429) {
+            throw new IOException("Configuration service connection failed with status code: "
+                    + response.getStatusCode());
+        }
+        // synchronize in one request from now on, if the service can
+        this.syncPath = syncPath(response);
+        if (syncPath != null && this.syncPath == null) {
+            logger.info("The OTEL Configuration Service no longer supports synchronizing in one request");
+        }
+        if (snapshot != null && (isSuccess(response.getStatusCode()) || this.syncPath != null)) {
+            // the metrics were received, as the service handles them even for
+            // an agent it does not know, so they are not to be posted again
+            commit(synced, snapshot, failures);
+        }
+        if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return unchanged(localConfig, configurationServiceUrl, apiKey, metrics);
+        }
+        this.etag = null;
+        if (response.getStatusCode() == HttpURLConnection.HTTP_OK) {
+            String result = response.getBody();
+            if (result != null) {
+                // read the remote agent configuration
+                AgentConfiguration remoteConfig = objectMapper.readValue(result,
+                        AgentConfiguration.class);
+                String etagHeader = response.getFirstHeader("ETag");
+                if (etagHeader != null) {
+                    etagTimestamp = remoteConfig.getTimestamp();
+                    this.etag = etagHeader;
+                }
+                // while we're at it, post the metrics
+                postMetrics(localConfig.getServiceName(), configurationServiceUrl, apiKey, metrics);
+                // if the local configuration does not have a timestamp,
+                // it is the default version, has not been read from a
+                // file and we should use the remote version
+                if (localConfig.getTimestamp() == 0) {
+                    return remoteConfig;
+                }
+                // if the local configuration is newer, it has been read
+                // from a file that is more current, so we should update
+                // the remote configuration
+                if (localConfig.getTimestamp() > remoteConfig.getTimestamp()) {
+                    updateRemoteConfiguration(localConfig, configurationServiceUrl, apiKey);
+                    return localConfig;
+                }
+                return remoteConfig;
+            }
+        } else if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                && (syncPath == null || this.syncPath != null)) {
+            // unless synchronizing is no longer supported, in which
+            // case it is the request that is not found
+            selfRegister(localConfig, configurationServiceUrl, apiKey);
+        } else {
+            // the service is reachable, but will not answer this agent
+            logger.severe("Configuration service connection failed with status code: "
+                    + response.getStatusCode());
+        }
+        return localConfig;
+    }
+
+    /**
+     * @return the entity tag of the remote configuration most recently read,
+     *         or <code>null</code> if not known
+     * @since 1.8
+     */
+    public String getRevision() {
+        return etag;
+    }
+
+    /**
+     * Sets the entity tag of a remote configuration read before, e.g. from a
+     * cache, so that it is not read again unless it has changed.
+     *
+     * @param revision  the entity tag of the configuration
+     * @param timestamp the timestamp of the configuration
+     * @since 1.8
+     */
+    public void setRevision(String revision, long timestamp) {
+        etagTimestamp = timestamp;
+        etag = revision;
+    }
+
+    /**
+     * @return the path to synchronize in one request, as advertised by the
+     *         <code>Link</code> header with the relation <code>sync</code>,
+     *         or <code>null</code> if the service does not support it
+     */
+    static String syncPath(Response response) {
+        for (String header : response.getHeaders("Link")) {
+            for (String link : header.split(",")) {
+                int end = link.indexOf('>');
+                if (link.trim().startsWith("<") && end > 0 && link.indexOf("rel=\"sync\"", end) > 0) {
+                    return link.substring(link.indexOf('<') + 1, end);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Handles a remote configuration that is the one most recently read, so
+     * that neither reading nor comparing it is necessary.
+     */
+    private AgentConfiguration unchanged(AgentConfiguration localConfig, String configurationServiceUrl,
+            String apiKey, SamplerMetrics metrics) throws IOException {
+        postMetrics(localConfig.getServiceName(), configurationServiceUrl, apiKey, metrics);
+        if (localConfig.getTimestamp() > etagTimestamp) {
+            updateRemoteConfiguration(localConfig, configurationServiceUrl, apiKey);
+        }
+        return localConfig;
+    }
+
+    /**
+     * Starts watching the remote configuration, so that it is passed to the
+     * listener as soon as it changes at the service, rather than when next
+     * polled. The service holds each request until the configuration changes
+     * or {@value #WATCH_TIMEOUT} seconds have passed, and the request is then
+     * repeated.
+     * <p>
+     * While watching, {@link #synchronize} does not ask for the
+     * configuration, only posting the metrics. Should watching fail, e.g. as
+     * the service does not support it, it is retried after a random delay of
+     * at least {@value #WATCH_RETRY} milliseconds, growing while it keeps
+     * failing, polling the configuration in the meantime. Watching shares the
+     * circuit breaker with polling, so that the service is not asked by either
+     * while the circuit is open.
+     * </p>
+     *
+     * @param serviceName the name of the configuration to watch
+     * @param otelConfig  OpenTelemetry configuration
+     * @param listener    receives the configuration whenever it changes
+     * @since 1.8
+     */
+    public synchronized void watch(String serviceName, ConfigProperties otelConfig,
+            Consumer<AgentConfiguration> listener) {
+        if (watchTransport != null) {
+            return;
+        }
+        String configurationServiceUrl = otelConfig.getString("otel.configuration.service.url");
+        String apiKey = otelConfig.getString("otel.configuration.service.api.key");
+        // the service answers within the timeout
+        ServiceTransport transport = ServiceTransport.create(client(otelConfig),
+                otelConfig.getDuration("otel.configuration.service.connect.timeout", CONNECT_TIMEOUT),
+                Duration.ofSeconds(WATCH_TIMEOUT + WATCH_TIMEOUT / 2));
+        watchTransport = transport;
+        long maxBackoff = maxBackoff(otelConfig);
+        CircuitBreaker breaker = breaker(otelConfig);
+        Thread thread = new Thread(
+                () -> watch(transport, breaker, serviceName, configurationServiceUrl, apiKey, maxBackoff, listener),
+                "configuration-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the remote configuration, aborting the request waiting.
+     *
+     * @since 1.8
+     */
+    public synchronized void stopWatching() {
+        if (watchTransport != null) {
+            watchTransport.close();
+            watchTransport = null;
+            watching = false;
+        }
+    }
+
+    /**
+     * @return whether the remote configuration is being watched, so that
+     *         polling it is not needed
+     * @since 1.8
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    private void watch(ServiceTransport transport, CircuitBreaker breaker, String serviceName,
+            String configurationServiceUrl, String apiKey, long maxBackoff, Consumer<AgentConfiguration> listener) {
+        boolean failed = false;
+        long retry = WATCH_RETRY;
+        while (true) {
+            synchronized (this) {
+                if (watchTransport != transport) {
+                    return;
+                }
+            }
+            boolean watched = false;
+            // while the circuit is open the service is not asked, and only
+            // one of the watch and the poll makes the probe
+            boolean allowed = breaker.allowRequest();
+            if (allowed) {
+                try {
+                    Map<String, String> headers = headers(apiKey);
+                    headers.put("Accept", "application/json");
+                    String etag = this.etag;
+                    if (etag != null)
+                        headers.put("If-None-Match", etag);
+                    Response response = transport.send("GET", configurationServiceUrl + "/agent-configuration/"
+                            + serviceName + "/watch?timeout=" + WATCH_TIMEOUT, headers, null);
+                    int statusCode = response.getStatusCode();
+                    if (statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || statusCode == 429) {
+                        failed(breaker, configurationServiceUrl);
+                    } else {
+                        succeeded(breaker, configurationServiceUrl);
+                    }
+                    String etagHeader = response.getFirstHeader("ETag");
+                    if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        watched = etag != null;
+                    } else if (statusCode == HttpURLConnection.HTTP_OK && etagHeader != null
+                            && response.getBody() != null) {
+                        AgentConfiguration remoteConfig = objectMapper.readValue(response.getBody(),
                                 AgentConfiguration.class);
-                        // while we're at it, post the metrics
-                        postMetrics(localConfig.getServiceName(), configurationServiceUrl, apiKey, metrics);
-                        // if the local configuration does not have a timestamp,
-                        // it is the default version, has not been read from a
-                        // file and we should use the remote version
-                        if (localConfig.getTimestamp() == 0) {
-                            return remoteConfig;
+                        etagTimestamp = remoteConfig.getTimestamp();
+                        this.etag = etagHeader;
+                        watched = true;
+                        if (etag != null) {
+                            logger.info("The configuration was changed at the OTEL Configuration Service");
                         }
-                        // if the local configuration is newer, it has been read
-                        // from a file that is more current, so we should update
-                        // the remote configuration
-                        if (localConfig.getTimestamp() > remoteConfig.getTimestamp()) {
-                            updateRemoteConfiguration(localConfig, configurationServiceUrl, apiKey);
-                            return localConfig;
+                        listener.accept(remoteConfig);
+                    } else if (!failed) {
+                        logger.warning("Watching the configuration failed with status code: " + statusCode
+                                + ", polling instead");
+                        failed = true;
+                    }
+                } catch (Exception e) {
+                    // not a failure of the service if watching was stopped
+                    if (watchTransport == transport) {
+                        failed(breaker, configurationServiceUrl);
+                        if (!failed) {
+                            logger.warning("Could not watch the configuration at the OTEL Configuration Service "
+                                    + configurationServiceUrl + ", polling instead: " + e);
+                            failed = true;
                         }
-                        return remoteConfig;
                     }
-                } else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
-                    selfRegister(localConfig, configurationServiceUrl, apiKey);
-                } else {
-                    logger.severe("Configuration service connection failed with status code: "
-                            + response.getStatusLine().getStatusCode());
+                    logger.log(Level.FINE, "Watching the configuration failed", e);
+                }
+            }
+            if (watched && (failed || !watching)) {
+                logger.info("Watching the configuration at the OTEL Configuration Service");
+                failed = false;
+            }
+            watching = watched;
+            if (watched) {
+                retry = WATCH_RETRY;
+            } else {
+                // spread the agents watching again as the service comes back,
+                // and wait for the circuit to let a probe through
+                retry = CircuitBreaker.jitter(WATCH_RETRY, retry, maxBackoff, ThreadLocalRandom.current());
+                try {
+                    Thread.sleep(allowed ? retry : Math.max(retry, breaker.nextDelay()));
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Could not connect to OTEL Configuration Service at " + configurationServiceUrl
-                    + ", using sampler \"" + localConfig.getSampler() + "\".", e);
         }
-        return localConfig;
     }
 
-    private void updateRemoteConfiguration(AgentConfiguration configuration, String configurationServiceUrl, String apiKey)
-            throws UnsupportedCharsetException, JacksonException {
-        HttpPut request = new HttpPut(
-                configurationServiceUrl + "/agent-configuration/" + configuration.getServiceName());
-        if (apiKey != null)
-            request.addHeader(API_KEY_HEADER, apiKey);
-        request.setHeader("User-Agent", USER_AGENT_HEADER);
-        request.setEntity(new StringEntity(objectMapper.writeValueAsString(configuration),
-                ContentType.APPLICATION_JSON.withCharset("UTF-8")));
-        try (CloseableHttpResponse execute = httpClient.execute(request)) {
-            int statusCode = execute.getStatusLine().getStatusCode();
+    private void updateRemoteConfiguration(AgentConfiguration configuration, String configurationServiceUrl,
+            String apiKey) {
+        try {
+            Response response = transport.send("PUT",
+                    configurationServiceUrl + "/agent-configuration/" + configuration.getServiceName(),
+                    headers(apiKey), objectMapper.writeValueAsString(configuration));
+            int statusCode = response.getStatusCode();
             if (statusCode >= 200 && statusCode < 300) {
                 logger.info("Uploading current configuration to the OTEL Configuration Service");
             } else {
@@ -143,44 +500,137 @@ public class AgentConfigurationServiceClient {
         }
     }
 
-    private void selfRegister(AgentConfiguration configuration, String configurationServiceUrl, String apiKey)
-            throws UnsupportedCharsetException, JacksonException {
-            HttpPost postRequest = new HttpPost(configurationServiceUrl + "/agent-configuration");
-            if (apiKey != null)
-                postRequest.addHeader(API_KEY_HEADER, apiKey);
-            postRequest.setHeader("User-Agent", USER_AGENT_HEADER);
-            postRequest.setEntity(new StringEntity(objectMapper.writeValueAsString(configuration),
-                    ContentType.APPLICATION_JSON.withCharset("UTF-8")));
-            try (CloseableHttpResponse execute = httpClient.execute(postRequest)) {
-                int statusCode = execute.getStatusLine().getStatusCode();
-                if (statusCode >= 200 && statusCode < 300) {
-                    logger.info("Self-registered as \"" + configuration.getServiceName()
-                            + "\" at the OTEL Configuration Service");
-                } else {
-                    logger.severe("Self registering failed with status code: " + statusCode);
-                }
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Failed to self-register at the OTEL Configuration Service", e);
+    private void selfRegister(AgentConfiguration configuration, String configurationServiceUrl, String apiKey) {
+        try {
+            Response response = transport.send("POST", configurationServiceUrl + "/agent-configuration",
+                    headers(apiKey), objectMapper.writeValueAsString(configuration));
+            int statusCode = response.getStatusCode();
+            if (statusCode >= 200 && statusCode < 300) {
+                logger.info("Self-registered as \"" + configuration.getServiceName()
+                        + "\" at the OTEL Configuration Service");
+            } else {
+                logger.severe("Self registering failed with status code: " + statusCode);
             }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to self-register at the OTEL Configuration Service", e);
+        }
     }
 
+    /**
+     * Posts the metrics counted since they were last posted successfully, so
+     * that the counts of a failed post are part of the next one.
+     */
     private void postMetrics(String serviceName, String configurationServiceUrl, String apiKey, SamplerMetrics metrics)
-            throws UnsupportedCharsetException, ClientProtocolException, IOException {
-    	if (metrics != null) {
-	        HttpPost postRequest = new HttpPost(configurationServiceUrl + "/metrics/" + serviceName);
-	        if (apiKey != null)
-	            postRequest.addHeader(API_KEY_HEADER, apiKey);
-	        postRequest.setHeader("User-Agent", USER_AGENT_HEADER);
-	        // XXX: Cannot invoke "no.domstol.otel.trace.samplers.SamplerMetrics.copyAndClear()" because "metrics" is null
-	        postRequest.setEntity(new StringEntity(objectMapper.writeValueAsString(metrics.copyAndClear()),
-	                ContentType.APPLICATION_JSON.withCharset("UTF-8")));
-	        try (CloseableHttpResponse execute = httpClient.execute(postRequest)) {
-	            int statusCode = execute.getStatusLine().getStatusCode();
-	            if (statusCode > 300) {
-	                logger.severe("Metrics post failed with status code: " + statusCode);
-	            }
-	        }
-    	}
-	}
+            throws IOException {
+        if (metrics != null) {
+            int failures = breaker.getUnreportedFailures();
+            SamplerMetrics.Snapshot snapshot = snapshot(metrics, failures);
+            Response response = transport.send("POST", configurationServiceUrl + "/metrics/" + serviceName,
+                    headers(apiKey), objectMapper.writeValueAsString(snapshot));
+            int statusCode = response.getStatusCode();
+            if (isSuccess(statusCode)) {
+                commit(metrics, snapshot, failures);
+            } else if (statusCode > 300) {
+                logger.severe("Metrics post failed with status code: " + statusCode);
+            }
+        }
+    }
+
+    /**
+     * @return the metrics counted since they were last posted, along with the
+     *         state of the circuit and the given failures not yet reported, to
+     *         commit once posted
+     */
+    private SamplerMetrics.Snapshot snapshot(SamplerMetrics metrics, int failures) {
+        SamplerMetrics.Snapshot snapshot = metrics.take();
+        snapshot.setCircuitBreaker(breaker.getState().name(), failures);
+        return snapshot;
+    }
+
+    /**
+     * Commits the metrics posted, and the failures reported along with them,
+     * so that neither is reported again.
+     */
+    private void commit(SamplerMetrics metrics, SamplerMetrics.Snapshot snapshot, int failures) {
+        if (metrics.commit(snapshot)) {
+            breaker.reported(failures);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the status code is that of a successful
+     *         request, <code>304 Not Modified</code> included
+     */
+    private static boolean isSuccess(int statusCode) {
+        return statusCode >= 200 && statusCode < 300 || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return the headers sent with every request, to which more can be added
+     */
+    private static Map<String, String> headers(String apiKey) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", USER_AGENT_HEADER);
+        if (apiKey != null)
+            headers.put(API_KEY_HEADER, apiKey);
+        return headers;
+    }
+
+    /**
+     * @return the transport sending the requests, created with the client
+     *         and timeouts of the configuration the first time
+     */
+    private synchronized ServiceTransport transport(ConfigProperties otelConfig) {
+        if (transport == null) {
+            transport = ServiceTransport.create(client(otelConfig),
+                    otelConfig.getDuration("otel.configuration.service.connect.timeout", CONNECT_TIMEOUT),
+                    otelConfig.getDuration("otel.configuration.service.timeout", TIMEOUT));
+        }
+        return transport;
+    }
+
+    /**
+     * @return the circuit breaker, created with the interval, backoff and
+     *         threshold of the configuration the first time
+     */
+    synchronized CircuitBreaker breaker(ConfigProperties otelConfig) {
+        if (breaker == null) {
+            breaker = new CircuitBreaker(
+                    otelConfig.getInt("otel.configuration.service.failure.threshold", FAILURE_THRESHOLD),
+                    otelConfig.getDuration("otel.configuration.service.interval", INTERVAL).toMillis(),
+                    maxBackoff(otelConfig));
+        }
+        return breaker;
+    }
+
+    private static long maxBackoff(ConfigProperties otelConfig) {
+        return otelConfig.getDuration("otel.configuration.service.backoff.max", MAX_BACKOFF).toMillis();
+    }
+
+    /**
+     * @param otelConfig OpenTelemetry configuration
+     * @return the time to wait before synchronizing for the first time, a
+     *         random part of the interval, so that agents started at the same
+     *         time do not all synchronize at the same time
+     * @since 1.8
+     */
+    public Duration getInitialDelay(ConfigProperties otelConfig) {
+        return Duration.ofMillis(breaker(otelConfig).initialDelay());
+    }
+
+    /**
+     * @param otelConfig OpenTelemetry configuration
+     * @return the time to wait before synchronizing again: the interval, or
+     *         the time left until the service is tried again if it cannot be
+     *         reached
+     * @since 1.8
+     */
+    public Duration getNextDelay(ConfigProperties otelConfig) {
+        return Duration.ofMillis(breaker(otelConfig).nextDelay());
+    }
+
+    private static Client client(ConfigProperties otelConfig) {
+        return Client.valueOf(otelConfig.getString("otel.configuration.service.client", Client.apache.name()));
+    }
 
 }
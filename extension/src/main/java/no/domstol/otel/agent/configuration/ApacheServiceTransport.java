@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends requests using Apache HttpClient, blocking the calling thread until
+ * the response has been read or the connect or socket timeout has passed.
+ * The socket timeout bounds the time between packets, not the time of the
+ * whole request, but the responses of the service are small.
+ *
+ * @since 1.8
+ */
+class ApacheServiceTransport extends ServiceTransport {
+
+    private static final Logger logger = Logger.getLogger(ApacheServiceTransport.class.getName());
+    private final CloseableHttpClient httpClient;
+
+    ApacheServiceTransport(Duration connectTimeout, Duration timeout) {
+        super(connectTimeout, timeout);
+        httpClient = HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig(timeout))
+                .build();
+    }
+
+    private RequestConfig requestConfig(Duration timeout) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout((int) connectTimeout.toMillis())
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) timeout.toMillis())
+                .build();
+    }
+
+    @Override
+    Response send(String method, String url, Map<String, String> headers, String body, Duration timeout)
+            throws IOException {
+        RequestBuilder request = RequestBuilder.create(method).setUri(url);
+        if (!timeout.equals(this.timeout)) {
+            request.setConfig(requestConfig(timeout));
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+        if (body != null) {
+            request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON.withCharset("UTF-8")));
+        }
+        try (CloseableHttpResponse response = httpClient.execute(request.build())) {
+            HttpEntity entity = response.getEntity();
+            Response result = new Response(response.getStatusLine().getStatusCode(),
+                    entity == null ? null : EntityUtils.toString(entity));
+            for (Header header : response.getAllHeaders()) {
+                result.addHeader(header.getName(), header.getValue());
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close the connections to the service", e);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of whether the configuration service can be reached, so that
+ * agents stop asking a service that is down and do not all come back at the
+ * same time.
+ * <p>
+ * The circuit is <code>closed</code> while requests succeed, and synchronizing
+ * is done at the regular interval. After a number of consecutive failures it
+ * is <code>open</code>, and no requests are made until a delay has passed. The
+ * circuit is then <code>half_open</code>, letting a single request through as
+ * a probe: if it succeeds the circuit is closed again, otherwise it is opened
+ * for a longer delay.
+ * </p>
+ * <p>
+ * The circuit is shared by the threads polling and watching the service, and
+ * only the first of them asking once the delay has passed makes the probe.
+ * The others are not let through until the outcome of the probe is recorded,
+ * or it has taken as long as the delay, in case it never is.
+ * </p>
+ * <p>
+ * The delays follow the <em>decorrelated jitter</em> backoff, each a random
+ * time between the interval and three times the previous delay, up to a
+ * maximum. Agents failing at the same time thus probe at different times,
+ * and the spread grows with the delay.
+ * </p>
+ *
+ * @since 1.8
+ */
+class CircuitBreaker {
+
+    /** The states of the circuit */
+    enum State {
+        /** The service is reachable */
+        closed,
+        /** The service is not reachable, and is not asked until the delay has passed */
+        open,
+        /** The delay has passed, and a single request is let through as a probe */
+        half_open
+    }
+
+    private final int failureThreshold;
+    private final long interval;
+    private final long maxDelay;
+    private final Random random;
+    private final LongSupplier clock;
+
+    private State state = State.closed;
+    private int consecutiveFailures;
+
+    /** The failures not yet reported to the service */
+    private int unreportedFailures;
+
+    /** The most recent delay, in milliseconds */
+    private long delay;
+
+    /**
+     * The time at which a probe may be made, or another one if the probe made
+     * is not recorded by then, in milliseconds
+     */
+    private long retryAt;
+
+    /**
+     * @param failureThreshold the number of consecutive failures opening the
+     *                         circuit
+     * @param interval         the regular interval, and the shortest delay, in
+     *                         milliseconds
+     * @param maxDelay         the longest delay, in milliseconds
+     */
+    CircuitBreaker(int failureThreshold, long interval, long maxDelay) {
+        this(failureThreshold, interval, maxDelay, new Random(), System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long interval, long maxDelay, Random random, LongSupplier clock) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.interval = interval;
+        this.maxDelay = Math.max(interval, maxDelay);
+        this.random = random;
+        this.clock = clock;
+        this.delay = interval;
+    }
+
+    /**
+     * @return whether a request may be made, turning an open circuit half open
+     *         once the delay has passed, and letting only the caller making
+     *         the probe through
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.closed) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        if (now < retryAt) {
+            return false;
+        }
+        state = State.half_open;
+        retryAt = now + delay;
+        return true;
+    }
+
+    /**
+     * Records that a request succeeded, closing the circuit.
+     *
+     * @return the number of consecutive failures before this success
+     */
+    synchronized int succeeded() {
+        int failures = consecutiveFailures;
+        state = State.closed;
+        consecutiveFailures = 0;
+        delay = interval;
+        return failures;
+    }
+
+    /**
+     * Records that a request failed, opening the circuit if the probe failed
+     * or there have been too many failures in a row.
+     *
+     * @return whether the circuit was opened
+     */
+    synchronized boolean failed() {
+        consecutiveFailures++;
+        unreportedFailures++;
+        if (state == State.half_open || state == State.closed && consecutiveFailures >= failureThreshold) {
+            delay = jitter(interval, delay, maxDelay, random);
+            retryAt = clock.getAsLong() + delay;
+            state = State.open;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the time until the next synchronization, in milliseconds: the
+     *         interval, or the time left until a probe may be made
+     */
+    synchronized long nextDelay() {
+        if (state == State.open) {
+            return Math.max(0, retryAt - clock.getAsLong());
+        }
+        return interval;
+    }
+
+    /**
+     * @return a random time between zero and the interval, to spread the
+     *         first synchronization of agents started at the same time
+     */
+    long initialDelay() {
+        return (long) (random.nextDouble() * interval);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the number of failures not yet reported to the service, whether
+     *         or not the service has been reached since
+     */
+    synchronized int getUnreportedFailures() {
+        return unreportedFailures;
+    }
+
+    /**
+     * Records that failures have been reported to the service, so that they
+     * are not reported again.
+     *
+     * @param failures the number of failures reported, as returned by
+     *                 {@link #getUnreportedFailures()} when reporting them
+     */
+    synchronized void reported(int failures) {
+        unreportedFailures -= failures;
+    }
+
+    /**
+     * @return the most recent delay the circuit was opened for, in milliseconds
+     */
+    synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Computes the next delay using decorrelated jitter.
+     *
+     * @param base     the shortest delay
+     * @param previous the previous delay
+     * @param max      the longest delay
+     * @param random   the source of randomness
+     * @return a random delay between the base and three times the previous
+     *         delay, but no longer than the maximum
+     */
+    static long jitter(long base, long previous, long max, Random random) {
+        long upper = Math.max(base, Math.min(max, previous * 3));
+        return Math.min(max, base + (long) (random.nextDouble() * (upper - base)));
+    }
+
+}
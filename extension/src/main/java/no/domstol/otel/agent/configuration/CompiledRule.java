@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanKind;
+
+/**
+ * A rule group as compiled by {@link AgentConfiguration#getRules()}: the
+ * conditions a span must satisfy to match the group and, for a
+ * <code>sample</code> rule, the ratio of the matching spans to sample. The
+ * span name and kind are tested by conditions of their own, so they are never
+ * confused with attributes of the same names, and typed attributes by
+ * {@link TypedCondition comparisons} parsed when compiling.
+ * <p>
+ * A compiled rule is never changed, and is shared by all configurations with
+ * the same rules.
+ * </p>
+ *
+ * @since 1.8
+ */
+public final class CompiledRule {
+
+    /** The pattern the span name must match, or <code>null</code> */
+    private final Pattern spanName;
+
+    /** The kinds of span accepted, or <code>null</code> to accept any */
+    private final Set<SpanKind> spanKinds;
+
+    private final Map<AttributeKey<String>, Pattern> attributes;
+
+    private final List<TypedCondition> typedConditions;
+
+    /** The ratio of the matching spans to sample, or NaN */
+    private final double ratio;
+
+    /**
+     * Creates an <code>include</code> or <code>exclude</code> rule.
+     *
+     * @param attributes the pattern each attribute must match
+     */
+    public CompiledRule(Map<AttributeKey<String>, Pattern> attributes) {
+        this(null, null, attributes, Collections.emptyList(), Double.NaN);
+    }
+
+    /**
+     * Creates a rule sampling a ratio of the spans it matches.
+     *
+     * @param attributes the pattern each attribute must match
+     * @param ratio      the ratio of the matching spans to sample, or NaN if
+     *                   the rule is not a <code>sample</code> rule
+     * @throws IllegalArgumentException if the ratio is not between 0 and 1
+     */
+    public CompiledRule(Map<AttributeKey<String>, Pattern> attributes, double ratio) {
+        this(null, null, attributes, Collections.emptyList(), ratio);
+    }
+
+    /**
+     * Creates a rule testing the span name and kind and typed attributes as
+     * well as the string attributes.
+     *
+     * @param spanName        the pattern the span name must match, or
+     *                        <code>null</code> to not test the name
+     * @param spanKinds       the kinds of span accepted, or <code>null</code>
+     *                        to accept any kind
+     * @param attributes      the pattern each string attribute must match
+     * @param typedConditions the comparisons of typed attributes
+     * @param ratio           the ratio of the matching spans to sample, or NaN
+     *                        if the rule is not a <code>sample</code> rule
+     * @throws IllegalArgumentException if no span kind is accepted, or the
+     *                                  ratio is not between 0 and 1
+     */
+    public CompiledRule(Pattern spanName, Set<SpanKind> spanKinds, Map<AttributeKey<String>, Pattern> attributes,
+            List<TypedCondition> typedConditions, double ratio) {
+        if (spanKinds != null && spanKinds.isEmpty()) {
+            throw new IllegalArgumentException("A rule testing the span kind must accept at least one kind");
+        }
+        if (!Double.isNaN(ratio) && !(ratio >= 0 && ratio <= 1)) {
+            throw new IllegalArgumentException("The ratio of a rule must be between 0 and 1, was " + ratio);
+        }
+        this.spanName = spanName;
+        this.spanKinds = spanKinds == null ? null : Collections.unmodifiableSet(EnumSet.copyOf(spanKinds));
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        this.typedConditions = List.copyOf(typedConditions);
+        this.ratio = ratio;
+    }
+
+    /**
+     * @return the pattern the span name must match, or <code>null</code> if
+     *         the name is not tested
+     */
+    public Pattern getSpanName() {
+        return spanName;
+    }
+
+    /**
+     * @return the kinds of span accepted, or <code>null</code> if any kind is
+     */
+    public Set<SpanKind> getSpanKinds() {
+        return spanKinds;
+    }
+
+    /**
+     * @return the pattern each string attribute must match, in the order given
+     */
+    public Map<AttributeKey<String>, Pattern> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the comparisons of typed attributes
+     */
+    public List<TypedCondition> getTypedConditions() {
+        return typedConditions;
+    }
+
+    /**
+     * @return the ratio of the matching spans to sample, or NaN if this is
+     *         not a <code>sample</code> rule
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @return <code>true</code> if this rule samples a ratio of the spans it
+     *         matches
+     */
+    public boolean hasRatio() {
+        return !Double.isNaN(ratio);
+    }
+
+    /**
+     * @return the conditions of the rule
+     */
+    @Override
+    public String toString() {
+        StringBuilder conditions = new StringBuilder("{");
+        if (spanName != null) {
+            conditions.append(AgentConfiguration.SPAN_NAME).append('=').append(spanName);
+        }
+        if (spanKinds != null) {
+            conditions.append(conditions.length() > 1 ? ", " : "").append(AgentConfiguration.SPAN_KIND).append('=');
+            for (SpanKind kind : spanKinds) {
+                conditions.append(kind).append(',');
+            }
+            conditions.setLength(conditions.length() - 1);
+        }
+        for (Map.Entry<AttributeKey<String>, Pattern> condition : attributes.entrySet()) {
+            conditions.append(conditions.length() > 1 ? ", " : "").append(condition.getKey().getKey()).append('=')
+                    .append(condition.getValue());
+        }
+        for (TypedCondition condition : typedConditions) {
+            conditions.append(conditions.length() > 1 ? ", " : "").append(condition);
+        }
+        return conditions.append('}').toString();
+    }
+
+}
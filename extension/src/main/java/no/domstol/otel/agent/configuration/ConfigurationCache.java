@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps the configuration most recently read from the configuration service
+ * in a file, so that the agent can start using it at once, rather than
+ * waiting for the service, or using the defaults should it not be reachable.
+ * <p>
+ * The file is replaced atomically, writing the new content to a temporary
+ * file in the same directory and moving it in place, so that a reader never
+ * sees a partially written file, even if the JVM stops while writing.
+ * </p>
+ *
+ * @since 1.8
+ */
+public class ConfigurationCache {
+
+    private static final Logger logger = Logger.getLogger(ConfigurationCache.class.getName());
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Path file;
+
+    /**
+     * The content of the file
+     */
+    static class Entry {
+
+        /** The entity tag of the configuration at the service */
+        @JsonProperty("revision")
+        String revision;
+
+        @JsonProperty("configuration")
+        AgentConfiguration configuration;
+    }
+
+    /**
+     * @param file the cache file, which need not exist
+     */
+    public ConfigurationCache(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the cached configuration of a service.
+     *
+     * @param serviceName the name of the service
+     * @param client      the client to let know the revision of the
+     *                    configuration, so that it is not read again unless
+     *                    changed, or <code>null</code>
+     * @return the configuration, or <code>null</code> if there is none for the
+     *         service or it cannot be read
+     */
+    public AgentConfiguration read(String serviceName, AgentConfigurationServiceClient client) {
+        try {
+            Entry entry = objectMapper.readValue(Files.readAllBytes(file), Entry.class);
+            if (entry.configuration == null || !serviceName.equals(entry.configuration.getServiceName())) {
+                return null;
+            }
+            if (client != null && entry.revision != null) {
+                client.setRevision(entry.revision, entry.configuration.getTimestamp());
+            }
+            return entry.configuration;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (Exception e) {
+            logger.warning("Could not read the cached configuration from " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cached configuration.
+     *
+     * @param configuration the configuration
+     * @param revision      the entity tag of the configuration at the service,
+     *                      or <code>null</code> if not known
+     */
+    public void write(AgentConfiguration configuration, String revision) {
+        Entry entry = new Entry();
+        entry.revision = revision;
+        entry.configuration = configuration;
+        Path temporary = null;
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            Files.write(temporary, objectMapper.writeValueAsBytes(entry));
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.fine("Cached the configuration in " + file);
+        } catch (Exception e) {
+            logger.warning("Could not cache the configuration in " + file + ": " + e);
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException suppressed) {
+                    logger.log(Level.FINE, "Could not delete " + temporary, suppressed);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends requests using <code>java.net.http.HttpClient</code>, which needs no
+ * library besides the JDK. Requests are sent asynchronously, the connections
+ * being served by a selector rather than a thread each, and the calling
+ * thread only waits for the response until the deadline of the request, the
+ * request being cancelled should it pass. HTTP/2 is used where the service
+ * supports it, so that the requests of a synchronization share one
+ * connection, otherwise HTTP/1.1 connections are kept open and reused.
+ *
+ * @since 1.8
+ */
+class JdkServiceTransport extends ServiceTransport {
+
+    private final HttpClient httpClient;
+
+    /** The requests waiting for a response, so that they can be aborted */
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    JdkServiceTransport(Duration connectTimeout, Duration timeout) {
+        super(connectTimeout, timeout);
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    @Override
+    Response send(String method, String url, Map<String, String> headers, String body, Duration timeout)
+            throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeout)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        if (body != null) {
+            request.header("Content-Type", "application/json; charset=UTF-8");
+        }
+        CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(request.build(),
+                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        pending.add(future);
+        try {
+            if (closed) {
+                throw new IOException("The connection to the service has been closed");
+            }
+            // the request timeout only covers waiting for the headers
+            HttpResponse<String> response = future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            String responseBody = response.body();
+            Response result = new Response(response.statusCode(),
+                    responseBody == null || responseBody.isEmpty() ? null : responseBody);
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                for (String value : header.getValue()) {
+                    result.addHeader(header.getKey(), value);
+                }
+            }
+            return result;
+        } catch (TimeoutException e) {
+            throw new HttpTimeoutException("No response from " + url + " within " + timeout.toMillis() + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url);
+        } catch (CancellationException e) {
+            throw new IOException("The request to " + url + " was aborted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            // frees the connection unless the response has been read
+            future.cancel(true);
+            pending.remove(future);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (CompletableFuture<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the rules compiled by {@link AgentConfiguration#getRules()}, so that
+ * a configuration is only compiled once, however many times it is read or
+ * reloaded.
+ * <p>
+ * The compiled rule sets are keyed by a copy of the rule specification, so
+ * that equal specifications, such as those of a configuration that only
+ * changed the sample ratio, share one compiled form. A few recent rule sets
+ * are kept. The patterns are also interned, so that a rule set differing from
+ * the previous one in a few rules only compiles the patterns that are new.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class RuleCache {
+
+    private static final Logger logger = Logger.getLogger(RuleCache.class.getName());
+
+    /** The number of compiled rule sets kept */
+    static final int MAX_RULE_SETS = 8;
+
+    /** The number of patterns kept, the pool is emptied when it is exceeded */
+    static final int MAX_PATTERNS = 4096;
+
+    /** The compiled rule sets, by their specification, least recently used first */
+    private static final Map<Object, Map<String, List<CompiledRule>>> ruleSets =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Object, Map<String, List<CompiledRule>>> eldest) {
+                    return size() > MAX_RULE_SETS;
+                }
+            };
+
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+    /** The number of patterns compiled, rather than found in the pool */
+    private static final AtomicLong compiledPatterns = new AtomicLong();
+
+    private RuleCache() {
+    }
+
+    /**
+     * Returns the compiled rules of a specification, compiling them unless an
+     * equal specification has been compiled recently.
+     *
+     * @param spec     the rule specification
+     * @param compiler compiles the specification
+     * @return the compiled rules, which must not be modified
+     */
+    static Map<String, List<CompiledRule>> get(List<AgentConfiguration.Rules> spec,
+            Supplier<Map<String, List<CompiledRule>>> compiler) {
+        Object key = key(spec);
+        synchronized (ruleSets) {
+            Map<String, List<CompiledRule>> compiled = ruleSets.get(key);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        long start = System.nanoTime();
+        long before = compiledPatterns.get();
+        Map<String, List<CompiledRule>> compiled = compiler.get();
+        long elapsed = System.nanoTime() - start;
+        int groups = 0;
+        for (List<CompiledRule> set : compiled.values()) {
+            groups += set.size();
+        }
+        logger.info(String.format("Compiled %d rules in %.3f ms, %d new patterns, %d patterns pooled", groups,
+                elapsed / 1e6, compiledPatterns.get() - before, patterns.size()));
+        synchronized (ruleSets) {
+            ruleSets.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the compiled form of a pattern, compiling it unless it is
+     * already in the pool.
+     *
+     * @param regex the regular expression
+     * @param flags the match flags
+     * @return the compiled pattern
+     */
+    static Pattern pattern(String regex, int flags) {
+        String key = flags + ":" + regex;
+        Pattern pattern = patterns.get(key);
+        if (pattern == null) {
+            if (patterns.size() >= MAX_PATTERNS) {
+                patterns.clear();
+            }
+            pattern = Pattern.compile(regex, flags);
+            compiledPatterns.incrementAndGet();
+            patterns.put(key, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * @return the number of patterns in the pool
+     */
+    static int poolSize() {
+        return patterns.size();
+    }
+
+    /**
+     * @return the number of patterns compiled so far
+     */
+    static long compiledPatterns() {
+        return compiledPatterns.get();
+    }
+
+    /**
+     * Copies the content of a specification, so that the key is not affected
+     * by changes to the configuration it was read from.
+     */
+    private static Object key(List<AgentConfiguration.Rules> spec) {
+        List<Object> key = new ArrayList<>();
+        for (AgentConfiguration.Rules rules : spec) {
+            key.add(copy(rules.getExclude()));
+            key.add(copy(rules.getInclude()));
+            key.add(copy(rules.getSample()));
+        }
+        return key;
+    }
+
+    private static List<Map<String, String>> copy(List<Map<String, String>> groups) {
+        if (groups == null) {
+            return null;
+        }
+        List<Map<String, String>> copy = new ArrayList<>();
+        for (Map<String, String> group : groups) {
+            copy.add(group == null ? null : new HashMap<>(group));
+        }
+        return copy;
+    }
+
+}
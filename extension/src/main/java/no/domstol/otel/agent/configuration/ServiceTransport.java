@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends the requests of the {@link AgentConfigurationServiceClient} to the
+ * OpenTelemetry Configuration Service, using the HTTP client given by
+ * <code>otel.configuration.service.client</code>. Every request has a
+ * deadline, so that a service that does not answer cannot hold the thread
+ * synchronizing the configuration.
+ *
+ * @since 1.8
+ */
+abstract class ServiceTransport implements Closeable {
+
+    /** The HTTP clients that can be used */
+    enum Client {
+        /** Apache HttpClient, blocking on the thread synchronizing */
+        apache,
+        /**
+         * <code>java.net.http.HttpClient</code>, sending asynchronously using
+         * HTTP/2 where the service supports it
+         */
+        jdk
+    }
+
+    /** The time allowed for connecting to the service */
+    final Duration connectTimeout;
+
+    /** The time allowed for a request, unless given for it */
+    final Duration timeout;
+
+    ServiceTransport(Duration connectTimeout, Duration timeout) {
+        this.connectTimeout = connectTimeout;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return a transport using the given HTTP client
+     */
+    static ServiceTransport create(Client client, Duration connectTimeout, Duration timeout) {
+        switch (client) {
+        case jdk:
+            return new JdkServiceTransport(connectTimeout, timeout);
+        default:
+            return new ApacheServiceTransport(connectTimeout, timeout);
+        }
+    }
+
+    /**
+     * Sends a request, waiting for the response until the default timeout
+     * has passed.
+     *
+     * @see #send(String, String, Map, String, Duration)
+     */
+    Response send(String method, String url, Map<String, String> headers, String body) throws IOException {
+        return send(method, url, headers, body, timeout);
+    }
+
+    /**
+     * Sends a request, waiting for the response, including its body, until
+     * the given time has passed.
+     *
+     * @param method  the request method
+     * @param url     the request URL
+     * @param headers the request headers
+     * @param body    JSON to send, or <code>null</code> to send nothing
+     * @param timeout the time to wait for the response
+     * @return the response
+     * @throws IOException if the request fails or times out
+     */
+    abstract Response send(String method, String url, Map<String, String> headers, String body, Duration timeout)
+            throws IOException;
+
+    /**
+     * Aborts the requests that are waiting, failing them, and releases the
+     * connections.
+     */
+    @Override
+    public abstract void close();
+
+    /**
+     * A response that has been read completely.
+     */
+    static final class Response {
+
+        private final int statusCode;
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final String body;
+
+        Response(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        /**
+         * Adds a header value, keeping those added before for the same name.
+         */
+        Response addHeader(String name, String value) {
+            headers.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+            return this;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return the body, or <code>null</code> if there is none
+         */
+        String getBody() {
+            return body;
+        }
+
+        /**
+         * @return the first value of the header, or <code>null</code> if not
+         *         present
+         */
+        String getFirstHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        /**
+         * @return every value of the header, in the order received
+         */
+        List<String> getHeaders(String name) {
+            return headers.getOrDefault(name, Collections.emptyList());
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import io.opentelemetry.api.common.AttributeKey;
+
+/**
+ * A condition of a rule group comparing a typed attribute, a
+ * <code>long</code>, <code>double</code> or <code>boolean</code> value. The
+ * rules name such an attribute with the type appended to the key, e.g.
+ * <code>http.status_code:long</code>, and give a comparison as the value:
+ * <ul>
+ * <li><code>eq</code>, <code>ne</code>, <code>lt</code>, <code>le</code>,
+ * <code>gt</code> or <code>ge</code> followed by a value, e.g.
+ * <code>ge 500</code>. A value alone is the same as <code>eq</code>.</li>
+ * <li><code>range</code> followed by the lowest and highest value, e.g.
+ * <code>range 500..599</code>.</li>
+ * <li><code>in</code> followed by a list of values, e.g.
+ * <code>in 401,403</code>.</li>
+ * </ul>
+ * Booleans may only be compared using <code>eq</code> and <code>ne</code>.
+ * The comparison is parsed when the rules are compiled, and the operands are
+ * held as values of the attribute type.
+ *
+ * @since 1.8
+ */
+public final class TypedCondition {
+
+    public enum Operator {
+        eq, ne, lt, le, gt, ge, range, in
+    }
+
+    private final AttributeKey<?> key;
+    private final Operator operator;
+    private final List<Object> operands;
+
+    /**
+     * @param key      the typed attribute key
+     * @param operator the comparison
+     * @param operands the values compared with, of the attribute type: one,
+     *                 the lowest and highest of a <code>range</code>, or at
+     *                 least one for <code>in</code>
+     * @throws IllegalArgumentException if the key is not of a typed
+     *                                  attribute, or the operator and
+     *                                  operands do not fit the type
+     */
+    public TypedCondition(AttributeKey<?> key, Operator operator, List<?> operands) {
+        Class<?> type = type(key);
+        if (type == Boolean.class && operator != Operator.eq && operator != Operator.ne) {
+            throw new IllegalArgumentException(
+                    "A boolean '" + key.getKey() + "' can only be compared using eq or ne, not " + operator);
+        }
+        int count = operator == Operator.range ? 2 : operator == Operator.in ? Math.max(operands.size(), 1) : 1;
+        if (operands.size() != count) {
+            throw new IllegalArgumentException("The comparison " + operator + " of '" + key.getKey() + "' takes "
+                    + count + " values, was " + operands);
+        }
+        for (Object operand : operands) {
+            if (!type.isInstance(operand)) {
+                throw new IllegalArgumentException(
+                        "Cannot compare '" + key.getKey() + "' of type " + key.getType() + " with " + operand);
+            }
+        }
+        this.key = key;
+        this.operator = operator;
+        this.operands = List.copyOf(operands);
+    }
+
+    /**
+     * Parses a rule condition on a typed attribute.
+     *
+     * @param name       the key of the rule condition, e.g.
+     *                   <code>http.status_code:long</code>
+     * @param comparison the value of the rule condition, e.g.
+     *                   <code>ge 500</code>
+     * @return the condition
+     * @throws IllegalArgumentException if the key does not name a typed
+     *                                  attribute, or the comparison is not
+     *                                  valid
+     */
+    public static TypedCondition parse(String name, String comparison) {
+        AttributeKey<?> key = key(name);
+        if (key == null) {
+            throw new IllegalArgumentException("'" + name + "' does not name a typed attribute");
+        }
+        String trimmed = comparison.trim();
+        int space = trimmed.indexOf(' ');
+        Operator operator;
+        try {
+            operator = space < 0 ? Operator.eq : Operator.valueOf(trimmed.substring(0, space));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown comparison of '" + key.getKey() + "': " + comparison);
+        }
+        String operand = space < 0 ? trimmed : trimmed.substring(space + 1).trim();
+        String[] values;
+        if (operator == Operator.range) {
+            int dots = operand.indexOf("..");
+            if (dots < 0) {
+                throw new IllegalArgumentException(
+                        "A range of '" + key.getKey() + "' must be given as <lowest>..<highest>: " + comparison);
+            }
+            values = new String[] { operand.substring(0, dots), operand.substring(dots + 2) };
+        } else if (operator == Operator.in) {
+            values = operand.split(",");
+        } else {
+            values = new String[] { operand };
+        }
+        List<Object> operands = new ArrayList<>();
+        for (String value : values) {
+            try {
+                operands.add(value(key, value.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid comparison of '" + key.getKey() + "': " + comparison, e);
+            }
+        }
+        return new TypedCondition(key, operator, operands);
+    }
+
+    /**
+     * Returns the typed attribute key named by a rule condition key.
+     *
+     * @param name the key of the rule condition
+     * @return the typed key, or <code>null</code> if the key does not name a
+     *         typed attribute
+     */
+    static AttributeKey<?> key(String name) {
+        int colon = name.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        String attribute = name.substring(0, colon);
+        switch (name.substring(colon + 1)) {
+        case "long":
+            return AttributeKey.longKey(attribute);
+        case "double":
+            return AttributeKey.doubleKey(attribute);
+        case "boolean":
+            return AttributeKey.booleanKey(attribute);
+        default:
+            return null;
+        }
+    }
+
+    private static Class<?> type(AttributeKey<?> key) {
+        switch (key.getType()) {
+        case LONG:
+            return Long.class;
+        case DOUBLE:
+            return Double.class;
+        case BOOLEAN:
+            return Boolean.class;
+        default:
+            throw new IllegalArgumentException("Cannot compare attributes of type " + key.getType());
+        }
+    }
+
+    private static Object value(AttributeKey<?> key, String value) {
+        switch (key.getType()) {
+        case LONG:
+            return Long.parseLong(value);
+        case DOUBLE:
+            return Double.parseDouble(value);
+        default:
+            if (!value.equals("true") && !value.equals("false")) {
+                throw new IllegalArgumentException("Invalid boolean '" + key.getKey() + "': " + value);
+            }
+            return Boolean.valueOf(value);
+        }
+    }
+
+    /**
+     * @return the typed attribute compared
+     */
+    public AttributeKey<?> getKey() {
+        return key;
+    }
+
+    /**
+     * @return the comparison
+     */
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * @return the values compared with, of the attribute type
+     */
+    public List<Object> getOperands() {
+        return operands;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        TypedCondition other = (TypedCondition) obj;
+        return key.equals(other.key) && operator == other.operator && operands.equals(other.operands);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, operator, operands);
+    }
+
+    /**
+     * @return the condition as given in the rules, e.g.
+     *         <code>http.status_code:long=range 500..599</code>
+     */
+    @Override
+    public String toString() {
+        StringBuilder condition = new StringBuilder(key.getKey()).append(':')
+                .append(key.getType().name().toLowerCase(Locale.ROOT)).append('=').append(operator)
+                .append(' ');
+        for (Object operand : operands) {
+            condition.append(operand).append(operator == Operator.range ? ".." : ",");
+        }
+        condition.setLength(condition.length() - (operator == Operator.range ? 2 : 1));
+        return condition.toString();
+    }
+
+}
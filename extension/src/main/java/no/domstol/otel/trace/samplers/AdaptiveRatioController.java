@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+/**
+ * Adjusts the ratio of a parent based trace id ratio sampler so that about a
+ * given number of root spans are sampled per minute.
+ * <p>
+ * The samplers created count the root spans they are asked to decide. At a
+ * fixed interval the rate of root spans is smoothed with an exponentially
+ * weighted moving average, and the ratio is set to the target divided by that
+ * rate. A sampler is immutable, so when the ratio changes a new sampler is
+ * created, to be swapped in by the caller; the count is shared by all of
+ * them.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class AdaptiveRatioController {
+
+    /** The seconds between adjustments */
+    static final long INTERVAL_SECONDS = 10;
+
+    /** The weight of the latest rate in the moving average */
+    private static final double SMOOTHING = 0.3;
+
+    /** Changes of the ratio smaller than this fraction are ignored */
+    private static final double TOLERANCE = 0.01;
+
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    private final LongSupplier clock;
+    private final LongAdder roots = new LongAdder();
+
+    private volatile double targetSpansPerMinute;
+
+    // the following are only used by the thread making adjustments
+    private double rootsPerMinute = -1;
+    private long previousRoots;
+    private long previousTime;
+
+    private volatile double ratio;
+    private volatile Sampler sampler;
+
+    /**
+     * @param targetSpansPerMinute the number of root spans to sample per minute
+     * @param initialRatio         the ratio to use until the rate is known
+     */
+    AdaptiveRatioController(double targetSpansPerMinute, double initialRatio) {
+        this(targetSpansPerMinute, initialRatio, System::nanoTime);
+    }
+
+    AdaptiveRatioController(double targetSpansPerMinute, double initialRatio, LongSupplier clock) {
+        this.clock = clock;
+        this.targetSpansPerMinute = targetSpansPerMinute;
+        this.ratio = clamp(initialRatio);
+        this.sampler = createSampler(ratio);
+        this.previousTime = clock.getAsLong();
+    }
+
+    /**
+     * @return the sampler using the current ratio
+     */
+    Sampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * @return the ratio currently used
+     */
+    double getRatio() {
+        return ratio;
+    }
+
+    void setTargetSpansPerMinute(double targetSpansPerMinute) {
+        this.targetSpansPerMinute = targetSpansPerMinute;
+    }
+
+    /**
+     * Forgets the rate observed, to be used if the sampler has not been in use
+     * for a while.
+     */
+    void reset() {
+        rootsPerMinute = -1;
+        previousRoots = roots.sum();
+        previousTime = clock.getAsLong();
+    }
+
+    /**
+     * Updates the rate of root spans with those counted since the previous
+     * adjustment, and the ratio accordingly.
+     *
+     * @return a sampler using the new ratio, or <code>null</code> if the ratio
+     *         has not changed
+     */
+    Sampler adjust() {
+        long now = clock.getAsLong();
+        long count = roots.sum();
+        long elapsed = now - previousTime;
+        if (elapsed <= 0) {
+            return null;
+        }
+        double observed = (count - previousRoots) * NANOS_PER_MINUTE / elapsed;
+        previousRoots = count;
+        previousTime = now;
+        rootsPerMinute = rootsPerMinute < 0 ? observed
+                : SMOOTHING * observed + (1 - SMOOTHING) * rootsPerMinute;
+        double next = rootsPerMinute > 0 ? clamp(targetSpansPerMinute / rootsPerMinute) : 1.0;
+        if (Math.abs(next - ratio) <= TOLERANCE * ratio) {
+            return null;
+        }
+        ratio = next;
+        sampler = createSampler(next);
+        return sampler;
+    }
+
+    private static double clamp(double ratio) {
+        return Math.max(0.0, Math.min(1.0, ratio));
+    }
+
+    private Sampler createSampler(double ratio) {
+        return Sampler.parentBased(new RootSampler(Sampler.traceIdRatioBased(ratio), roots));
+    }
+
+    /**
+     * Counts the root spans before deciding them by their trace id. Only used
+     * as the root sampler of a parent based sampler, so only root spans are
+     * counted.
+     */
+    private static final class RootSampler implements Sampler {
+
+        private final Sampler delegate;
+        private final LongAdder roots;
+
+        RootSampler(Sampler delegate, LongAdder roots) {
+            this.delegate = delegate;
+            this.roots = roots;
+        }
+
+        @Override
+        public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+                Attributes attributes, List<LinkData> parentLinks) {
+            roots.increment();
+            return delegate.shouldSample(parentContext, traceId, name, spanKind, attributes, parentLinks);
+        }
+
+        @Override
+        public String getDescription() {
+            return "AdaptiveSampler{" + delegate.getDescription() + "}";
+        }
+
+        @Override
+        public String toString() {
+            return getDescription();
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+
+/**
+ * A bounded cache of the decisions of a {@link RuleProgram}, keyed by the
+ * values of the attributes the rules test, and the span name and kind if
+ * tested. Services tend to see the same few
+ * combinations of values over and over, so most spans can be decided without
+ * evaluating the rules.
+ * <p>
+ * The cache is set-associative: a combination of values may only be stored in
+ * one of the {@value #WAYS} slots of the set selected by its hash, and when the
+ * set is full, the slot to replace is chosen using the CLOCK algorithm, giving
+ * recently used entries a second chance. Entries are immutable and replaced
+ * as a whole, so the cache is safe to use from any number of threads without
+ * locking, and looking up a cached decision does not allocate.
+ * </p>
+ * <p>
+ * A cache belongs to a single program and is discarded with it, so replacing
+ * the rules invalidates all cached decisions.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class DecisionCache {
+
+    /** Returned by {@link #get(String, SpanKind, Attributes)} when the decision is not cached */
+    static final int MISS = -2;
+
+    /** The number of slots in each set */
+    static final int WAYS = 4;
+
+    private static final class Entry {
+        final int hash;
+        final Object[] values;
+        final int kind;
+        final int group;
+        /** Set when the entry is used, cleared when the clock hand passes */
+        volatile boolean referenced;
+
+        Entry(int hash, Object[] values, int kind, int group) {
+            this.hash = hash;
+            this.values = values;
+            this.kind = kind;
+            this.group = group;
+        }
+    }
+
+    private final AttributeKey<?>[] keys;
+    /** The index of the key standing for the span name, or -1 */
+    private final int nameKey;
+    private final boolean testsKind;
+    private final AtomicReferenceArray<Entry> entries;
+    /** The position of the clock hand within each set */
+    private final byte[] hands;
+    private final int mask;
+
+    /**
+     * @param keys the attribute keys tested by the rules
+     * @param size the maximum number of decisions to cache, rounded up to a
+     *             power of two
+     */
+    DecisionCache(AttributeKey<?>[] keys, int size) {
+        this(keys, -1, false, size);
+    }
+
+    /**
+     * @param keys      the attribute keys tested by the rules
+     * @param nameKey   the index of the key standing for the span name, or -1
+     *                  if the rules do not test it
+     * @param testsKind whether the rules test the span kind
+     * @param size      the maximum number of decisions to cache, rounded up to
+     *                  a power of two
+     */
+    DecisionCache(AttributeKey<?>[] keys, int nameKey, boolean testsKind, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The decision cache size must be positive, was " + size);
+        }
+        int wanted = (size + WAYS - 1) / WAYS;
+        int sets = wanted <= 1 ? 1 : Integer.highestOneBit(wanted - 1) << 1;
+        this.keys = keys;
+        this.nameKey = nameKey;
+        this.testsKind = testsKind;
+        this.entries = new AtomicReferenceArray<>(sets * WAYS);
+        this.hands = new byte[sets];
+        this.mask = sets - 1;
+    }
+
+    /**
+     * @return the maximum number of decisions cached
+     */
+    int capacity() {
+        return entries.length();
+    }
+
+    /**
+     * Looks up the decision for the values of the attributes.
+     *
+     * @param attributes the span attributes
+     * @return the deciding group, or {@link #MISS}
+     */
+    int get(Attributes attributes) {
+        return get(null, null, attributes);
+    }
+
+    /**
+     * Looks up the decision for a span.
+     *
+     * @param name       the span name
+     * @param spanKind   the span kind
+     * @param attributes the span attributes
+     * @return the deciding group as returned by
+     *         {@link RuleProgram#evaluate(String, SpanKind, Attributes)}, or
+     *         {@link #MISS}
+     */
+    int get(String name, SpanKind spanKind, Attributes attributes) {
+        int kind = kind(spanKind);
+        int hash = hash(name, kind, attributes);
+        int base = (hash & mask) * WAYS;
+        for (int i = 0; i < WAYS; i++) {
+            Entry entry = entries.get(base + i);
+            if (entry != null && entry.hash == hash && entry.kind == kind
+                    && matches(entry.values, name, attributes)) {
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                return entry.group;
+            }
+        }
+        return MISS;
+    }
+
+    /**
+     * Caches the decision for the values of the attributes.
+     *
+     * @param attributes the span attributes
+     * @param group      the deciding group
+     */
+    void put(Attributes attributes, int group) {
+        put(null, null, attributes, group);
+    }
+
+    /**
+     * Caches the decision for a span, replacing an entry that has not been
+     * used recently if the set is full.
+     *
+     * @param name       the span name
+     * @param spanKind   the span kind
+     * @param attributes the span attributes
+     * @param group      the deciding group
+     */
+    void put(String name, SpanKind spanKind, Attributes attributes, int group) {
+        Object[] values = new Object[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            values[k] = value(k, name, attributes);
+        }
+        int kind = kind(spanKind);
+        int hash = hash(values, kind);
+        int set = hash & mask;
+        int base = set * WAYS;
+        Entry entry = new Entry(hash, values, kind, group);
+        for (int i = 0; i < WAYS; i++) {
+            if (entries.compareAndSet(base + i, null, entry)) {
+                return;
+            }
+        }
+        // the set is full, advance the clock hand to an entry not referenced
+        // since it last passed. Races between threads only affect which entry
+        // is replaced.
+        int hand = hands[set];
+        for (int i = 0; i < 2 * WAYS; i++) {
+            Entry candidate = entries.get(base + hand);
+            hand = (hand + 1) % WAYS;
+            if (candidate == null || !candidate.referenced) {
+                break;
+            }
+            candidate.referenced = false;
+        }
+        hand = (hand + WAYS - 1) % WAYS;
+        entries.set(base + hand, entry);
+        hands[set] = (byte) ((hand + 1) % WAYS);
+    }
+
+    private Object value(int k, String name, Attributes attributes) {
+        return k == nameKey ? name : attributes.get(keys[k]);
+    }
+
+    private int kind(SpanKind spanKind) {
+        return testsKind && spanKind != null ? spanKind.ordinal() : -1;
+    }
+
+    private boolean matches(Object[] values, String name, Attributes attributes) {
+        for (int k = 0; k < keys.length; k++) {
+            Object value = value(k, name, attributes);
+            if (value == null ? values[k] != null : !value.equals(values[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(String name, int kind, Attributes attributes) {
+        int hash = kind;
+        for (int k = 0; k < keys.length; k++) {
+            Object value = value(k, name, attributes);
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return spread(hash);
+    }
+
+    private static int hash(Object[] values, int kind) {
+        int hash = kind;
+        for (Object value : values) {
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -31,6 +31,9 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -40,11 +43,15 @@ import tools.jackson.databind.ObjectMapper;
 import tools.jackson.dataformat.yaml.YAMLFactory;
 import com.google.auto.service.AutoService;
 
+import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.sdk.autoconfigure.spi.ConfigProperties;
 import io.opentelemetry.sdk.autoconfigure.spi.traces.ConfigurableSamplerProvider;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
 import no.domstol.otel.agent.configuration.AgentConfiguration;
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
 import no.domstol.otel.agent.configuration.AgentConfigurationServiceClient;
+import no.domstol.otel.agent.configuration.ConfigurationCache;
+import no.domstol.otel.trace.samplers.DynamicSamplerWrapper.RuleScope;
 
 /**
  * This type dynamically provides configurations for the OTEL agent. In order to
@@ -54,9 +61,13 @@ import no.domstol.otel.agent.configuration.AgentConfigurationServiceClient;
  * <li>Read the configuration from a file if specified in
  * <code>otel.configuration.service.file</code></li>
  * <li>Read the configuration from a service if specified in
- * <code>otel.configuration.service.url</code></li>
+ * <code>otel.configuration.service.url</code>, in the background, using the
+ * configuration cached in <code>otel.configuration.cache.file</code>, if
+ * specified, until then</li>
  * <li>Upload the current configuration if not found in the service</li>
- * <li>Periodically poll the service for an updated configuration</li>
+ * <li>Periodically poll the service for an updated configuration, or watch it
+ * if <code>otel.configuration.service.watch</code> is <code>true</code>,
+ * backing off while the service cannot be reached</li>
  * </ol>
  *
  * In order to make use of this sampler provider, the agent must be configured
@@ -76,8 +87,17 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
     private static ConfigurationFileReader localConfigReader;
     private static DynamicSamplerWrapper wrapper;
     private static ConfigProperties initialConfig;
-    private static AgentConfiguration configuration;
+    private static volatile AgentConfiguration configuration;
     private static ScheduledExecutorService executor;
+    private static ConfigurationCache cache;
+    private static int decisionCacheSize;
+    private static int timingInterval;
+    private static RegexEngine regexEngine;
+    private static RuleScope ruleScope;
+    private static List<SpanKind> entryKinds;
+    private static AdaptiveRatioController adaptiveController;
+    private static ScheduledExecutorService adaptiveExecutor;
+    private static ScheduledExecutorService reorderExecutor;
 
     private class ConfigurationFileReader extends Thread {
         private WatchService watchService;
@@ -122,13 +142,7 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
         private AgentConfiguration readConfigurationFile() {
             logger.info("Loading OTEL Agent configuration from " + path);
             try {
-                ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-                AgentConfiguration configuration = mapper.readValue(path.toFile(), AgentConfiguration.class);
-                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
-                Instant lastModifiedTime = attrs.lastModifiedTime().toInstant();
-                ZonedDateTime utcTime = lastModifiedTime.atZone(ZoneId.of("UTC"));
-                configuration.setTimestamp(utcTime.toInstant().toEpochMilli());
-                return configuration;
+                return DynamicSamplerProvider.readConfigurationFile(path);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -137,6 +151,25 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
 
     }
 
+    /**
+     * Reads an agent configuration from a YAML file, using the time the file
+     * was last modified as the timestamp of the configuration.
+     *
+     * @param path the configuration file
+     * @return the configuration
+     * @throws IOException if the file cannot be read
+     * @since 1.8
+     */
+    static AgentConfiguration readConfigurationFile(Path path) throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        AgentConfiguration configuration = mapper.readValue(path.toFile(), AgentConfiguration.class);
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Instant lastModifiedTime = attrs.lastModifiedTime().toInstant();
+        ZonedDateTime utcTime = lastModifiedTime.atZone(ZoneId.of("UTC"));
+        configuration.setTimestamp(utcTime.toInstant().toEpochMilli());
+        return configuration;
+    }
+
     public DynamicSamplerProvider() {
     }
 
@@ -148,6 +181,18 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
         String configurationServiceUrl = config.getString("otel.configuration.service.url");
         String serviceName = initialConfig.getString("otel.service.name");
         String readOnly = config.getString("otel.configuration.readOnly");
+        boolean watch = config.getBoolean("otel.configuration.service.watch", false);
+        decisionCacheSize = config.getInt("otel.configuration.decision.cache.size", 0);
+        timingInterval = config.getInt("otel.configuration.timing.interval", 0);
+        int reorderInterval = config.getInt("otel.configuration.reorder.interval", 60);
+        regexEngine = RegexEngine.valueOf(config.getString("otel.configuration.regex.engine", "java"));
+        ruleScope = RuleScope.valueOf(config.getString("otel.configuration.rules.scope", "all"));
+        entryKinds = new ArrayList<>();
+        List<String> kinds = config.getList("otel.configuration.rules.entry.kinds",
+                Arrays.asList("SERVER", "CONSUMER"));
+        for (String kind : kinds) {
+            entryKinds.add(SpanKind.valueOf(kind.toUpperCase()));
+        }
 
         // there is no reason to not specify a name for the service, unless one
         // is not sampling anything
@@ -171,55 +216,197 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
         	configuration.setReadOnly(false);
         }
 
+        // whether a configuration has been read, rather than the defaults
+        boolean configured = false;
+
         // read the configuration from a file if specified
         if (configurationServiceFile != null) {
             File file = new File(configurationServiceFile);
             if (!file.exists()) {
                 logger.severe("The specified configuration file '" + file + "' does not exist!");
             }
+            configured = file.exists();
             localConfigReader = new ConfigurationFileReader(configurationServiceFile);
             configuration = localConfigReader.readConfigurationFile();
-            wrapper = new DynamicSamplerWrapper(getConfiguredSampler(configuration), configuration.getRules());
+            wrapper = createWrapper(configuration);
         } else {
             logger.info("Sampler configuration file not specified, using defaults");
         }
 
         // read the configuration from the service if specified
         if (configurationServiceUrl != null) {
-            configuration = remoteConfigReader.synchronize(configuration, config, null);
-            wrapper = new DynamicSamplerWrapper(getConfiguredSampler(configuration), configuration.getRules());
-            executor = Executors.newScheduledThreadPool(1);
-            executor.scheduleWithFixedDelay(DynamicSamplerProvider::synchronizeWithConfigurationService, 5, 30,
-                    TimeUnit.SECONDS);
+            String cacheFile = config.getString("otel.configuration.cache.file");
+            if (cacheFile != null) {
+                cache = new ConfigurationCache(Paths.get(cacheFile));
+                AgentConfiguration cached = cache.read(serviceName, remoteConfigReader);
+                // used as if read from the service, unless the file is newer
+                if (cached != null && !configuration.isReadOnly()
+                        && cached.getTimestamp() >= configuration.getTimestamp()) {
+                    logger.info("Using the configuration cached in " + cache.getFile()
+                            + " until the OTEL Configuration Service is reached");
+                    configuration = cached;
+                    configured = true;
+                }
+            }
+            wrapper = createWrapper(configuration);
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "configuration-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // the service is asked in the background, so that starting the
+            // agent does not wait for it. Only running on the defaults, it is
+            // asked at once, so that the rules apply as soon as possible.
+            // Either way it is then asked at a random time within the
+            // interval, so that agents started together do not keep
+            // synchronizing together
+            if (!configured) {
+                executor.execute(DynamicSamplerProvider::askConfigurationService);
+            }
+            executor.schedule(DynamicSamplerProvider::synchronizeWithConfigurationService,
+                    remoteConfigReader.getInitialDelay(config).toMillis(), TimeUnit.MILLISECONDS);
+            if (watch) {
+                remoteConfigReader.watch(configuration.getServiceName(), config,
+                        DynamicSamplerProvider::applyRemoteConfiguration);
+            }
+        }
+
+        if (reorderInterval > 0 && reorderExecutor == null) {
+            reorderExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rule-reorder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reorderExecutor.scheduleWithFixedDelay(DynamicSamplerProvider::reorderRules, reorderInterval,
+                    reorderInterval, TimeUnit.SECONDS);
         }
         return wrapper;
     }
 
-    private static void synchronizeWithConfigurationService() {
+    /**
+     * Creates the sampler for the initial configuration. Should its rules not
+     * be supported by the regular expression engine, the sampler is created
+     * without rules, so that spans are still sampled, until a configuration
+     * with rules that are supported is read.
+     */
+    private static DynamicSamplerWrapper createWrapper(AgentConfiguration configuration) {
+        Sampler sampler = getConfiguredSampler(configuration);
+        RegexEngine engine = getRegexEngine(configuration);
+        RuleScope scope = getRuleScope(configuration);
+        try {
+            return new DynamicSamplerWrapper(sampler, configuration.getRules(), decisionCacheSize, timingInterval,
+                    engine, scope, entryKinds);
+        } catch (IllegalArgumentException e) {
+            return new DynamicSamplerWrapper(sampler, null, decisionCacheSize, timingInterval, engine, scope,
+                    entryKinds);
+        }
+    }
+
+    /**
+     * @return the regular expression engine of the configuration, or the one
+     *         given by <code>otel.configuration.regex.engine</code> unless it
+     *         specifies one
+     */
+    private static RegexEngine getRegexEngine(AgentConfiguration configuration) {
+        return configuration.getRegexEngine() != null ? configuration.getRegexEngine() : regexEngine;
+    }
+
+    /**
+     * @return the scope given by <code>otel.configuration.rules.scope</code>
+     *         if the sampler of the configuration is parent based, otherwise
+     *         {@link RuleScope#all}, as the sampler would be overruled by the
+     *         parent
+     */
+    private static RuleScope getRuleScope(AgentConfiguration configuration) {
+        if (ruleScope == RuleScope.all || configuration.getSampler().isParentBased()) {
+            return ruleScope;
+        }
+        logger.warning("The rule scope '" + ruleScope + "' only applies to the parentbased_* samplers, applying the "
+                + "rules to every span sampled by " + configuration.getSampler());
+        return RuleScope.all;
+    }
+
+    /**
+     * Lets the sampler reorder the attributes tested by the rules, by what it
+     * has observed of their cost and selectivity.
+     */
+    private static void reorderRules() {
+        try {
+            if (wrapper != null) {
+                wrapper.reorderRules();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Synchronizes with the service, applying the configuration read from it.
+     */
+    private static void askConfigurationService() {
         try {
-            AgentConfiguration newConfiguration = remoteConfigReader.synchronize(configuration, initialConfig,
+            AgentConfiguration current = configuration;
+            AgentConfiguration newConfiguration = remoteConfigReader.synchronize(current, initialConfig,
                     wrapper.getMetrics());
+            // the very same configuration if it has not changed at the service
+            if (newConfiguration != current) {
+                applyRemoteConfiguration(newConfiguration);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Synchronizes with the service, scheduling the next synchronization after
+     * the delay given by the client, which grows while the service cannot be
+     * reached.
+     */
+    private static void synchronizeWithConfigurationService() {
+        try {
+            askConfigurationService();
+        } finally {
+            executor.schedule(DynamicSamplerProvider::synchronizeWithConfigurationService,
+                    remoteConfigReader.getNextDelay(initialConfig).toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Uses the configuration read from the service, unless the current one is
+     * read only or the same. Called both when polling and when watching the
+     * service, hence synchronized.
+     */
+    private static synchronized void applyRemoteConfiguration(AgentConfiguration newConfiguration) {
+        try {
             if (!configuration.isReadOnly() && !newConfiguration.equalsIgnoreReadOnly(configuration)) {
                 // must override this since it is the local configuration that
                 // decides whether or not the flag should be set
                 configuration.setReadOnly(false);
                 logger.info("Updating sampler configuration from OTEL Configuration Service");
-                wrapper.setCurrentSampler(getConfiguredSampler(newConfiguration));
-                wrapper.setRules(newConfiguration.getRules());
+                wrapper.update(getConfiguredSampler(newConfiguration), getRuleScope(newConfiguration),
+                        newConfiguration.getRules(), getRegexEngine(newConfiguration));
                 configuration = newConfiguration;
+                if (cache != null) {
+                    cache.write(newConfiguration, remoteConfigReader.getRevision());
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static void updateConfigurationFromFile() {
+    /**
+     * Uses the configuration read from the file, unless it is the same. Called
+     * by the thread watching the file while the service may be polled and
+     * watched, hence synchronized.
+     */
+    private static synchronized void updateConfigurationFromFile() {
         try {
             AgentConfiguration newConfiguration = localConfigReader.readConfigurationFile();
             if (!newConfiguration.equals(configuration)) {
                 logger.info("Updating sampler configuration from file");
-                wrapper.setCurrentSampler(getConfiguredSampler(newConfiguration));
-                wrapper.setRules(newConfiguration.getRules());
+                wrapper.update(getConfiguredSampler(newConfiguration), getRuleScope(newConfiguration),
+                        newConfiguration.getRules(), getRegexEngine(newConfiguration));
                 if (configuration.isReadOnly() != newConfiguration.isReadOnly())
                     logger.info("Read only state is now " + newConfiguration.isReadOnly());
                 configuration = newConfiguration;
@@ -252,12 +439,91 @@ public class DynamicSamplerProvider implements ConfigurableSamplerProvider {
                 .parentBasedBuilder(Sampler.traceIdRatioBased(configuration.getSampleRatio()))
                     .build();
             break;
+        case ratelimited:
+            configuredSampler = new RateLimitingSampler(getMaxSpansPerSecond(configuration));
+            break;
+        case parentbased_ratelimited:
+            configuredSampler = Sampler.parentBased(new RateLimitingSampler(getMaxSpansPerSecond(configuration)));
+            break;
+        case adaptive:
+            configuredSampler = getAdaptiveSampler(configuration);
+            break;
         default:
             break;
         }
         return configuredSampler;
     }
 
+    /**
+     * Returns the sampler of the adaptive sampler controller, creating the
+     * controller and scheduling its adjustments unless it already exists.
+     */
+    private static synchronized Sampler getAdaptiveSampler(AgentConfiguration configuration) {
+        Double target = configuration.getTargetSpansPerMinute();
+        if (target == null) {
+            logger.warning("'targetSpansPerMinute' is not specified for the adaptive sampler, no spans will be sampled");
+            target = 0.0;
+        }
+        if (adaptiveController == null) {
+            adaptiveController = new AdaptiveRatioController(target, configuration.getSampleRatio());
+            if (adaptiveExecutor == null) {
+                adaptiveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "adaptive-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            adaptiveExecutor.scheduleAtFixedRate(DynamicSamplerProvider::adjustAdaptiveSampler,
+                    AdaptiveRatioController.INTERVAL_SECONDS, AdaptiveRatioController.INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        } else {
+            adaptiveController.setTargetSpansPerMinute(target);
+        }
+        return adaptiveController.getSampler();
+    }
+
+    /**
+     * Lets the adaptive sampler controller adjust the ratio, and swaps in the
+     * sampler using the new ratio. Nothing is adjusted while the configuration
+     * uses another sampler, but the controller is kept in case it is used
+     * again.
+     */
+    private static synchronized void adjustAdaptiveSampler() {
+        try {
+            if (adaptiveController == null || wrapper == null) {
+                return;
+            }
+            Sampler current = adaptiveController.getSampler();
+            if (wrapper.getCurrentSampler() != current) {
+                adaptiveController.reset();
+                wrapper.getMetrics().setEffectiveSampleRatio(Double.NaN);
+                return;
+            }
+            Sampler next = adaptiveController.adjust();
+            if (next != null) {
+                if (!wrapper.replaceSampler(current, next)) {
+                    // replaced by a new configuration while adjusting
+                    wrapper.getMetrics().setEffectiveSampleRatio(Double.NaN);
+                    return;
+                }
+                logger.fine("Adaptive sampler ratio is now " + adaptiveController.getRatio());
+            }
+            wrapper.getMetrics().setEffectiveSampleRatio(adaptiveController.getRatio());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double getMaxSpansPerSecond(AgentConfiguration configuration) {
+        Double maxSpansPerSecond = configuration.getMaxSpansPerSecond();
+        if (maxSpansPerSecond == null) {
+            logger.warning("'maxSpansPerSecond' is not specified for the " + configuration.getSampler()
+                    + " sampler, no spans will be sampled");
+            return 0;
+        }
+        return maxSpansPerSecond;
+    }
+
     @Override
     public String getName() {
         return "dynamic";
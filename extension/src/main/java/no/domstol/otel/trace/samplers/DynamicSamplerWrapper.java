@@ -17,19 +17,24 @@
  */
 package no.domstol.otel.trace.samplers;
 
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
-import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.sdk.trace.data.LinkData;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+import no.domstol.otel.agent.configuration.CompiledRule;
 
 /**
  * This type serves as a basic wrapper for the actual {@link Sampler}
@@ -40,78 +45,201 @@ import io.opentelemetry.sdk.trace.samplers.SamplingResult;
  */
 public class DynamicSamplerWrapper implements Sampler {
 
+    /**
+     * Which spans the filtering rules apply to. Spans the rules do not apply
+     * to are sampled if and only if their parent is, without evaluating the
+     * rules or consulting the sampler, as a <code>parentbased_*</code> sampler
+     * would. A scope other than {@link #all} is therefore only to be used
+     * with such a sampler, as a sampler deciding by itself would otherwise be
+     * overruled, and {@link DynamicSamplerProvider} uses {@link #all} with any
+     * other sampler.
+     *
+     * @since 1.8
+     */
+    public enum RuleScope {
+        /** The rules apply to every span */
+        all,
+        /** The rules only apply to spans without a valid parent */
+        root,
+        /**
+         * The rules only apply to spans without a valid parent and to spans of
+         * the entry kinds, typically those of requests received from other
+         * services
+         */
+        entry,
+    }
+
     private static final Logger logger = Logger.getLogger(DynamicSamplerWrapper.class.getName());
-    private Sampler currentSampler;
-    private Map<String, List<Map<AttributeKey<String>, Pattern>>> rules;
-    private SamplerMetrics metrics;
 
-    public DynamicSamplerWrapper(Sampler initialSampler, Map<String, List<Map<AttributeKey<String>, Pattern>>> rules) {
-        this.setCurrentSampler(initialSampler);
-        this.setRules(rules);
-        metrics = new SamplerMetrics();
+    /** The results of the filtering rules, these are immutable and can be shared */
+    private static final SamplingResult INCLUDED = SamplingResult.create(SamplingDecision.RECORD_AND_SAMPLE);
+    private static final SamplingResult EXCLUDED = SamplingResult.create(SamplingDecision.DROP);
+
+    /**
+     * The sampler and rules in use, replaced as a whole by the methods
+     * changing either, which are synchronized so that no change is lost.
+     */
+    private volatile SamplerState state = SamplerState.INITIAL;
+    private final SamplerMetrics metrics;
+    private final int decisionCacheSize;
+    private final LatencyHistogram latency;
+    /** The entry span kinds, as bits by ordinal */
+    private final int entryKinds;
+    /** The engine evaluating the regular expressions of the rules */
+    private volatile RegexEngine regexEngine = RegexEngine.java;
+
+    public DynamicSamplerWrapper(Sampler initialSampler, Map<String, List<CompiledRule>> rules) {
+        this(initialSampler, rules, 0, 0);
+    }
+
+    /**
+     * @param initialSampler    the sampler to use unless the rules decide
+     * @param rules             the filtering rules
+     * @param decisionCacheSize the maximum number of filtering decisions to
+     *                          cache, 0 to evaluate the rules for every span
+     * @param timingInterval    time one in this many sampling decisions, 0 to
+     *                          not time them at all
+     * @since 1.8
+     */
+    public DynamicSamplerWrapper(Sampler initialSampler, Map<String, List<CompiledRule>> rules,
+            int decisionCacheSize, int timingInterval) {
+        this(initialSampler, rules, decisionCacheSize, timingInterval, RegexEngine.java);
+    }
+
+    /**
+     * @param initialSampler    the sampler to use unless the rules decide
+     * @param rules             the filtering rules
+     * @param decisionCacheSize the maximum number of filtering decisions to
+     *                          cache, 0 to evaluate the rules for every span
+     * @param timingInterval    time one in this many sampling decisions, 0 to
+     *                          not time them at all
+     * @param regexEngine       the engine evaluating the regular expressions
+     *                          of the rules
+     * @since 1.8
+     */
+    public DynamicSamplerWrapper(Sampler initialSampler, Map<String, List<CompiledRule>> rules,
+            int decisionCacheSize, int timingInterval, RegexEngine regexEngine) {
+        this(initialSampler, rules, decisionCacheSize, timingInterval, regexEngine, RuleScope.all,
+                EnumSet.noneOf(SpanKind.class));
+    }
+
+    /**
+     * @param initialSampler    the sampler to use unless the rules decide
+     * @param rules             the filtering rules
+     * @param decisionCacheSize the maximum number of filtering decisions to
+     *                          cache, 0 to evaluate the rules for every span
+     * @param timingInterval    time one in this many sampling decisions, 0 to
+     *                          not time them at all
+     * @param regexEngine       the engine evaluating the regular expressions
+     *                          of the rules
+     * @param ruleScope         the spans the rules apply to, the others
+     *                          following the decision of their parent, which
+     *                          is only right for a parent based sampler
+     * @param entryKinds        the kinds of the spans the rules apply to when
+     *                          the scope is {@link RuleScope#entry}
+     * @since 1.8
+     */
+    public DynamicSamplerWrapper(Sampler initialSampler, Map<String, List<CompiledRule>> rules,
+            int decisionCacheSize, int timingInterval, RegexEngine regexEngine, RuleScope ruleScope,
+            Collection<SpanKind> entryKinds) {
+        int kinds = 0;
+        for (SpanKind kind : entryKinds) {
+            kinds |= 1 << kind.ordinal();
+        }
+        this.entryKinds = kinds;
+        this.decisionCacheSize = decisionCacheSize;
+        metrics = new SamplerMetrics(timingInterval);
+        latency = metrics.decision_latency;
+        this.update(initialSampler, ruleScope, rules, regexEngine);
     }
 
     @Override
     public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
             Attributes attributes, List<LinkData> parentLinks) {
+        // the only read of the state, the decision is made with what it holds
+        SamplerState state = this.state;
+        LatencyHistogram latency = this.latency;
+        if (latency != null && latency.shouldTime()) {
+            long start = System.nanoTime();
+            SamplingResult result = decide(state, parentContext, traceId, name, spanKind, attributes, parentLinks);
+            latency.record(System.nanoTime() - start);
+            return result;
+        }
+        return decide(state, parentContext, traceId, name, spanKind, attributes, parentLinks);
+    }
+
+    private SamplingResult decide(SamplerState state, Context parentContext, String traceId, String name,
+            SpanKind spanKind, Attributes attributes, List<LinkData> parentLinks) {
+        RuleScope ruleScope = state.ruleScope;
+        if (ruleScope != RuleScope.all) {
+            SpanContext parent = Span.fromContext(parentContext).getSpanContext();
+            if (parent.isValid()
+                    && (ruleScope == RuleScope.root || (entryKinds & 1 << spanKind.ordinal()) == 0)) {
+                // the parent has already been through the rules and the sampler
+                if (parent.isSampled()) {
+                    metrics.sampler_included_samples.increment();
+                    return INCLUDED;
+                }
+                metrics.sampler_excluded_samples.increment();
+                return EXCLUDED;
+            }
+        }
+        // the sampler of a sample rule matching the span, if any
+        Sampler sampler = null;
         try {
-            metrics.processed_samples.incrementAndGet();
-            // Include samples based on the rules provided
-            List<Map<AttributeKey<String>, Pattern>> includes = rules.get("include");
-            if (includes != null) {
-                for (Map<AttributeKey<String>, Pattern> group : includes) {
-                    boolean include = false;
-                    for (AttributeKey<String> key : group.keySet()) {
-                        String string = attributes.get(key);
-                        if (string != null && group.get(key).matcher(string).find()) {
-                                include = true;
-                            } else {
-                                include = false;
-                                break;
-                        }
-                    }
-                    if (include) {
-                        metrics.filter_included_samples.incrementAndGet();
-                        metrics.recorded_samples.incrementAndGet();
-                        logger.fine("including sample because " + group);
-                        return SamplingResult.create(SamplingDecision.RECORD_AND_SAMPLE);
-                    }
+            RuleProgram program = state.program;
+            // Include or exclude samples based on the rules provided, include
+            // rules take precedence
+            int group;
+            DecisionCache cache = program.cache();
+            if (cache == null) {
+                group = program.evaluate(name, spanKind, attributes);
+            } else {
+                group = cache.get(name, spanKind, attributes);
+                if (group == DecisionCache.MISS) {
+                    metrics.decision_cache_misses.increment();
+                    group = program.evaluate(name, spanKind, attributes);
+                    cache.put(name, spanKind, attributes, group);
+                } else {
+                    metrics.decision_cache_hits.increment();
                 }
             }
-            // Exclude samples based on the rules provided
-            List<Map<AttributeKey<String>, Pattern>> excludes = rules.get("exclude");
-            if (excludes != null) {
-                for (Map<AttributeKey<String>, Pattern> group : excludes) {
-                    boolean exclude = false;
-                    for (AttributeKey<String> key : group.keySet()) {
-                        String string = attributes.get(key);
-                        if (string != null && group.get(key).matcher(string).find()) {
-                                exclude = true;
-                            } else {
-                                exclude = false;
-                                break;
-                            }
+            if (group >= 0) {
+                program.counters().increment(group);
+                if (program.isInclude(group)) {
+                    metrics.filter_included_samples.increment();
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("including sample because " + program.describe(group));
                     }
-                    if (exclude) {
-                        metrics.filter_excluded_samples.incrementAndGet();
-                        metrics.dropped_samples.incrementAndGet();
-                        logger.fine("Dropping sample because " + group);
-                        return SamplingResult.create(SamplingDecision.DROP);
+                    return INCLUDED;
+                }
+                sampler = program.sampler(group);
+                if (sampler == null) {
+                    metrics.filter_excluded_samples.increment();
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Dropping sample because " + program.describe(group));
                     }
+                    return EXCLUDED;
+                }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Sampling because " + program.describe(group));
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
             logger.severe(e.getMessage());
         }
-        SamplingResult shouldSample = getCurrentSampler().shouldSample(parentContext, traceId, name, spanKind,
-                attributes, parentLinks);
+        if (sampler == null) {
+            sampler = state.sampler;
+        }
+        SamplingResult shouldSample = sampler.shouldSample(parentContext, traceId, name, spanKind, attributes,
+                parentLinks);
         if (shouldSample.getDecision().equals(SamplingDecision.DROP)) {
-            getMetrics().sampler_excluded_samples.incrementAndGet();
-            getMetrics().dropped_samples.incrementAndGet();
+            metrics.sampler_excluded_samples.increment();
         } else if (shouldSample.getDecision().equals(SamplingDecision.RECORD_AND_SAMPLE)) {
-            getMetrics().sampler_included_samples.incrementAndGet();
-            getMetrics().recorded_samples.incrementAndGet();
+            metrics.sampler_included_samples.increment();
+        } else {
+            metrics.sampler_record_only_samples.increment();
         }
         return shouldSample;
     }
@@ -122,15 +250,174 @@ public class DynamicSamplerWrapper implements Sampler {
     }
 
     public Sampler getCurrentSampler() {
-        return currentSampler;
+        return state.sampler;
     }
 
-    public void setCurrentSampler(Sampler currentSampler) {
-        this.currentSampler = currentSampler;
+    public synchronized void setCurrentSampler(Sampler currentSampler) {
+        state = state.withSampler(currentSampler);
+    }
+
+    /**
+     * Replaces the sampler, unless it has been replaced by another since it
+     * was read.
+     *
+     * @param expected    the sampler expected to be in use
+     * @param replacement the sampler to use instead
+     * @return <code>true</code> if the sampler was replaced
+     * @since 1.8
+     */
+    public synchronized boolean replaceSampler(Sampler expected, Sampler replacement) {
+        if (state.sampler != expected) {
+            return false;
+        }
+        state = state.withSampler(replacement);
+        return true;
     }
 
-    public void setRules(Map<String, List<Map<AttributeKey<String>, Pattern>>> rules) {
-        this.rules = rules;
+    /**
+     * Replaces the filtering rules. The rules are compiled into a
+     * {@link RuleProgram} here, once, so that no conversion is needed while
+     * sampling. Any decisions cached for the previous rules are discarded,
+     * unless these are the very rules in use, as returned by
+     * {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     * for an unchanged rule set, which are not compiled again.
+     *
+     * @param rules the rules as returned by
+     *              {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     */
+    public void setRules(Map<String, List<CompiledRule>> rules) {
+        RuleProgram program = compile(rules, regexEngine);
+        synchronized (this) {
+            // count the hits of the new rules before they can be used
+            metrics.setRuleCounters(program.counters());
+            state = state.withProgram(program);
+        }
+    }
+
+    /**
+     * Replaces both the sampler and the filtering rules at once, so that no
+     * span is sampled using the new sampler and the previous rules, or the
+     * other way around.
+     *
+     * @param sampler the sampler to use unless the rules decide
+     * @param rules   the rules as returned by
+     *                {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     * @since 1.8
+     */
+    public void update(Sampler sampler, Map<String, List<CompiledRule>> rules) {
+        update(sampler, rules, regexEngine);
+    }
+
+    /**
+     * Replaces both the sampler and the filtering rules at once, evaluating
+     * the regular expressions of the rules using the given engine from now
+     * on, and keeping the scope of the rules.
+     *
+     * @param sampler     the sampler to use unless the rules decide
+     * @param rules       the rules as returned by
+     *                    {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     * @param regexEngine the engine evaluating the regular expressions
+     * @throws IllegalArgumentException if a rule is not supported by the
+     *                                  engine, in which case nothing is
+     *                                  replaced
+     * @since 1.8
+     */
+    public void update(Sampler sampler, Map<String, List<CompiledRule>> rules,
+            RegexEngine regexEngine) {
+        update(sampler, null, rules, regexEngine);
+    }
+
+    /**
+     * Replaces the sampler, the spans the filtering rules apply to and the
+     * rules at once, evaluating the regular expressions of the rules using
+     * the given engine from now on. A scope other than {@link RuleScope#all}
+     * is only to be given with a parent based sampler.
+     *
+     * @param sampler     the sampler to use unless the rules decide
+     * @param ruleScope   the spans the rules apply to, the others following
+     *                    the decision of their parent, or <code>null</code>
+     *                    to keep the scope in use
+     * @param rules       the rules as returned by
+     *                    {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     * @param regexEngine the engine evaluating the regular expressions
+     * @throws IllegalArgumentException if a rule is not supported by the
+     *                                  engine, in which case nothing is
+     *                                  replaced
+     * @since 1.8
+     */
+    public void update(Sampler sampler, RuleScope ruleScope, Map<String, List<CompiledRule>> rules,
+            RegexEngine regexEngine) {
+        if (regexEngine == null) {
+            regexEngine = RegexEngine.java;
+        }
+        RuleProgram program = compile(rules, regexEngine);
+        synchronized (this) {
+            metrics.setRuleCounters(program.counters());
+            state = state.with(sampler, ruleScope != null ? ruleScope : state.ruleScope, program);
+            this.regexEngine = regexEngine;
+        }
+    }
+
+    /**
+     * Replaces the rules in use by the same rules testing the attributes in
+     * the order expected to be cheapest, as observed while sampling, unless
+     * the current order is about as cheap.
+     *
+     * @return <code>true</code> if the rules were reordered
+     * @see RuleProgram#reorder()
+     * @since 1.8
+     */
+    public boolean reorderRules() {
+        RuleProgram program = state.program;
+        RuleProgram reordered = program.reorder();
+        if (reordered == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (state.program != program) {
+                // replaced by new rules while reordering
+                return false;
+            }
+            state = state.withProgram(reordered);
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Reordered the rule attributes from " + program.describeKeys() + " to "
+                    + reordered.describeKeys());
+        }
+        return true;
+    }
+
+    /**
+     * @return the sampler and rules currently in use
+     */
+    SamplerState getState() {
+        return state;
+    }
+
+    private RuleProgram compile(Map<String, List<CompiledRule>> rules, RegexEngine engine) {
+        RuleProgram current = state.program;
+        if (rules != null && rules == current.rules() && engine == current.engine()) {
+            // the same compiled rules, e.g. when only the sampler changed, so
+            // the program, its counts and cached decisions are kept
+            return current;
+        }
+        long start = System.nanoTime();
+        RuleProgram program;
+        try {
+            program = RuleProgram.compile(rules, decisionCacheSize, engine);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Rejected the rules using the " + engine + " regular expression engine, "
+                    + "keeping the rules in use: " + e.getMessage());
+            throw e;
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Compiled %d rules into a program in %.3f ms", program.size(),
+                    (System.nanoTime() - start) / 1e6));
+            for (int group = 0; group < program.size(); group++) {
+                logger.fine("Rule " + program.id(group) + " is " + program.describe(group));
+            }
+        }
+        return program;
     }
 
     public SamplerMetrics getMetrics() {
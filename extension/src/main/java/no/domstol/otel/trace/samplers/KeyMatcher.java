@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the conditions of all rule groups testing the same attribute key,
+ * so that the attribute value is examined once regardless of how many groups
+ * test it. The result is a bitset of the groups whose condition on the key is
+ * satisfied.
+ * <p>
+ * A handful of conditions are simply tested one by one. Beyond that, exact
+ * values are looked up in a hash table, and the other literal kinds are found
+ * in a single pass using a {@link LiteralAutomaton}. Regular expressions are
+ * always tested one by one, as <code>java.util.regex</code> cannot combine
+ * them.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class KeyMatcher {
+
+    /** The number of literal matchers tested one by one, before combining them */
+    static final int DIRECT_LIMIT = 4;
+
+    private final RuleMatcher[] direct;
+    private final long[][] directGroups;
+    private final Map<String, long[]> exact;
+    private final LiteralAutomaton automaton;
+
+    private KeyMatcher(List<RuleMatcher> direct, List<long[]> directGroups, Map<String, long[]> exact,
+            LiteralAutomaton automaton) {
+        this.direct = direct.toArray(new RuleMatcher[0]);
+        this.directGroups = directGroups.toArray(new long[0][]);
+        this.exact = exact;
+        this.automaton = automaton;
+    }
+
+    /**
+     * @param matchers the distinct matchers for the key
+     * @param groups   the groups using each matcher, as a bitset
+     * @return the combined matcher
+     */
+    static KeyMatcher compile(List<RuleMatcher> matchers, List<long[]> groups) {
+        int literals = 0;
+        for (RuleMatcher matcher : matchers) {
+            if (matcher.kind != RuleMatcher.Kind.REGEX) {
+                literals++;
+            }
+        }
+        if (literals <= DIRECT_LIMIT) {
+            return new KeyMatcher(matchers, groups, null, null);
+        }
+        List<RuleMatcher> direct = new ArrayList<>();
+        List<long[]> directGroups = new ArrayList<>();
+        Map<String, long[]> exact = new HashMap<>();
+        List<RuleMatcher> searched = new ArrayList<>();
+        List<long[]> searchedGroups = new ArrayList<>();
+        for (int i = 0; i < matchers.size(); i++) {
+            RuleMatcher matcher = matchers.get(i);
+            if (matcher.kind == RuleMatcher.Kind.EXACT) {
+                exact.put(matcher.literal, groups.get(i));
+            } else if (matcher.kind == RuleMatcher.Kind.REGEX || matcher.literal.isEmpty()) {
+                direct.add(matcher);
+                directGroups.add(groups.get(i));
+            } else {
+                searched.add(matcher);
+                searchedGroups.add(groups.get(i));
+            }
+        }
+        return new KeyMatcher(direct, directGroups, exact.isEmpty() ? null : exact,
+                searched.isEmpty() ? null : new LiteralAutomaton(searched, searchedGroups));
+    }
+
+    /**
+     * Adds the groups whose condition on this key is satisfied by the value.
+     *
+     * @param value     the attribute value
+     * @param satisfied the bitset of satisfied groups
+     */
+    void match(String value, long[] satisfied) {
+        for (int i = 0; i < direct.length; i++) {
+            if (direct[i].matches(value)) {
+                RuleProgram.or(satisfied, directGroups[i]);
+            }
+        }
+        if (exact != null) {
+            matchExact(value, satisfied);
+        }
+        if (automaton != null) {
+            automaton.search(value, satisfied);
+        }
+    }
+
+    private void matchExact(String value, long[] satisfied) {
+        long[] groups = exact.get(value);
+        if (groups != null) {
+            RuleProgram.or(satisfied, groups);
+        }
+        // "$" also matches before a final line terminator
+        int length = value.length();
+        if (length > 0 && RuleMatcher.isEnd(value, length - 1)) {
+            groups = exact.get(value.substring(0, length - 1));
+            if (groups != null) {
+                RuleProgram.or(satisfied, groups);
+            }
+        }
+        if (length > 1 && RuleMatcher.isEnd(value, length - 2)) {
+            groups = exact.get(value.substring(0, length - 2));
+            if (groups != null) {
+                RuleProgram.or(satisfied, groups);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, recording a random
+ * sample of one in every <i>n</i> sampling decisions.
+ * <p>
+ * The buckets are log-linear, like those of HdrHistogram: each power of two
+ * is divided into {@value #SUB_BUCKETS} buckets of equal width, so a duration
+ * is known within about 3% regardless of its magnitude, using a fixed and
+ * small number of counters. Durations of more than about half an hour are
+ * counted in the last bucket.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The highest power of two distinguished */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int interval;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /** The counts at the time of the previous snapshot committed, guarded by SamplerMetrics */
+    private final long[] reported = new long[BUCKETS];
+
+    /**
+     * @param interval record one in this many decisions, on average
+     */
+    LatencyHistogram(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The timing interval must be positive, was " + interval);
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * @return <code>true</code> if the current decision should be timed
+     */
+    boolean shouldTime() {
+        return interval == 1 || ThreadLocalRandom.current().nextInt(interval) == 0;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.getAndIncrement(bucket(nanos));
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest duration counted in the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+        return lowest + width - 1;
+    }
+
+    /**
+     * @return the counts of the buckets, to summarize and commit
+     */
+    long[] totals() {
+        long[] totals = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] = counts.get(i);
+        }
+        return totals;
+    }
+
+    /**
+     * @return the highest duration recorded since the previous snapshot
+     *         committed
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Summarizes the durations recorded since the previous snapshot, and
+     * commits this one.
+     *
+     * @return the summary, or <code>null</code> if nothing has been recorded
+     */
+    SamplerMetrics.Latency snapshot() {
+        long[] totals = totals();
+        long highest = max();
+        SamplerMetrics.Latency latency = snapshot(totals, highest);
+        commit(totals, highest);
+        return latency;
+    }
+
+    /**
+     * Summarizes the durations recorded since the previous snapshot committed.
+     *
+     * @param totals  the counts of the buckets, as returned by
+     *                {@link #totals()}
+     * @param highest the highest duration, as returned by {@link #max()}
+     * @return the summary, or <code>null</code> if nothing has been recorded
+     */
+    SamplerMetrics.Latency snapshot(long[] totals, long highest) {
+        long[] delta = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            delta[i] = totals[i] - reported[i];
+            count += delta[i];
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new SamplerMetrics.Latency(count, percentile(delta, count, 0.5, highest),
+                percentile(delta, count, 0.99, highest), percentile(delta, count, 0.999, highest), highest);
+    }
+
+    /**
+     * Counts the next snapshot from a snapshot reported. A duration higher
+     * than the one reported, recorded since, is kept for the next snapshot.
+     *
+     * @param totals  the counts of the buckets summarized
+     * @param highest the highest duration summarized
+     */
+    void commit(long[] totals, long highest) {
+        System.arraycopy(totals, 0, reported, 0, BUCKETS);
+        max.compareAndSet(highest, 0);
+    }
+
+    private static long percentile(long[] counts, long total, double percentile, long max) {
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // the maximum of a duration just counted may not be set yet
+                return max > 0 ? Math.min(highestValue(i), max) : highestValue(i);
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An Aho-Corasick automaton finding every occurrence of the literals of a set
+ * of {@link RuleMatcher}s in a single pass over an attribute value. Each
+ * occurrence is then checked against the position the matcher requires, and
+ * if satisfied, the rule groups of the matcher are added to the result. The
+ * automaton is built once and is immutable, so it can be shared between
+ * threads.
+ *
+ * @since 1.8
+ */
+final class LiteralAutomaton {
+
+    private static final int[] NONE = new int[0];
+
+    private final RuleMatcher[] matchers;
+    private final long[][] groups;
+
+    /** Transitions from the root for ASCII input, the most common case */
+    private final int[] rootAscii = new int[128];
+
+    /** The transitions of state <i>s</i> are found from edgeStart[s] to edgeStart[s + 1] */
+    private final int[] edgeStart;
+    private final char[] edgeChar;
+    private final int[] edgeTarget;
+    private final int[] fail;
+
+    /** The matchers ending in each state, including those found by following the failure links */
+    private final int[][] output;
+
+    /**
+     * @param matchers the matchers, none of them {@link RuleMatcher.Kind#REGEX}
+     *                 or with an empty literal
+     * @param groups   the rule groups satisfied by each matcher, as a bitset
+     */
+    LiteralAutomaton(List<RuleMatcher> matchers, List<long[]> groups) {
+        this.matchers = matchers.toArray(new RuleMatcher[0]);
+        this.groups = groups.toArray(new long[0][]);
+        // build the trie
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        outputs.add(new ArrayList<>());
+        for (int i = 0; i < this.matchers.length; i++) {
+            String literal = this.matchers[i].literal;
+            if (literal == null || literal.isEmpty()) {
+                throw new IllegalArgumentException("Cannot search for " + this.matchers[i]);
+            }
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                Integer next = trie.get(state).get(literal.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(literal.charAt(j), next);
+                    trie.add(new TreeMap<>());
+                    outputs.add(new ArrayList<>());
+                }
+                state = next;
+            }
+            outputs.get(state).add(i);
+        }
+        // flatten the transitions
+        int states = trie.size();
+        edgeStart = new int[states + 1];
+        int edges = 0;
+        for (int s = 0; s < states; s++) {
+            edgeStart[s] = edges;
+            edges += trie.get(s).size();
+        }
+        edgeStart[states] = edges;
+        edgeChar = new char[edges];
+        edgeTarget = new int[edges];
+        for (int s = 0; s < states; s++) {
+            int e = edgeStart[s];
+            for (Map.Entry<Character, Integer> edge : trie.get(s).entrySet()) {
+                edgeChar[e] = edge.getKey();
+                edgeTarget[e] = edge.getValue();
+                e++;
+            }
+        }
+        for (Map.Entry<Character, Integer> edge : trie.get(0).entrySet()) {
+            if (edge.getKey() < 128) {
+                rootAscii[edge.getKey()] = edge.getValue();
+            }
+        }
+
+        // compute the failure links breadth first, merging the outputs
+        fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>(trie.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+                int target = edge.getValue();
+                int f = fail[state];
+                int next;
+                while ((next = transition(f, edge.getKey())) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[target] = next >= 0 && next != target ? next : 0;
+                outputs.get(target).addAll(outputs.get(fail[target]));
+                queue.add(target);
+            }
+        }
+        output = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> out = outputs.get(s);
+            output[s] = out.isEmpty() ? NONE : out.stream().mapToInt(Integer::intValue).distinct().toArray();
+        }
+    }
+
+    private int transition(int state, char c) {
+        if (state == 0 && c < 128) {
+            int next = rootAscii[c];
+            return next == 0 ? -1 : next;
+        }
+        int from = edgeStart[state];
+        int to = edgeStart[state + 1];
+        int i = Arrays.binarySearch(edgeChar, from, to, c);
+        return i >= 0 ? edgeTarget[i] : -1;
+    }
+
+    /**
+     * Adds the rule groups of every matcher satisfied by the value to the
+     * result.
+     *
+     * @param value     the attribute value
+     * @param satisfied the bitset of satisfied rule groups
+     */
+    void search(String value, long[] satisfied) {
+        int state = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            int next;
+            while ((next = transition(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            int[] found = output[state];
+            for (int j = 0; j < found.length; j++) {
+                int m = found[j];
+                if (accepts(matchers[m], value, i + 1)) {
+                    RuleProgram.or(satisfied, groups[m]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether an occurrence of the literal of the matcher, ending just before
+     * the given index, is where the matcher requires it to be.
+     */
+    private static boolean accepts(RuleMatcher matcher, String value, int end) {
+        switch (matcher.kind) {
+        case EXACT:
+            return end == matcher.literal.length() && RuleMatcher.isEnd(value, end);
+        case PREFIX:
+            if (end != matcher.literal.length()) {
+                return false;
+            }
+            // fall through
+        case CONTAINS:
+            return !matcher.trailingCharacter
+                    || end < value.length() && !RuleMatcher.isLineTerminator(value.charAt(end));
+        case SUFFIX:
+            return RuleMatcher.isEnd(value, end);
+        default:
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+
+/**
+ * A sampler recording at most a given number of spans per second, allowing
+ * bursts of up to one second's worth of spans.
+ * <p>
+ * This is a token bucket implemented as a generic cell rate algorithm: rather
+ * than counting tokens, it keeps the time at which the bucket would be full
+ * again, which is advanced by the interval between spans for every span
+ * sampled. A span is sampled if doing so would not put that time more than a
+ * second ahead of now. The time is a single {@link AtomicLong} updated with
+ * compare-and-set, and the bucket is refilled simply by time passing, so no
+ * lock or background thread is needed. While the bucket is empty, spans are
+ * dropped after reading the time only, without contending for it.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class RateLimitingSampler implements Sampler {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private static final SamplingResult SAMPLED = SamplingResult.create(SamplingDecision.RECORD_AND_SAMPLE);
+    private static final SamplingResult NOT_SAMPLED = SamplingResult.create(SamplingDecision.DROP);
+
+    private final double maxSpansPerSecond;
+
+    /** The nanoseconds between spans at the maximum rate */
+    private final long interval;
+
+    /** How far ahead of now the full time may be, the size of a burst */
+    private final long tolerance;
+
+    private final LongSupplier clock;
+
+    /** The time at which the bucket will be full, the theoretical arrival time */
+    private final AtomicLong full;
+
+    /**
+     * @param maxSpansPerSecond the maximum number of spans to sample per
+     *                          second, 0 or less to sample none
+     */
+    RateLimitingSampler(double maxSpansPerSecond) {
+        this(maxSpansPerSecond, System::nanoTime);
+    }
+
+    RateLimitingSampler(double maxSpansPerSecond, LongSupplier clock) {
+        this.maxSpansPerSecond = maxSpansPerSecond;
+        this.clock = clock;
+        if (maxSpansPerSecond > 0) {
+            interval = Math.max(1, (long) (SECOND / maxSpansPerSecond));
+            // a burst of at least one span, even at less than one per second
+            tolerance = Math.max(SECOND, interval) - interval;
+        } else {
+            interval = 0;
+            tolerance = -1;
+        }
+        full = new AtomicLong(clock.getAsLong());
+    }
+
+    @Override
+    public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+            Attributes attributes, List<LinkData> parentLinks) {
+        return tryAcquire() ? SAMPLED : NOT_SAMPLED;
+    }
+
+    /**
+     * @return <code>true</code> if a span may be sampled now
+     */
+    boolean tryAcquire() {
+        if (tolerance < 0) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        while (true) {
+            long current = full.get();
+            // the time may lag far behind now, which is a full bucket
+            long start = current - now < 0 ? now : current;
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (full.compareAndSet(current, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "RateLimitingSampler{" + maxSpansPerSecond + "}";
+    }
+
+    @Override
+    public String toString() {
+        return getDescription();
+    }
+
+}
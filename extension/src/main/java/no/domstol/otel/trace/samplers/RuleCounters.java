@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the spans decided by each rule group of a {@link RuleProgram}. The
+ * counts are kept in a number of stripes, each holding a counter per group,
+ * and each thread increments the counters of the stripe selected by its id,
+ * so that threads rarely contend for the same counter. The stripes are padded
+ * so that they do not share cache lines.
+ * <p>
+ * The counters belong to a single program, so the counts of a rule set are
+ * never attributed to the rules replacing it. Like {@link SamplerMetrics},
+ * they are never reset, instead the difference since the previous snapshot
+ * committed is reported.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class RuleCounters {
+
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    /** Longs separating the stripes, the size of a cache line */
+    private static final int PADDING = 8;
+
+    private final String[] ids;
+    private final AtomicLongArray counts;
+    private final int stride;
+
+    /** The totals at the time of the previous snapshot committed, guarded by SamplerMetrics */
+    private final long[] reported;
+
+    /**
+     * @param ids the id of each rule group, in the order of the groups
+     */
+    RuleCounters(String[] ids) {
+        this.ids = ids;
+        this.stride = ids.length + PADDING;
+        this.counts = new AtomicLongArray(ids.length == 0 ? 0 : STRIPES * stride);
+        this.reported = new long[ids.length];
+    }
+
+    /**
+     * Counts a span decided by the group.
+     *
+     * @param group the index of the group
+     */
+    @SuppressWarnings("deprecation")
+    void increment(int group) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * stride + group);
+    }
+
+    /**
+     * Adds the number of spans decided by each group since the previous
+     * snapshot committed to the map, keyed by the rule id. Groups without any
+     * are left out.
+     *
+     * @param hits the counts by rule id
+     * @return the totals of the groups, to {@link #commit(long[]) commit}
+     *         once reported
+     */
+    long[] snapshot(Map<String, Long> hits) {
+        long[] totals = new long[ids.length];
+        for (int group = 0; group < ids.length; group++) {
+            long total = 0;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                total += counts.get(stripe * stride + group);
+            }
+            totals[group] = total;
+            long count = total - reported[group];
+            if (count > 0) {
+                hits.merge(ids[group], count, Long::sum);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Counts the next snapshot from the totals of a snapshot reported.
+     *
+     * @param totals the totals returned by {@link #snapshot(Map)}
+     */
+    void commit(long[] totals) {
+        System.arraycopy(totals, 0, reported, 0, reported.length);
+    }
+
+}
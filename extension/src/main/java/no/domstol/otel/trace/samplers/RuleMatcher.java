@@ -0,0 +1,393 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+
+/**
+ * Tests a single attribute value against a rule value. Rule values are Java
+ * regular expressions applied using {@link java.util.regex.Matcher#find()},
+ * but most of them are plain literals, or literals anchored at either end.
+ * These are recognized when the rule is compiled and tested using the
+ * corresponding {@link String} operations, which do not allocate. Only
+ * patterns that are actual regular expressions fall back to
+ * {@link Pattern}, reusing a {@link Matcher} per thread. The matchers are
+ * kept in a small table of each thread, shared by all rules, so compiling
+ * rules creates no thread locals, and a matcher of a rule no longer used is
+ * replaced by that of a newer rule.
+ * <p>
+ * The semantics of <code>find()</code> are preserved exactly, including that
+ * <code>$</code> also matches before a final line terminator and that
+ * <code>.</code> does not match line terminators.
+ * </p>
+ * <p>
+ * Using {@link RegexEngine#re2j}, actual regular expressions are instead
+ * evaluated by RE2/J, which takes time linear in the length of the value
+ * whatever the expression, so a badly written rule cannot backtrack
+ * catastrophically. It does not support backreferences or lookaround, and
+ * follows RE2 where the semantics differ, e.g. <code>$</code> only matches at
+ * the very end.
+ * </p>
+ *
+ * @since 1.8
+ */
+abstract class RuleMatcher {
+
+    enum Kind {
+        /** <code>^literal$</code> */
+        EXACT,
+        /** <code>^literal</code>, optionally followed by <code>.*</code> or <code>.+</code> */
+        PREFIX,
+        /** <code>literal$</code> */
+        SUFFIX,
+        /** <code>literal</code>, optionally followed by <code>.*</code> or <code>.+</code> */
+        CONTAINS,
+        /** anything else */
+        REGEX
+    }
+
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    /** The number of regular expression matchers kept by each thread, a power of two */
+    static final int MATCHER_SLOTS = 256;
+
+    /** The matchers of each thread, by the slot of their rule */
+    private static final ThreadLocal<Object[]> MATCHERS = ThreadLocal.withInitial(() -> new Object[MATCHER_SLOTS]);
+
+    /** Gives the rules compiled together slots of their own, as long as there are fewer than the slots */
+    private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+
+    final Kind kind;
+
+    /** The literal for all kinds but {@link Kind#REGEX} */
+    final String literal;
+
+    /**
+     * Whether the literal must be followed by at least one character that is
+     * not a line terminator, as with a trailing <code>.+</code>
+     */
+    final boolean trailingCharacter;
+
+    private RuleMatcher(Kind kind, String literal, boolean trailingCharacter) {
+        this.kind = kind;
+        this.literal = literal;
+        this.trailingCharacter = trailingCharacter;
+    }
+
+    /**
+     * @param value the attribute value
+     * @return <code>true</code> if the rule value can be found in the
+     *         attribute value
+     */
+    abstract boolean matches(String value);
+
+    /**
+     * Creates the cheapest matcher that behaves exactly like
+     * <code>pattern.matcher(value).find()</code>.
+     *
+     * @param pattern the compiled rule value
+     * @return a matcher for the pattern
+     */
+    static RuleMatcher of(Pattern pattern) {
+        return of(pattern, RegexEngine.java);
+    }
+
+    /**
+     * Creates the cheapest matcher for the pattern, using the given engine if
+     * it is an actual regular expression.
+     *
+     * @param pattern the compiled rule value
+     * @param engine  the engine evaluating regular expressions
+     * @return a matcher for the pattern
+     * @throws IllegalArgumentException if the engine does not support the
+     *                                  pattern
+     */
+    static RuleMatcher of(Pattern pattern, RegexEngine engine) {
+        RuleMatcher matcher = literal(pattern);
+        if (matcher != null) {
+            return matcher;
+        }
+        return engine == RegexEngine.re2j ? new Re2j(pattern) : new Regex(pattern);
+    }
+
+    /**
+     * @return a matcher for the literal the pattern denotes, or
+     *         <code>null</code> if it is not a literal
+     */
+    private static RuleMatcher literal(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        int start = 0;
+        int end = regex.length();
+        boolean anchorStart = false;
+        boolean anchorEnd = false;
+        boolean trailingCharacter = false;
+        if (regex.startsWith("^")) {
+            anchorStart = true;
+            start++;
+        } else if (regex.startsWith(".*")) {
+            // an unanchored leading ".*" may match nothing, so it adds nothing
+            start += 2;
+        }
+        if (regex.endsWith("$") && !isEscaped(regex, end - 1)) {
+            anchorEnd = true;
+            end--;
+        } else if (regex.endsWith(".*") && !isEscaped(regex, end - 2)) {
+            // a trailing ".*" may match nothing, so it adds nothing
+            end -= 2;
+        } else if (regex.endsWith(".+") && !isEscaped(regex, end - 2)) {
+            trailingCharacter = true;
+            end -= 2;
+        }
+        String literal = start <= end ? unescape(regex, start, end) : null;
+        if (literal == null) {
+            return null;
+        }
+        if (anchorStart && anchorEnd) {
+            return new Exact(literal);
+        } else if (anchorStart) {
+            return new Prefix(literal, trailingCharacter);
+        } else if (anchorEnd) {
+            return new Suffix(literal);
+        }
+        return new Contains(literal, trailingCharacter);
+    }
+
+    /**
+     * Returns the literal the part of the regular expression denotes, or
+     * <code>null</code> if it is not a literal.
+     */
+    private static String unescape(String regex, int start, int end) {
+        StringBuilder literal = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = regex.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return null;
+            }
+            if (c == '\\') {
+                // only escaped punctuation is literal, "\d", "\Q" etc. are not
+                if (++i == end) {
+                    return null;
+                }
+                c = regex.charAt(i);
+                if (Character.isLetterOrDigit(c) || Character.isSurrogate(c) || c > 0x7f) {
+                    return null;
+                }
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            }
+            literal.append(c);
+        }
+        return literal.toString();
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return (backslashes & 1) == 1;
+    }
+
+    /**
+     * Characters not matched by <code>.</code> without
+     * {@link Pattern#DOTALL}.
+     */
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Whether <code>$</code> matches at the given index of the value, that is
+     * at the end of the input or before a final line terminator.
+     */
+    static boolean isEnd(String value, int index) {
+        int length = value.length();
+        if (index == length) {
+            return true;
+        }
+        if (index == length - 2) {
+            return value.charAt(index) == '\r' && value.charAt(index + 1) == '\n';
+        }
+        if (index == length - 1) {
+            char c = value.charAt(index);
+            if (c == '\n') {
+                // there is no match between "\r" and "\n"
+                return index == 0 || value.charAt(index - 1) != '\r';
+            }
+            return isLineTerminator(c);
+        }
+        return false;
+    }
+
+    static final class Exact extends RuleMatcher {
+        Exact(String literal) {
+            super(Kind.EXACT, literal, false);
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.startsWith(literal) && isEnd(value, literal.length());
+        }
+    }
+
+    static final class Prefix extends RuleMatcher {
+        Prefix(String literal, boolean trailingCharacter) {
+            super(Kind.PREFIX, literal, trailingCharacter);
+        }
+
+        @Override
+        boolean matches(String value) {
+            if (!value.startsWith(literal)) {
+                return false;
+            }
+            return !trailingCharacter
+                    || value.length() > literal.length() && !isLineTerminator(value.charAt(literal.length()));
+        }
+    }
+
+    static final class Suffix extends RuleMatcher {
+        Suffix(String literal) {
+            super(Kind.SUFFIX, literal, false);
+        }
+
+        @Override
+        boolean matches(String value) {
+            int length = value.length();
+            // "$" may only match at one of the last three positions
+            for (int end = length; end >= length - 2 && end >= literal.length(); end--) {
+                if (isEnd(value, end) && value.startsWith(literal, end - literal.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Contains extends RuleMatcher {
+        Contains(String literal, boolean trailingCharacter) {
+            super(Kind.CONTAINS, literal, trailingCharacter);
+        }
+
+        @Override
+        boolean matches(String value) {
+            int index = value.indexOf(literal);
+            if (!trailingCharacter) {
+                return index >= 0;
+            }
+            // the literal must be followed by something, so stop when it cannot be
+            while (index >= 0 && index + literal.length() < value.length()) {
+                int next = index + literal.length();
+                if (!isLineTerminator(value.charAt(next))) {
+                    return true;
+                }
+                index = value.indexOf(literal, index + 1);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the slot of the matcher of a new regular expression rule in the
+     *         table of each thread
+     */
+    private static int nextSlot() {
+        return NEXT_SLOT.getAndIncrement() & (MATCHER_SLOTS - 1);
+    }
+
+    static final class Regex extends RuleMatcher {
+        final Pattern pattern;
+
+        /** Matchers are not thread safe, so each thread reuses its own in this slot */
+        private final int slot = nextSlot();
+
+        Regex(Pattern pattern) {
+            super(Kind.REGEX, null, false);
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean matches(String value) {
+            Object[] matchers = MATCHERS.get();
+            Object cached = matchers[slot];
+            Matcher matcher;
+            if (cached instanceof Matcher && ((Matcher) cached).pattern() == pattern) {
+                matcher = (Matcher) cached;
+            } else {
+                matcher = pattern.matcher("");
+                matchers[slot] = matcher;
+            }
+            return matcher.reset(value).find();
+        }
+    }
+
+    static final class Re2j extends RuleMatcher {
+        final com.google.re2j.Pattern pattern;
+
+        private final int slot = nextSlot();
+
+        Re2j(Pattern pattern) {
+            super(Kind.REGEX, null, false);
+            int flags = 0;
+            int unsupported = pattern.flags();
+            if ((unsupported & Pattern.CASE_INSENSITIVE) != 0) {
+                flags |= com.google.re2j.Pattern.CASE_INSENSITIVE;
+                unsupported &= ~Pattern.CASE_INSENSITIVE;
+            }
+            if ((unsupported & Pattern.DOTALL) != 0) {
+                flags |= com.google.re2j.Pattern.DOTALL;
+                unsupported &= ~Pattern.DOTALL;
+            }
+            if ((unsupported & Pattern.MULTILINE) != 0) {
+                flags |= com.google.re2j.Pattern.MULTILINE;
+                unsupported &= ~Pattern.MULTILINE;
+            }
+            if (unsupported != 0) {
+                throw new IllegalArgumentException(
+                        "The pattern '" + pattern + "' uses flags not supported by RE2/J: " + unsupported);
+            }
+            try {
+                this.pattern = com.google.re2j.Pattern.compile(pattern.pattern(), flags);
+            } catch (com.google.re2j.PatternSyntaxException e) {
+                throw new IllegalArgumentException(
+                        "The pattern '" + pattern + "' is not supported by RE2/J: " + e.getDescription(), e);
+            }
+        }
+
+        @Override
+        boolean matches(String value) {
+            Object[] matchers = MATCHERS.get();
+            Object cached = matchers[slot];
+            com.google.re2j.Matcher matcher;
+            if (cached instanceof com.google.re2j.Matcher && ((com.google.re2j.Matcher) cached).pattern() == pattern) {
+                matcher = (com.google.re2j.Matcher) cached;
+            } else {
+                matcher = pattern.matcher("");
+                matchers[slot] = matcher;
+            }
+            return matcher.reset(value).find();
+        }
+    }
+
+}
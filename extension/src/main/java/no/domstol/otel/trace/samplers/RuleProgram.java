@@ -0,0 +1,774 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import no.domstol.otel.agent.configuration.AgentConfiguration;
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+import no.domstol.otel.agent.configuration.CompiledRule;
+import no.domstol.otel.agent.configuration.TypedCondition;
+
+/**
+ * A compiled form of the filtering rules, built once whenever the rules are
+ * replaced.
+ * <p>
+ * All rule groups are numbered, include groups first, then exclude groups
+ * and finally sample groups, and every set of groups is represented as a
+ * bitset. The conditions of all groups testing the same
+ * attribute key are combined into one {@link KeyMatcher}, so each attribute
+ * value is examined once and yields the groups it satisfies. A group matches
+ * when it is satisfied for every key, or does not test the key, which makes
+ * the decision a bitwise AND over the keys. Evaluation stops as soon as no
+ * group can match.
+ * </p>
+ * <p>
+ * A sample group leaves the decision to a trace id ratio sampler of its own,
+ * created when the rules are compiled.
+ * </p>
+ * <p>
+ * Conditions on the span name are matched like those on an attribute, so
+ * exact names are found with a single hash lookup by the {@link KeyMatcher},
+ * but are never combined with those on an attribute of the same name. The
+ * span kinds accepted by the groups give the groups accepting each
+ * {@link SpanKind} when compiling, and these are applied before any attribute
+ * is examined.
+ * </p>
+ * <p>
+ * Conditions on typed attributes, e.g. <code>http.status_code:long</code>, are
+ * {@link TypedCondition comparisons} parsed when the rules are loaded. They are
+ * combined into a {@link TypedMatcher} for each attribute, comparing primitive
+ * values, and are tested before the string attributes.
+ * </p>
+ * <p>
+ * The string attributes are tested in the order they are first found in the
+ * rules, which may put an expensive key that rarely rules anything out ahead
+ * of a cheap one that often does. So one in every {@value #PROFILE_INTERVAL}
+ * evaluations on each thread tests every key, timing it and counting the
+ * groups it alone would have ruled out, and {@link #reorder()} uses this to
+ * build a program testing the keys in the order expected to be cheapest. The
+ * order of the groups is kept, as it decides which group takes precedence,
+ * and evaluating a key costs the same regardless of the groups testing it.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class RuleProgram {
+
+    /** Stands for the span name among the keys, which is never looked up in the attributes */
+    private static final AttributeKey<String> SPAN_NAME = AttributeKey.stringKey(AgentConfiguration.SPAN_NAME);
+
+    private static final SpanKind[] KINDS = SpanKind.values();
+
+    /** Profile one in this many evaluations on each thread */
+    static final int PROFILE_INTERVAL = 256;
+
+    /** The number of profiled evaluations needed before reordering the keys */
+    static final int MIN_PROFILED = 64;
+
+    /** The fraction of the expected cost a new key order must stay below */
+    private static final double IMPROVEMENT = 0.9;
+
+    /** A program without any rules, never matching anything */
+    static final RuleProgram EMPTY = new RuleProgram();
+
+    private final AttributeKey<String>[] keys;
+    private final KeyMatcher[] keyMatchers;
+
+    /** For each key, the groups that do not test it, <code>words</code> longs each */
+    private final long[] withoutKey;
+
+    private final TypedMatcher[] typedMatchers;
+
+    /** For each typed attribute, the groups that do not test it */
+    private final long[] withoutTyped;
+
+    /** The groups with at least one condition */
+    private final long[] candidates;
+
+    /** The index of the key standing for the span name, or -1 */
+    private final int nameKey;
+
+    /**
+     * For each span kind, and finally for an unknown kind, the groups
+     * accepting it, <code>words</code> longs each, or <code>null</code> if no
+     * group tests the kind
+     */
+    private final long[] byKind;
+
+    private final int includes;
+
+    /** The index of the first sample group */
+    private final int samples;
+
+    /** The sampler of each sample group */
+    private final Sampler[] samplers;
+
+    private final int words;
+    private final String[] descriptions;
+    private final String[] ids;
+
+    /** The rules compiled into this program, or <code>null</code> */
+    private final Map<String, List<CompiledRule>> rules;
+
+    /** The engine evaluating the regular expressions of the rules */
+    private final RegexEngine engine;
+
+    /** The number of spans decided by each group */
+    private final RuleCounters counters;
+
+    /** The cached decisions of this program, or <code>null</code> */
+    private final DecisionCache cache;
+
+    /**
+     * The number of evaluations profiled and the number of groups that could
+     * match before testing the keys, followed by the number of those groups
+     * each key alone ruled out and the nanoseconds spent on each key
+     */
+    private final AtomicLongArray profile;
+
+    /**
+     * The space of each thread for evaluating, shared by all programs, so that
+     * neither evaluating nor compiling creates a thread local
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Per thread space for evaluating, so that no allocation is needed. It
+     * grows to the number of groups of the largest program evaluated, and
+     * only the words of the program being evaluated are used.
+     */
+    private static final class Scratch {
+        /** The groups that may still match */
+        long[] result = new long[1];
+        /** The groups satisfied by the value of the current key */
+        long[] satisfied = new long[1];
+        /** The groups that may match before testing the keys, when profiling */
+        long[] initial = new long[1];
+        /** The number of evaluations, of any program, until the next one is profiled */
+        int untilProfiled = PROFILE_INTERVAL;
+
+        /**
+         * @param words the number of words of the bitsets of a program
+         * @return this, with room for the groups of the program
+         */
+        Scratch ensure(int words) {
+            if (result.length < words) {
+                result = new long[words];
+                satisfied = new long[words];
+                initial = new long[words];
+            }
+            return this;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RuleProgram() {
+        this(new AttributeKey[0], new KeyMatcher[0], new long[0], new AttributeKey[0], new TypedMatcher[0],
+                new long[0], new long[0], -1, null, 0, 0, new Sampler[0], new String[0], new String[0], null, RegexEngine.java, 0);
+    }
+
+    private RuleProgram(AttributeKey<String>[] keys, KeyMatcher[] keyMatchers, long[] withoutKey,
+            AttributeKey<?>[] typedKeys, TypedMatcher[] typedMatchers, long[] withoutTyped, long[] candidates,
+            int nameKey, long[] byKind, int includes, int samples, Sampler[] samplers, String[] descriptions,
+            String[] ids, Map<String, List<CompiledRule>> rules, RegexEngine engine,
+            int cacheSize) {
+        this.keys = keys;
+        this.keyMatchers = keyMatchers;
+        this.withoutKey = withoutKey;
+        this.typedMatchers = typedMatchers;
+        this.withoutTyped = withoutTyped;
+        this.candidates = candidates;
+        this.nameKey = nameKey;
+        this.byKind = byKind;
+        this.includes = includes;
+        this.samples = samples;
+        this.samplers = samplers;
+        this.descriptions = descriptions;
+        this.rules = rules;
+        this.engine = engine;
+        this.ids = ids;
+        this.counters = new RuleCounters(ids);
+        this.words = candidates.length;
+        AttributeKey<?>[] cacheKeys = Arrays.copyOf(keys, keys.length + typedKeys.length, AttributeKey[].class);
+        System.arraycopy(typedKeys, 0, cacheKeys, keys.length, typedKeys.length);
+        this.cache = cacheSize > 0 && (cacheKeys.length > 0 || byKind != null)
+                ? new DecisionCache(cacheKeys, nameKey, byKind != null, cacheSize)
+                : null;
+        this.profile = new AtomicLongArray(2 + 2 * keys.length);
+    }
+
+    /**
+     * Creates a program testing the keys of another in a different order,
+     * sharing everything else, including the counters and cached decisions.
+     *
+     * @param order the index of each key in the other program, in the order
+     *              to test them
+     */
+    @SuppressWarnings("unchecked")
+    private RuleProgram(RuleProgram program, int[] order) {
+        int words = program.words;
+        this.keys = new AttributeKey[order.length];
+        this.keyMatchers = new KeyMatcher[order.length];
+        this.withoutKey = new long[program.withoutKey.length];
+        int nameKey = -1;
+        for (int k = 0; k < order.length; k++) {
+            keys[k] = program.keys[order[k]];
+            keyMatchers[k] = program.keyMatchers[order[k]];
+            System.arraycopy(program.withoutKey, order[k] * words, withoutKey, k * words, words);
+            if (order[k] == program.nameKey) {
+                nameKey = k;
+            }
+        }
+        this.nameKey = nameKey;
+        this.typedMatchers = program.typedMatchers;
+        this.withoutTyped = program.withoutTyped;
+        this.candidates = program.candidates;
+        this.byKind = program.byKind;
+        this.includes = program.includes;
+        this.samples = program.samples;
+        this.samplers = program.samplers;
+        this.descriptions = program.descriptions;
+        this.rules = program.rules;
+        this.engine = program.engine;
+        this.ids = program.ids;
+        this.counters = program.counters;
+        this.words = words;
+        this.cache = program.cache;
+        this.profile = new AtomicLongArray(2 + 2 * keys.length);
+    }
+
+    /**
+     * Compiles the rules as returned by
+     * {@link no.domstol.otel.agent.configuration.AgentConfiguration#getRules()}
+     * into a program.
+     *
+     * @param rules the rule sets, keyed by <code>include</code>,
+     *              <code>exclude</code> and <code>sample</code>
+     * @return the compiled program
+     */
+    static RuleProgram compile(Map<String, List<CompiledRule>> rules) {
+        return compile(rules, 0);
+    }
+
+    /**
+     * Compiles the rules into a program caching up to the given number of
+     * decisions.
+     *
+     * @param rules     the rule sets, keyed by <code>include</code>,
+     *                  <code>exclude</code> and <code>sample</code>
+     * @param cacheSize the maximum number of decisions to cache, 0 to disable
+     *                  the cache
+     * @return the compiled program
+     * @see DecisionCache
+     */
+    static RuleProgram compile(Map<String, List<CompiledRule>> rules, int cacheSize) {
+        return compile(rules, cacheSize, RegexEngine.java);
+    }
+
+    /**
+     * Compiles the rules into a program evaluating their regular expressions
+     * using the given engine.
+     *
+     * @param rules     the rule sets, keyed by <code>include</code>,
+     *                  <code>exclude</code> and <code>sample</code>
+     * @param cacheSize the maximum number of decisions to cache, 0 to disable
+     *                  the cache
+     * @param engine    the engine evaluating regular expressions
+     * @return the compiled program
+     * @throws IllegalArgumentException if a rule is not supported by the
+     *                                  engine
+     * @since 1.8
+     */
+    @SuppressWarnings("unchecked")
+    static RuleProgram compile(Map<String, List<CompiledRule>> rules, int cacheSize,
+            RegexEngine engine) {
+        if (rules == null) {
+            return EMPTY;
+        }
+        List<CompiledRule> groups = new ArrayList<>();
+        groups.addAll(rules.getOrDefault("include", Collections.emptyList()));
+        int includes = groups.size();
+        groups.addAll(rules.getOrDefault("exclude", Collections.emptyList()));
+        int samples = groups.size();
+        List<Sampler> samplers = new ArrayList<>();
+        for (CompiledRule group : rules.getOrDefault("sample", Collections.emptyList())) {
+            if (!group.hasRatio()) {
+                throw new IllegalArgumentException("A sample rule must have a ratio, " + group);
+            }
+            // built once here, as are the matchers, rather than for each span
+            samplers.add(Sampler.traceIdRatioBased(group.getRatio()));
+            groups.add(group);
+        }
+        if (groups.isEmpty()) {
+            return EMPTY;
+        }
+        int words = (groups.size() + 63) >>> 6;
+
+        // collect the distinct matchers of each key, and the groups using them
+        Map<AttributeKey<String>, Map<String, RuleMatcher>> matchers = new LinkedHashMap<>();
+        Map<AttributeKey<String>, Map<String, long[]>> users = new HashMap<>();
+        Map<String, RuleMatcher> nameMatchers = new LinkedHashMap<>();
+        Map<String, long[]> nameUsers = new HashMap<>();
+        Map<AttributeKey<?>, Map<TypedCondition, long[]>> typed = new LinkedHashMap<>();
+        long[] candidates = new long[words];
+        String[] descriptions = new String[groups.size()];
+        String[] ids = new String[groups.size()];
+        Set<String> usedIds = new HashSet<>();
+        long[] byKind = null;
+        for (int group = 0; group < groups.size(); group++) {
+            CompiledRule rule = groups.get(group);
+            if (rule.getSpanKinds() != null) {
+                if (byKind == null) {
+                    // every group accepts every kind until it tests it
+                    byKind = new long[(KINDS.length + 1) * words];
+                    Arrays.fill(byKind, -1L);
+                }
+                for (int kind = 0; kind <= KINDS.length; kind++) {
+                    if (kind == KINDS.length || !rule.getSpanKinds().contains(KINDS[kind])) {
+                        clear(byKind, kind * words, group);
+                    }
+                }
+                set(candidates, group);
+            }
+            if (rule.getSpanName() != null) {
+                addMatcher(nameMatchers, nameUsers, rule.getSpanName(), group, engine, words);
+                set(candidates, group);
+            }
+            for (TypedCondition condition : rule.getTypedConditions()) {
+                set(typed.computeIfAbsent(condition.getKey(), k -> new LinkedHashMap<>())
+                        .computeIfAbsent(condition, k -> new long[words]), group);
+                set(candidates, group);
+            }
+            for (Map.Entry<AttributeKey<String>, Pattern> condition : rule.getAttributes().entrySet()) {
+                addMatcher(matchers.computeIfAbsent(condition.getKey(), k -> new LinkedHashMap<>()),
+                        users.computeIfAbsent(condition.getKey(), k -> new HashMap<>()), condition.getValue(), group,
+                        engine, words);
+                // an empty group does not match, just as before compiling
+                set(candidates, group);
+            }
+            descriptions[group] = rule.toString();
+            if (group >= samples) {
+                descriptions[group] += " at " + samplers.get(group - samples).getDescription();
+            }
+            ids[group] = id(group < includes ? "include" : group < samples ? "exclude" : "sample", rule, usedIds);
+        }
+
+        // the span name, if tested, is the first key
+        int nameKey = nameMatchers.isEmpty() ? -1 : 0;
+        int attributeKeys = nameKey + 1;
+        AttributeKey<String>[] keys = new AttributeKey[attributeKeys + matchers.size()];
+        KeyMatcher[] keyMatchers = new KeyMatcher[keys.length];
+        long[] withoutKey = new long[keys.length * words];
+        if (nameKey >= 0) {
+            keys[nameKey] = SPAN_NAME;
+            keyMatchers[nameKey] = compileKey(nameMatchers, nameUsers, withoutKey, nameKey, words);
+        }
+        int k = attributeKeys;
+        for (AttributeKey<String> key : matchers.keySet()) {
+            keys[k] = key;
+            keyMatchers[k] = compileKey(matchers.get(key), users.get(key), withoutKey, k, words);
+            k++;
+        }
+
+        AttributeKey<?>[] typedKeys = typed.keySet().toArray(new AttributeKey[0]);
+        TypedMatcher[] typedMatchers = new TypedMatcher[typedKeys.length];
+        long[] withoutTyped = new long[typedKeys.length * words];
+        for (int t = 0; t < typedKeys.length; t++) {
+            Map<TypedCondition, long[]> comparisons = typed.get(typedKeys[t]);
+            long[] testing = new long[words];
+            comparisons.values().forEach(using -> or(testing, using));
+            typedMatchers[t] = TypedMatcher.compile(typedKeys[t], new ArrayList<>(comparisons.keySet()),
+                    new ArrayList<>(comparisons.values()));
+            for (int w = 0; w < words; w++) {
+                withoutTyped[t * words + w] = ~testing[w];
+            }
+        }
+        return new RuleProgram(keys, keyMatchers, withoutKey, typedKeys, typedMatchers, withoutTyped, candidates,
+                nameKey, byKind, includes, samples, samplers.toArray(new Sampler[0]), descriptions, ids, rules, engine,
+                cacheSize);
+    }
+
+    /**
+     * Adds a condition of a group on a key to the distinct matchers of the
+     * key, and the groups using each.
+     */
+    private static void addMatcher(Map<String, RuleMatcher> matchers, Map<String, long[]> users, Pattern pattern,
+            int group, RegexEngine engine, int words) {
+        String id = pattern.flags() + ":" + pattern.pattern();
+        matchers.computeIfAbsent(id, k -> RuleMatcher.of(pattern, engine));
+        set(users.computeIfAbsent(id, k -> new long[words]), group);
+    }
+
+    /**
+     * Combines the distinct matchers of a key, and records the groups not
+     * testing it.
+     */
+    private static KeyMatcher compileKey(Map<String, RuleMatcher> matchers, Map<String, long[]> users,
+            long[] withoutKey, int k, int words) {
+        List<RuleMatcher> keyMatcherList = new ArrayList<>();
+        List<long[]> keyGroups = new ArrayList<>();
+        long[] testing = new long[words];
+        for (Map.Entry<String, RuleMatcher> matcher : matchers.entrySet()) {
+            long[] using = users.get(matcher.getKey());
+            keyMatcherList.add(matcher.getValue());
+            keyGroups.add(using);
+            or(testing, using);
+        }
+        for (int w = 0; w < words; w++) {
+            withoutKey[k * words + w] = ~testing[w];
+        }
+        return KeyMatcher.compile(keyMatcherList, keyGroups);
+    }
+
+    /**
+     * Creates an id for a rule group that only depends on its conditions, so
+     * that the group is given the same id in every rule set containing it.
+     * The id is the kind of rule and a hash of the conditions, e.g.
+     * <code>exclude:3f2a9c1e</code>.
+     */
+    private static String id(String kind, CompiledRule group, Set<String> usedIds) {
+        StringBuilder conditions = new StringBuilder();
+        if (group.getSpanName() != null) {
+            conditions.append("#name=").append(group.getSpanName().flags()).append(':')
+                    .append(group.getSpanName().pattern()).append('\n');
+        }
+        if (group.getSpanKinds() != null) {
+            conditions.append("#kind=").append(group.getSpanKinds()).append('\n');
+        }
+        Map<String, Pattern> sorted = new TreeMap<>();
+        group.getAttributes().forEach((key, pattern) -> sorted.put(key.getKey(), pattern));
+        sorted.forEach((key, pattern) -> conditions.append(key).append('=').append(pattern.flags()).append(':')
+                .append(pattern.pattern()).append('\n'));
+        group.getTypedConditions().stream().map(TypedCondition::toString).sorted()
+                .forEach(condition -> conditions.append(condition).append('\n'));
+        String id = String.format("%s:%08x", kind, conditions.toString().hashCode());
+        // the same group may be given more than once
+        String unique = id;
+        for (int i = 2; !usedIds.add(unique); i++) {
+            unique = id + "-" + i;
+        }
+        return unique;
+    }
+
+    /**
+     * @return the rules compiled into this program, or <code>null</code> if
+     *         none
+     */
+    Map<String, List<CompiledRule>> rules() {
+        return rules;
+    }
+
+    /**
+     * @return the engine evaluating the regular expressions of the rules
+     */
+    RegexEngine engine() {
+        return engine;
+    }
+
+    /**
+     * @return the number of spans decided by each group
+     */
+    RuleCounters counters() {
+        return counters;
+    }
+
+    /**
+     * @return the id of the group, which is the same in every rule set
+     *         containing a group with the same conditions
+     */
+    String id(int group) {
+        return ids[group];
+    }
+
+    /**
+     * @return the number of rule groups
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the decision cache of this program, or <code>null</code> if
+     *         decisions are not cached
+     */
+    DecisionCache cache() {
+        return cache;
+    }
+
+    /**
+     * @return <code>true</code> if the program has no rules at all
+     */
+    boolean isEmpty() {
+        return descriptions.length == 0;
+    }
+
+    /**
+     * Finds the group deciding the fate of a span with the given attributes,
+     * not matching any condition on the span name or kind.
+     *
+     * @param attributes the span attributes
+     * @return the index of the deciding group, or -1 if no group matches
+     */
+    int evaluate(Attributes attributes) {
+        return evaluate(null, null, attributes);
+    }
+
+    /**
+     * Finds the group deciding the fate of a span. This is the first matching
+     * include group if any, otherwise the first matching exclude group,
+     * otherwise the first matching sample group.
+     *
+     * @param name       the span name
+     * @param spanKind   the span kind
+     * @param attributes the span attributes
+     * @return the index of the deciding group, or -1 if no group matches
+     */
+    int evaluate(String name, SpanKind spanKind, Attributes attributes) {
+        if (descriptions.length == 0) {
+            return -1;
+        }
+        final int words = this.words;
+        Scratch scratch = SCRATCH.get().ensure(words);
+        long[] result = scratch.result;
+        long[] satisfied = scratch.satisfied;
+        if (byKind == null) {
+            System.arraycopy(candidates, 0, result, 0, words);
+        } else {
+            final int offset = (spanKind == null ? KINDS.length : spanKind.ordinal()) * words;
+            long remaining = 0;
+            for (int w = 0; w < words; w++) {
+                remaining |= result[w] = candidates[w] & byKind[offset + w];
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+        }
+        for (int t = 0; t < typedMatchers.length; t++) {
+            Arrays.fill(satisfied, 0, words, 0L);
+            typedMatchers[t].match(attributes, satisfied);
+            if (!narrow(result, satisfied, withoutTyped, t * words, words)) {
+                return -1;
+            }
+        }
+        if (keys.length > 1 && --scratch.untilProfiled == 0) {
+            scratch.untilProfiled = PROFILE_INTERVAL;
+            return profile(name, attributes, scratch);
+        }
+        for (int k = 0; k < keys.length; k++) {
+            String value = k == nameKey ? name : attributes.get(keys[k]);
+            Arrays.fill(satisfied, 0, words, 0L);
+            if (value != null) {
+                keyMatchers[k].match(value, satisfied);
+            }
+            if (!narrow(result, satisfied, withoutKey, k * words, words)) {
+                return -1;
+            }
+        }
+        return first(result, words);
+    }
+
+    /**
+     * Tests the string attributes like {@link #evaluate(String, SpanKind, Attributes)},
+     * but tests every key, recording the time taken and the number of groups
+     * the key alone rules out.
+     */
+    private int profile(String name, Attributes attributes, Scratch scratch) {
+        final int words = this.words;
+        long[] result = scratch.result;
+        long[] satisfied = scratch.satisfied;
+        long[] initial = scratch.initial;
+        System.arraycopy(result, 0, initial, 0, words);
+        int groups = 0;
+        for (int w = 0; w < words; w++) {
+            groups += Long.bitCount(initial[w]);
+        }
+        for (int k = 0; k < keys.length; k++) {
+            long start = System.nanoTime();
+            String value = k == nameKey ? name : attributes.get(keys[k]);
+            Arrays.fill(satisfied, 0, words, 0L);
+            if (value != null) {
+                keyMatchers[k].match(value, satisfied);
+            }
+            profile.addAndGet(2 + keys.length + k, System.nanoTime() - start);
+            final int offset = k * words;
+            int ruledOut = 0;
+            for (int w = 0; w < words; w++) {
+                ruledOut += Long.bitCount(initial[w] & ~(satisfied[w] | withoutKey[offset + w]));
+                result[w] &= satisfied[w] | withoutKey[offset + w];
+            }
+            profile.addAndGet(2 + k, ruledOut);
+        }
+        profile.addAndGet(1, groups);
+        profile.incrementAndGet(0);
+        return first(result, words);
+    }
+
+    /**
+     * Returns a program testing the keys in the order expected to be
+     * cheapest, given the cost of each key and the share of the groups it
+     * alone rules out, as profiled so far. A key that is cheap and rules out
+     * many groups, making it likely that the keys after it need not be
+     * tested, comes first.
+     *
+     * @return the reordered program, or <code>null</code> if too few
+     *         evaluations have been profiled, or the current order is about as
+     *         cheap
+     */
+    RuleProgram reorder() {
+        long profiled = profile.get(0);
+        long groups = profile.get(1);
+        if (keys.length < 2 || profiled < MIN_PROFILED || groups == 0) {
+            return null;
+        }
+        double[] cost = new double[keys.length];
+        double[] rejected = new double[keys.length];
+        Integer[] order = new Integer[keys.length];
+        int[] current = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            rejected[k] = (double) profile.get(2 + k) / groups;
+            cost[k] = (double) profile.get(2 + keys.length + k) / profiled;
+            order[k] = k;
+            current[k] = k;
+        }
+        // the order minimizing the expected cost, if the groups ruled out by
+        // each key were independent
+        Arrays.sort(order, (a, b) -> {
+            double scoreA = rejected[a] > 0 ? cost[a] / rejected[a] : Double.POSITIVE_INFINITY;
+            double scoreB = rejected[b] > 0 ? cost[b] / rejected[b] : Double.POSITIVE_INFINITY;
+            return scoreA != scoreB ? Double.compare(scoreA, scoreB) : Double.compare(cost[a], cost[b]);
+        });
+        int[] reordered = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            reordered[k] = order[k];
+        }
+        if (expectedCost(reordered, cost, rejected) >= IMPROVEMENT * expectedCost(current, cost, rejected)) {
+            return null;
+        }
+        return new RuleProgram(this, reordered);
+    }
+
+    private static double expectedCost(int[] order, double[] cost, double[] rejected) {
+        double expected = 0;
+        double reached = 1;
+        for (int k : order) {
+            expected += reached * cost[k];
+            reached *= 1 - rejected[k];
+        }
+        return expected;
+    }
+
+    /**
+     * @return the string attribute keys in the order they are tested, with
+     *         the profiled share of the groups each key alone ruled out and
+     *         its average cost
+     */
+    String describeKeys() {
+        long profiled = Math.max(1, profile.get(0));
+        long groups = Math.max(1, profile.get(1));
+        StringBuilder description = new StringBuilder();
+        for (int k = 0; k < keys.length; k++) {
+            if (k > 0) {
+                description.append(", ");
+            }
+            description.append(keys[k].getKey()).append(String.format(" (rejects %.0f%%, %d ns)",
+                    100.0 * profile.get(2 + k) / groups, profile.get(2 + keys.length + k) / profiled));
+        }
+        return description.toString();
+    }
+
+    /**
+     * @return the lowest group left in the bitset, or -1 if none
+     */
+    private static int first(long[] result, int words) {
+        // the lowest group matching is an include group, if any matches, then
+        // an exclude group
+        for (int w = 0; w < words; w++) {
+            if (result[w] != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(result[w]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps the groups that may still match, the groups satisfied by the
+     * current key or not testing it.
+     *
+     * @return <code>true</code> if any group may still match
+     */
+    private static boolean narrow(long[] result, long[] satisfied, long[] without, int offset, int words) {
+        long remaining = 0;
+        for (int w = 0; w < words; w++) {
+            remaining |= result[w] &= satisfied[w] | without[offset + w];
+        }
+        return remaining != 0;
+    }
+
+    /**
+     * @return <code>true</code> if the group is an include group
+     */
+    boolean isInclude(int group) {
+        return group < includes;
+    }
+
+    /**
+     * @return the sampler deciding the spans matching the group if it is a
+     *         sample group, otherwise <code>null</code>
+     */
+    Sampler sampler(int group) {
+        return group < samples ? null : samplers[group - samples];
+    }
+
+    String describe(int group) {
+        return descriptions[group];
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static void clear(long[] bits, int offset, int index) {
+        bits[offset + (index >>> 6)] &= ~(1L << index);
+    }
+
+    /**
+     * Adds all bits set in a bitset to another bitset of the same size.
+     */
+    static void or(long[] result, long[] bits) {
+        for (int w = 0; w < bits.length; w++) {
+            result[w] |= bits[w];
+        }
+    }
+
+}
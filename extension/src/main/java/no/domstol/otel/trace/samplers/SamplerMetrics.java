@@ -17,63 +17,381 @@
  */
 package no.domstol.otel.trace.samplers;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
  * This type keeps track of samples processed in various ways since the last
  * time it was submitted to the Agent Configuration Service.
+ * <p>
+ * The counters are incremented by every thread creating spans, so they are
+ * {@link LongAdder}s, spreading the updates over padded cells instead of
+ * contending for a single value. Only the outcome of each sample is counted,
+ * the number of samples processed, dropped and recorded are derived from
+ * these when taking a snapshot. The counters are never reset, instead each
+ * snapshot holds the difference from the previous one, so no increment is
+ * lost while a snapshot is being taken; it is counted in the next one.
+ * </p>
+ * <p>
+ * A snapshot that is to be submitted is {@link #take() taken} and only
+ * {@link #commit(Snapshot) committed} once submitted, so that the counts of a
+ * snapshot that could not be submitted are part of the next one instead of
+ * being lost.
+ * </p>
+ * <p>
+ * The spans decided by each filtering rule are counted by the
+ * {@link RuleCounters} of the rules in use. When the rules are replaced, the
+ * counters of the previous rules are kept until the second snapshot committed
+ * after the replacement, allowing threads still using the previous rules to
+ * finish.
+ * </p>
  *
  * @since 1.0
  */
 public class SamplerMetrics {
 
     /** The number of samples dropped due to filtering rules */
-    @JsonProperty("filter_excluded_samples")
-    AtomicLong filter_excluded_samples = new AtomicLong();
+    final LongAdder filter_excluded_samples = new LongAdder();
 
     /** The number of samples recorded due to filtering rules */
-    @JsonProperty("filter_included_samples")
-    AtomicLong filter_included_samples = new AtomicLong();
+    final LongAdder filter_included_samples = new LongAdder();
 
     /** The number of samples dropped due to sampler rules */
-    @JsonProperty("sampler_excluded_samples")
-    AtomicLong sampler_excluded_samples = new AtomicLong();
+    final LongAdder sampler_excluded_samples = new LongAdder();
 
     /** The number of samples recorded due to sampler rules */
-    @JsonProperty("sampler_included_samples")
-    AtomicLong sampler_included_samples = new AtomicLong();
-
-    /** The number of samples processed */
-    @JsonProperty("processed_samples")
-    AtomicLong processed_samples = new AtomicLong();
-
-    /** The number of samples dropped */
-    @JsonProperty("dropped_samples")
-    AtomicLong dropped_samples = new AtomicLong();
-
-    /** The number of samples recorded */
-    @JsonProperty("recorded_samples")
-    AtomicLong recorded_samples = new AtomicLong();
-
-    public synchronized SamplerMetrics copyAndClear() {
-        SamplerMetrics copy = new SamplerMetrics();
-        copy.filter_excluded_samples.set(filter_excluded_samples.get());
-        copy.filter_included_samples.set(filter_included_samples.get());
-        copy.sampler_excluded_samples.set(sampler_excluded_samples.get());
-        copy.sampler_included_samples.set(sampler_included_samples.get());
-        copy.processed_samples.set(processed_samples.get());
-        copy.dropped_samples.set(dropped_samples.get());
-        copy.recorded_samples.set(recorded_samples.get());
-        filter_excluded_samples.set(0);
-        filter_included_samples.set(0);
-        sampler_excluded_samples.set(0);
-        sampler_included_samples.set(0);
-        processed_samples.set(0);
-        dropped_samples.set(0);
-        recorded_samples.set(0);
+    final LongAdder sampler_included_samples = new LongAdder();
+
+    /** The number of samples recorded, but not sampled, due to sampler rules */
+    final LongAdder sampler_record_only_samples = new LongAdder();
+
+    /** The number of filtering decisions found in the decision cache */
+    final LongAdder decision_cache_hits = new LongAdder();
+
+    /** The number of filtering decisions not found in the decision cache */
+    final LongAdder decision_cache_misses = new LongAdder();
+
+    /** The durations of sampling decisions, or <code>null</code> if not timed */
+    final LatencyHistogram decision_latency;
+
+    /** The ratio set by the adaptive sampler, or NaN if not in use */
+    private volatile double effectiveSampleRatio = Double.NaN;
+
+    /** The totals at the time of the previous snapshot committed */
+    private Snapshot reported = new Snapshot();
+
+    /** The rule counters of the rules in use */
+    private RuleCounters ruleCounters;
+
+    /** The rule counters of rules no longer in use */
+    private final List<Retired> retired = new ArrayList<>();
+
+    private static final class Retired {
+        final RuleCounters counters;
+        /** The number of snapshots committed since the rules were replaced */
+        int snapshots;
+
+        Retired(RuleCounters counters) {
+            this.counters = counters;
+        }
+    }
+
+    /**
+     * The totals a snapshot was taken from, to count the next snapshot from
+     * once it is committed.
+     */
+    private static final class Pending {
+        /** The totals the snapshot was counted from */
+        final Snapshot base;
+        final Snapshot totals;
+        /** The rule counters snapshot, and their totals */
+        final List<RuleCounters> counters = new ArrayList<>();
+        final List<long[]> counterTotals = new ArrayList<>();
+        /** The retired rule counters snapshot */
+        final List<Retired> retired;
+        long[] latencyTotals;
+        long latencyMax;
+
+        Pending(Snapshot base, Snapshot totals, List<Retired> retired) {
+            this.base = base;
+            this.totals = totals;
+            this.retired = new ArrayList<>(retired);
+        }
+    }
+
+    public SamplerMetrics() {
+        this(0);
+    }
+
+    /**
+     * @param timingInterval time one in this many sampling decisions, 0 to
+     *                       not time them at all
+     * @since 1.8
+     */
+    public SamplerMetrics(int timingInterval) {
+        decision_latency = timingInterval > 0 ? new LatencyHistogram(timingInterval) : null;
+    }
+
+    /**
+     * A summary of the time taken by sampling decisions, in nanoseconds.
+     *
+     * @since 1.8
+     */
+    public static final class Latency {
+
+        /** The number of decisions timed */
+        @JsonProperty("count")
+        final long count;
+
+        @JsonProperty("p50")
+        final long p50;
+
+        @JsonProperty("p99")
+        final long p99;
+
+        @JsonProperty("p999")
+        final long p999;
+
+        @JsonProperty("max")
+        final long max;
+
+        Latency(long count, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+    }
+
+    /**
+     * The metrics as submitted to the Agent Configuration Service.
+     *
+     * @since 1.8
+     */
+    public static final class Snapshot {
+
+        /** The number of samples dropped due to filtering rules */
+        @JsonProperty("filter_excluded_samples")
+        final long filter_excluded_samples;
+
+        /** The number of samples recorded due to filtering rules */
+        @JsonProperty("filter_included_samples")
+        final long filter_included_samples;
+
+        /** The number of samples dropped due to sampler rules */
+        @JsonProperty("sampler_excluded_samples")
+        final long sampler_excluded_samples;
+
+        /** The number of samples recorded due to sampler rules */
+        @JsonProperty("sampler_included_samples")
+        final long sampler_included_samples;
+
+        /** The number of samples processed */
+        @JsonProperty("processed_samples")
+        final long processed_samples;
+
+        /** The number of samples dropped */
+        @JsonProperty("dropped_samples")
+        final long dropped_samples;
+
+        /** The number of samples recorded */
+        @JsonProperty("recorded_samples")
+        final long recorded_samples;
+
+        /** The number of filtering decisions found in the decision cache */
+        @JsonProperty("decision_cache_hits")
+        final long decision_cache_hits;
+
+        /** The number of filtering decisions not found in the decision cache */
+        @JsonProperty("decision_cache_misses")
+        final long decision_cache_misses;
+
+        /** The number of samples decided by each filtering rule, by rule id */
+        @JsonProperty("rule_hits")
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        final Map<String, Long> rule_hits;
+
+        /** The time taken by the sampling decisions timed */
+        @JsonProperty("decision_latency")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Latency decision_latency;
+
+        /** The ratio currently used by the adaptive sampler */
+        @JsonProperty("effective_sample_ratio")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Double effective_sample_ratio;
+
+        /** The state of the circuit to the configuration service when reported */
+        @JsonProperty("circuit_state")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        String circuit_state;
+
+        /** The number of failures to reach the configuration service since the previous report */
+        @JsonProperty("consecutive_failures")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Integer consecutive_failures;
+
+        /** Not submitted, only used to derive the number processed */
+        private final long sampler_record_only_samples;
+
+        /** Not submitted, what to commit once submitted */
+        private Pending pending;
+
+        private Snapshot() {
+            this(0, 0, 0, 0, 0, 0, 0, Collections.emptyMap());
+        }
+
+        private Snapshot(long filterExcluded, long filterIncluded, long samplerExcluded, long samplerIncluded,
+                long samplerRecordOnly, long cacheHits, long cacheMisses, Map<String, Long> ruleHits) {
+            filter_excluded_samples = filterExcluded;
+            filter_included_samples = filterIncluded;
+            sampler_excluded_samples = samplerExcluded;
+            sampler_included_samples = samplerIncluded;
+            sampler_record_only_samples = samplerRecordOnly;
+            decision_cache_hits = cacheHits;
+            decision_cache_misses = cacheMisses;
+            rule_hits = ruleHits;
+            dropped_samples = filterExcluded + samplerExcluded;
+            recorded_samples = filterIncluded + samplerIncluded;
+            processed_samples = dropped_samples + recorded_samples + samplerRecordOnly;
+        }
+
+        private Snapshot minus(Snapshot previous, Map<String, Long> ruleHits) {
+            return new Snapshot(filter_excluded_samples - previous.filter_excluded_samples,
+                    filter_included_samples - previous.filter_included_samples,
+                    sampler_excluded_samples - previous.sampler_excluded_samples,
+                    sampler_included_samples - previous.sampler_included_samples,
+                    sampler_record_only_samples - previous.sampler_record_only_samples,
+                    decision_cache_hits - previous.decision_cache_hits,
+                    decision_cache_misses - previous.decision_cache_misses, ruleHits);
+        }
+
+        /**
+         * Sets the state of the connection to the configuration service to
+         * report along with the counts.
+         *
+         * @param circuitState        the state of the circuit breaker
+         * @param consecutiveFailures the number of failed attempts to reach the
+         *                            service since the previous report
+         * @since 1.8
+         */
+        public void setCircuitBreaker(String circuitState, int consecutiveFailures) {
+            circuit_state = circuitState;
+            consecutive_failures = consecutiveFailures;
+        }
+
+        @Override
+        public String toString() {
+            return "processed=" + processed_samples + ", recorded=" + recorded_samples + ", dropped="
+                    + dropped_samples;
+        }
+    }
+
+    /**
+     * Returns the metrics counted since the previous invocation.
+     *
+     * @return the counts since the previous snapshot
+     */
+    public synchronized Snapshot copyAndClear() {
+        Snapshot copy = take();
+        commit(copy);
+        return copy;
+    }
+
+    /**
+     * Returns the metrics counted since the previous snapshot committed,
+     * without committing this one, so that its counts are also part of the
+     * next snapshot unless it is committed.
+     *
+     * @return the counts since the previous snapshot committed
+     * @since 1.8
+     */
+    public synchronized Snapshot take() {
+        Snapshot totals = new Snapshot(filter_excluded_samples.sum(), filter_included_samples.sum(),
+                sampler_excluded_samples.sum(), sampler_included_samples.sum(), sampler_record_only_samples.sum(),
+                decision_cache_hits.sum(), decision_cache_misses.sum(), Collections.emptyMap());
+        Pending pending = new Pending(reported, totals, retired);
+        Map<String, Long> ruleHits = new TreeMap<>();
+        if (ruleCounters != null) {
+            pending.counters.add(ruleCounters);
+            pending.counterTotals.add(ruleCounters.snapshot(ruleHits));
+        }
+        for (Retired previous : retired) {
+            pending.counters.add(previous.counters);
+            pending.counterTotals.add(previous.counters.snapshot(ruleHits));
+        }
+        Snapshot copy = totals.minus(reported, ruleHits);
+        copy.pending = pending;
+        if (decision_latency != null) {
+            pending.latencyTotals = decision_latency.totals();
+            pending.latencyMax = decision_latency.max();
+            copy.decision_latency = decision_latency.snapshot(pending.latencyTotals, pending.latencyMax);
+        }
+        double ratio = effectiveSampleRatio;
+        if (!Double.isNaN(ratio)) {
+            copy.effective_sample_ratio = ratio;
+        }
         return copy;
     }
 
+    /**
+     * Counts the next snapshot from a snapshot that has been submitted. A
+     * snapshot taken before the previous snapshot committed is not committed,
+     * as its counts are already part of that one.
+     *
+     * @param snapshot a snapshot returned by {@link #take()}
+     * @return <code>true</code> if the snapshot was committed
+     * @since 1.8
+     */
+    public synchronized boolean commit(Snapshot snapshot) {
+        Pending pending = snapshot.pending;
+        if (pending == null || pending.base != reported) {
+            return false;
+        }
+        snapshot.pending = null;
+        reported = pending.totals;
+        for (int i = 0; i < pending.counters.size(); i++) {
+            pending.counters.get(i).commit(pending.counterTotals.get(i));
+        }
+        for (Retired previous : pending.retired) {
+            previous.snapshots++;
+        }
+        retired.removeIf(previous -> previous.snapshots >= 2);
+        if (pending.latencyTotals != null) {
+            decision_latency.commit(pending.latencyTotals, pending.latencyMax);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the ratio to report as used by the adaptive sampler.
+     *
+     * @param ratio the ratio, or NaN if the adaptive sampler is not in use
+     * @since 1.8
+     */
+    void setEffectiveSampleRatio(double ratio) {
+        effectiveSampleRatio = ratio;
+    }
+
+    /**
+     * Starts reporting the counts of the rules now being used.
+     *
+     * @param counters the counters of the rules
+     * @since 1.8
+     */
+    synchronized void setRuleCounters(RuleCounters counters) {
+        if (ruleCounters != null && ruleCounters != counters) {
+            retired.add(new Retired(ruleCounters));
+        }
+        ruleCounters = counters;
+    }
+
 }
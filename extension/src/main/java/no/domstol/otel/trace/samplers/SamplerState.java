@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import no.domstol.otel.trace.samplers.DynamicSamplerWrapper.RuleScope;
+
+/**
+ * The sampler and filtering rules used by a {@link DynamicSamplerWrapper} at
+ * one point in time. A state is never changed, instead a new one is published
+ * whenever the configuration changes. A sampling decision reads the current
+ * state once, so it is made with a sampler and rules that were in use
+ * together, never with a new sampler and the rules it replaced. The scope of
+ * the rules is part of the state, as letting the parent decide is only right
+ * for a sampler that would have done so.
+ *
+ * @since 1.8
+ */
+final class SamplerState {
+
+    static final SamplerState INITIAL = new SamplerState(Sampler.alwaysOff(), RuleScope.all, RuleProgram.EMPTY, 0);
+
+    final Sampler sampler;
+    /** The spans the rules apply to, the others following their parent */
+    final RuleScope ruleScope;
+    final RuleProgram program;
+
+    /** Incremented each time a state is published */
+    final long version;
+
+    SamplerState(Sampler sampler, RuleScope ruleScope, RuleProgram program, long version) {
+        this.sampler = sampler;
+        this.ruleScope = ruleScope;
+        this.program = program;
+        this.version = version;
+    }
+
+    SamplerState withSampler(Sampler sampler) {
+        return new SamplerState(sampler, ruleScope, program, version + 1);
+    }
+
+    SamplerState withProgram(RuleProgram program) {
+        return new SamplerState(sampler, ruleScope, program, version + 1);
+    }
+
+    SamplerState with(Sampler sampler, RuleScope ruleScope, RuleProgram program) {
+        return new SamplerState(sampler, ruleScope, program, version + 1);
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import no.domstol.otel.agent.configuration.TypedCondition;
+
+/**
+ * Combines the conditions of all rule groups testing the same typed attribute,
+ * a <code>long</code>, <code>double</code> or <code>boolean</code> value, as
+ * parsed into {@link TypedCondition comparisons} by the configuration.
+ * <p>
+ * Every comparison is turned into an inclusive range, possibly negated, or a
+ * sorted set of values when compiling, so the attribute value is only unboxed
+ * and compared as a primitive when matching. A missing attribute, or one of
+ * another type, satisfies no condition.
+ * </p>
+ *
+ * @since 1.8
+ */
+final class TypedMatcher {
+
+    private enum Type {
+        LONG, DOUBLE, BOOLEAN
+    }
+
+    private final AttributeKey<?> key;
+    private final Type type;
+    private final long[] lowerLongs;
+    private final long[] upperLongs;
+    private final long[][] longSets;
+    private final double[] lowerDoubles;
+    private final double[] upperDoubles;
+    private final double[][] doubleSets;
+    private final boolean[] negated;
+    private final long[][] groups;
+
+    private TypedMatcher(AttributeKey<?> key, Type type, int size) {
+        this.key = key;
+        this.type = type;
+        this.lowerLongs = new long[size];
+        this.upperLongs = new long[size];
+        this.longSets = new long[size][];
+        this.lowerDoubles = new double[size];
+        this.upperDoubles = new double[size];
+        this.doubleSets = new double[size][];
+        this.negated = new boolean[size];
+        this.groups = new long[size][];
+    }
+
+    /**
+     * @param key        the typed attribute key
+     * @param conditions the distinct conditions on the key
+     * @param groups     the groups using each condition, as a bitset
+     * @return the combined matcher
+     * @throws IllegalArgumentException if a condition is on another key
+     */
+    static TypedMatcher compile(AttributeKey<?> key, List<TypedCondition> conditions, List<long[]> groups) {
+        Type type;
+        switch (key.getType()) {
+        case LONG:
+            type = Type.LONG;
+            break;
+        case DOUBLE:
+            type = Type.DOUBLE;
+            break;
+        case BOOLEAN:
+            type = Type.BOOLEAN;
+            break;
+        default:
+            throw new IllegalArgumentException("Cannot compare attributes of type " + key.getType());
+        }
+        TypedMatcher matcher = new TypedMatcher(key, type, conditions.size());
+        for (int i = 0; i < conditions.size(); i++) {
+            if (!conditions.get(i).getKey().equals(key)) {
+                throw new IllegalArgumentException(
+                        "The condition " + conditions.get(i) + " is not on '" + key.getKey() + "'");
+            }
+            matcher.set(i, conditions.get(i));
+            matcher.groups[i] = groups.get(i);
+        }
+        return matcher;
+    }
+
+    private void set(int i, TypedCondition condition) {
+        List<Object> operands = condition.getOperands();
+        switch (condition.getOperator()) {
+        case eq:
+        case ne:
+            range(i, operands.get(0), operands.get(0));
+            negated[i] = condition.getOperator() == TypedCondition.Operator.ne;
+            break;
+        case lt:
+        case le:
+            if (type == Type.LONG) {
+                long value = (Long) operands.get(0);
+                lowerLongs[i] = Long.MIN_VALUE;
+                upperLongs[i] = value;
+                if (condition.getOperator() == TypedCondition.Operator.lt) {
+                    // nothing is less than the lowest value
+                    negated[i] = value == Long.MIN_VALUE;
+                    upperLongs[i] = negated[i] ? Long.MAX_VALUE : value - 1;
+                }
+            } else {
+                double value = (Double) operands.get(0);
+                lowerDoubles[i] = Double.NEGATIVE_INFINITY;
+                upperDoubles[i] = condition.getOperator() == TypedCondition.Operator.lt ? Math.nextDown(value)
+                        : value;
+            }
+            break;
+        case gt:
+        case ge:
+            if (type == Type.LONG) {
+                long value = (Long) operands.get(0);
+                lowerLongs[i] = value;
+                upperLongs[i] = Long.MAX_VALUE;
+                if (condition.getOperator() == TypedCondition.Operator.gt) {
+                    // nothing is greater than the highest value
+                    negated[i] = value == Long.MAX_VALUE;
+                    lowerLongs[i] = negated[i] ? Long.MIN_VALUE : value + 1;
+                }
+            } else {
+                double value = (Double) operands.get(0);
+                lowerDoubles[i] = condition.getOperator() == TypedCondition.Operator.gt ? Math.nextUp(value) : value;
+                upperDoubles[i] = Double.POSITIVE_INFINITY;
+            }
+            break;
+        case range:
+            range(i, operands.get(0), operands.get(1));
+            break;
+        case in:
+            if (type == Type.DOUBLE) {
+                double[] set = new double[operands.size()];
+                for (int v = 0; v < set.length; v++) {
+                    set[v] = (Double) operands.get(v);
+                }
+                Arrays.sort(set);
+                doubleSets[i] = set;
+            } else {
+                long[] set = new long[operands.size()];
+                for (int v = 0; v < set.length; v++) {
+                    set[v] = toLong(operands.get(v));
+                }
+                Arrays.sort(set);
+                longSets[i] = set;
+            }
+            break;
+        }
+    }
+
+    private void range(int i, Object lowest, Object highest) {
+        if (type == Type.DOUBLE) {
+            lowerDoubles[i] = (Double) lowest;
+            upperDoubles[i] = (Double) highest;
+        } else {
+            lowerLongs[i] = toLong(lowest);
+            upperLongs[i] = toLong(highest);
+        }
+    }
+
+    /**
+     * @return a long or boolean value as compared, a boolean being 1 or 0
+     */
+    private static long toLong(Object value) {
+        return value instanceof Boolean ? (Boolean) value ? 1 : 0 : (Long) value;
+    }
+
+    /**
+     * Adds the groups whose condition on the attribute is satisfied by the
+     * span attributes to the bitset.
+     *
+     * @param attributes the span attributes
+     * @param satisfied  the bitset of satisfied groups
+     */
+    void match(Attributes attributes, long[] satisfied) {
+        Object value = attributes.get(key);
+        if (value == null) {
+            return;
+        }
+        if (type == Type.DOUBLE) {
+            double number = (Double) value;
+            for (int i = 0; i < groups.length; i++) {
+                boolean match = doubleSets[i] != null ? Arrays.binarySearch(doubleSets[i], number) >= 0
+                        : number >= lowerDoubles[i] && number <= upperDoubles[i];
+                if (match != negated[i]) {
+                    RuleProgram.or(satisfied, groups[i]);
+                }
+            }
+        } else {
+            long number = type == Type.LONG ? (Long) value : (Boolean) value ? 1 : 0;
+            for (int i = 0; i < groups.length; i++) {
+                boolean match = longSets[i] != null ? Arrays.binarySearch(longSets[i], number) >= 0
+                        : number >= lowerLongs[i] && number <= upperLongs[i];
+                if (match != negated[i]) {
+                    RuleProgram.or(satisfied, groups[i]);
+                }
+            }
+        }
+    }
+
+}
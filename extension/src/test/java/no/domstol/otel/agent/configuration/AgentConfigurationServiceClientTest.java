@@ -0,0 +1,526 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.autoconfigure.spi.ConfigProperties;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import no.domstol.otel.trace.samplers.DynamicSamplerWrapper;
+import no.domstol.otel.trace.samplers.SamplerMetrics;
+
+public class AgentConfigurationServiceClientTest {
+
+    private static final String ETAG = "\"5d41402abc4b2a76\"";
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<String> requests = new ArrayList<>();
+    private volatile boolean advertiseSync;
+    private volatile String client = "apache";
+    private volatile String timeout;
+    private volatile int failWith;
+    private volatile String metrics;
+    private final Map<String, String> properties = new HashMap<>();
+    private volatile String configuration = "{\"serviceName\":\"svc\",\"sampler\":\"always_on\",\"timestamp\":1000}";
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        // watches wait for a change, holding a thread each
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/agent-configuration/svc", this::getConfiguration);
+        server.createContext("/agent-configuration/svc/sync", this::getConfiguration);
+        server.createContext("/metrics/svc", exchange -> {
+            metrics = record(exchange);
+            respond(exchange, 200, null);
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testNotModifiedIsNotRead() {
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        SamplerMetrics metrics = new SamplerMetrics();
+
+        AgentConfiguration remote = client.synchronize(local, config(), metrics);
+        assertNotSame(local, remote);
+        assertEquals(1000, remote.getTimestamp());
+        // not modified, so the configuration passed is returned as it is
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertEquals(Arrays.asList("GET /agent-configuration/svc null", "POST /metrics/svc null",
+                "GET /agent-configuration/svc " + ETAG, "POST /metrics/svc null"), requests);
+
+        // modified, so read again
+        configuration = "{\"serviceName\":\"svc\",\"sampler\":\"always_off\",\"timestamp\":2000}";
+        AgentConfiguration modified = client.synchronize(remote, config(), metrics);
+        assertEquals(AgentConfiguration.SamplerType.always_off, modified.getSampler());
+        assertEquals("GET /agent-configuration/svc " + ETAG, requests.get(4));
+        assertSame(modified, client.synchronize(modified, config(), metrics));
+        assertEquals("GET /agent-configuration/svc " + ETAG.replace("5d", "6e"), requests.get(6));
+    }
+
+    @Test
+    public void testCachedRevisionIsNotReadAgain() {
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration cached = new AgentConfiguration();
+        cached.setServiceName("svc");
+        cached.setTimestamp(1000);
+        client.setRevision(ETAG, cached.getTimestamp());
+        assertSame(cached, client.synchronize(cached, config(), null));
+        assertEquals(Arrays.asList("GET /agent-configuration/svc " + ETAG), requests);
+    }
+
+    @Test
+    public void testNewerLocalIsUploadedWhenNotModified() {
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        client.synchronize(local, config(), null);
+        // read from a file after the remote configuration was read
+        AgentConfiguration file = new AgentConfiguration();
+        file.setServiceName("svc");
+        file.setTimestamp(1500);
+        assertSame(file, client.synchronize(file, config(), null));
+        assertEquals(Arrays.asList("GET /agent-configuration/svc null", "GET /agent-configuration/svc " + ETAG,
+                "PUT /agent-configuration/svc null"), requests);
+    }
+
+    @Test
+    public void testSyncInOneRequest() {
+        advertiseSync = true;
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        SamplerMetrics metrics = new SamplerMetrics();
+
+        AgentConfiguration remote = client.synchronize(local, config(), metrics);
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertEquals(Arrays.asList("GET /agent-configuration/svc null", "POST /metrics/svc null",
+                "POST /agent-configuration/svc/sync " + ETAG), requests);
+
+        // no longer supported, so back to two requests
+        advertiseSync = false;
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertEquals(Arrays.asList("POST /agent-configuration/svc/sync " + ETAG,
+                "GET /agent-configuration/svc " + ETAG, "POST /metrics/svc null"),
+                requests.subList(3, requests.size()));
+    }
+
+    @Test
+    public void testMetricsAreSentAgainWhenSyncFails() {
+        advertiseSync = true;
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        DynamicSamplerWrapper sampler = new DynamicSamplerWrapper(Sampler.alwaysOn(), Map.of());
+        SamplerMetrics metrics = sampler.getMetrics();
+        AgentConfiguration remote = client.synchronize(local, config(), metrics);
+
+        sample(sampler, 2);
+        failWith = 503;
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        sample(sampler, 1);
+        failWith = 0;
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertTrue(this.metrics.contains("\"processed_samples\":3"), this.metrics);
+        // once received they are not sent again
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertTrue(this.metrics.contains("\"processed_samples\":0"), this.metrics);
+    }
+
+    @Test
+    public void testFailuresAreReportedOnce() {
+        properties.put("otel.configuration.service.failure.threshold", "10");
+        advertiseSync = true;
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        SamplerMetrics metrics = new SamplerMetrics();
+        AgentConfiguration remote = client.synchronize(local, config(), metrics);
+
+        failWith = 503;
+        client.synchronize(remote, config(), metrics);
+        client.synchronize(remote, config(), metrics);
+        // the metrics are received along with a configuration that cannot be read
+        failWith = 0;
+        configuration = "{\"serviceName\":\"svc\",\"timestamp\":2000";
+        assertSame(remote, client.synchronize(remote, config(), metrics));
+        assertTrue(this.metrics.contains("\"consecutive_failures\":2"), this.metrics);
+        // so only the failure since is reported with the next
+        configuration = "{\"serviceName\":\"svc\",\"sampler\":\"always_off\",\"timestamp\":2000}";
+        assertNotSame(remote, client.synchronize(remote, config(), metrics));
+        assertTrue(this.metrics.contains("\"consecutive_failures\":1"), this.metrics);
+    }
+
+    @Test
+    public void testSyncPath() {
+        assertEquals("/agent-configuration/svc/sync", AgentConfigurationServiceClient.syncPath(response(
+                "<https://example.com/docs>; rel=\"help\", </agent-configuration/svc/sync>; rel=\"sync\"")));
+        assertEquals(null, AgentConfigurationServiceClient.syncPath(response("</x>; rel=\"next\"")));
+    }
+
+    private static ServiceTransport.Response response(String link) {
+        return new ServiceTransport.Response(200, null).addHeader("Link", link);
+    }
+
+    @Test
+    public void testJdkClient() {
+        client = "jdk";
+        String initial = configuration;
+        testNotModifiedIsNotRead();
+        requests.clear();
+        configuration = initial;
+        testNewerLocalIsUploadedWhenNotModified();
+        requests.clear();
+        testSyncInOneRequest();
+    }
+
+    @Test
+    public void testHungServiceTimesOut() {
+        CountDownLatch released = new CountDownLatch(1);
+        server.createContext("/agent-configuration/hung", exchange -> {
+            try {
+                released.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, configuration);
+        });
+        timeout = "500";
+        try {
+            for (String client : Arrays.asList("apache", "jdk")) {
+                this.client = client;
+                AgentConfiguration local = new AgentConfiguration();
+                local.setServiceName("hung");
+                long start = System.nanoTime();
+                // the configuration in use is kept
+                assertSame(local, new AgentConfigurationServiceClient().synchronize(local, config(), null));
+                long elapsed = System.nanoTime() - start;
+                assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(500), client);
+                assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5), client);
+            }
+        } finally {
+            released.countDown();
+        }
+    }
+
+    @Test
+    public void testWatchAppliesChangesAtOnce() throws Exception {
+        server.createContext("/agent-configuration/svc/watch", this::watchConfiguration);
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        BlockingQueue<AgentConfiguration> changes = new LinkedBlockingQueue<>();
+        try {
+            client.watch("svc", config(), changes::add);
+            // the configuration is read at once, as no tag is known yet
+            assertEquals(1000, changes.poll(10, TimeUnit.SECONDS).getTimestamp());
+            waitForRequests(2);
+            assertTrue(client.isWatching());
+
+            long start = System.nanoTime();
+            change("{\"serviceName\":\"svc\",\"sampler\":\"always_off\",\"timestamp\":2000}");
+            AgentConfiguration changed = changes.poll(10, TimeUnit.SECONDS);
+            assertEquals(AgentConfiguration.SamplerType.always_off, changed.getSampler());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            // while watching the configuration is not polled, only the metrics posted
+            waitForRequests(3);
+            assertSame(changed, client.synchronize(changed, config(), new SamplerMetrics()));
+            synchronized (requests) {
+                assertFalse(requests.contains("GET /agent-configuration/svc " + ETAG.replace("5d", "6e")));
+                assertTrue(requests.contains("POST /metrics/svc null"));
+            }
+        } finally {
+            client.stopWatching();
+        }
+        assertFalse(client.isWatching());
+    }
+
+    @Test
+    public void testPollsWhenWatchFails() throws Exception {
+        server.createContext("/agent-configuration/svc/watch", exchange -> {
+            record(exchange);
+            respond(exchange, 404, null);
+        });
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        try {
+            client.watch("svc", config(), configuration -> {
+            });
+            waitForRequests(1);
+            assertFalse(client.isWatching());
+            assertNotSame(local, client.synchronize(local, config(), null));
+            assertEquals(Arrays.asList("GET /agent-configuration/svc/watch null", "GET /agent-configuration/svc null"),
+                    requests);
+        } finally {
+            client.stopWatching();
+        }
+    }
+
+    @Test
+    public void testWatchSharesTheCircuit() throws Exception {
+        server.createContext("/agent-configuration/svc/watch", exchange -> {
+            record(exchange);
+            respond(exchange, 503, null);
+        });
+        properties.put("otel.configuration.service.failure.threshold", "1");
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        try {
+            client.watch("svc", config(), configuration -> {
+            });
+            CircuitBreaker breaker = client.breaker(config());
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (breaker.getState() != CircuitBreaker.State.open && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(CircuitBreaker.State.open, breaker.getState());
+            // the failed watch opened the circuit, so the service is not polled either
+            assertSame(local, client.synchronize(local, config(), null));
+            assertEquals(Arrays.asList("GET /agent-configuration/svc/watch null"), requests);
+        } finally {
+            client.stopWatching();
+        }
+    }
+
+    @Test
+    public void testCircuitOpensWhileServiceFails() throws Exception {
+        properties.put("otel.configuration.service.failure.threshold", "2");
+        properties.put("otel.configuration.service.interval", "100");
+        properties.put("otel.configuration.service.backoff.max", "300");
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration local = new AgentConfiguration();
+        local.setServiceName("svc");
+        SamplerMetrics metrics = new SamplerMetrics();
+        assertEquals(Duration.ofMillis(100), client.getNextDelay(config()));
+        long initial = client.getInitialDelay(config()).toMillis();
+        assertTrue(initial >= 0 && initial < 100);
+
+        failWith = 503;
+        assertSame(local, client.synchronize(local, config(), metrics));
+        assertSame(local, client.synchronize(local, config(), metrics));
+        // the circuit is open, so the service is not asked
+        assertSame(local, client.synchronize(local, config(), metrics));
+        assertEquals(2, requests.size());
+        long delay = client.getNextDelay(config()).toMillis();
+        assertTrue(delay > 0 && delay <= 300, Long.toString(delay));
+
+        // the probe succeeds, reporting the failures before it
+        failWith = 0;
+        Thread.sleep(delay);
+        assertNotSame(local, client.synchronize(local, config(), metrics));
+        assertEquals(Arrays.asList("GET /agent-configuration/svc null", "POST /metrics/svc null"),
+                requests.subList(2, requests.size()));
+        assertTrue(this.metrics.contains("\"circuit_state\":\"half_open\""), this.metrics);
+        assertTrue(this.metrics.contains("\"consecutive_failures\":2"), this.metrics);
+        assertEquals(Duration.ofMillis(100), client.getNextDelay(config()));
+    }
+
+    private static void sample(Sampler sampler, int spans) {
+        for (int i = 0; i < spans; i++) {
+            sampler.shouldSample(Context.root(), "00000000000000000000000000000001", "span", SpanKind.SERVER,
+                    Attributes.empty(), List.of());
+        }
+    }
+
+    private synchronized void change(String configuration) {
+        this.configuration = configuration;
+        notifyAll();
+    }
+
+    private String etag() {
+        return ETAG.replace("5d", configuration.contains("2000") ? "6e" : "5d");
+    }
+
+    /**
+     * Answers a watch when the configuration no longer has the tag, or with
+     * 304 after a while
+     */
+    private void watchConfiguration(HttpExchange exchange) throws IOException {
+        record(exchange);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        long deadline = System.currentTimeMillis() + 2000;
+        synchronized (this) {
+            while (etag().equals(ifNoneMatch) && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        respondConfiguration(exchange);
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (requests) {
+                if (requests.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void getConfiguration(HttpExchange exchange) throws IOException {
+        String body = record(exchange);
+        if (failWith != 0) {
+            respond(exchange, failWith, null);
+            return;
+        }
+        if (body.length() > 0) {
+            metrics = body;
+        }
+        respondConfiguration(exchange);
+    }
+
+    private void respondConfiguration(HttpExchange exchange) throws IOException {
+        String etag = etag();
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (advertiseSync) {
+            exchange.getResponseHeaders().add("Link", "</agent-configuration/svc/sync>; rel=\"sync\"");
+        }
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            respond(exchange, 304, null);
+        } else {
+            respond(exchange, 200, configuration);
+        }
+    }
+
+    private String record(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        synchronized (requests) {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " "
+                    + exchange.getRequestHeaders().getFirst("If-None-Match"));
+        }
+        return body;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        if (body == null) {
+            // the server closes the connection after a response without a body
+            exchange.getResponseHeaders().add("Connection", "close");
+        }
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private ConfigProperties config() {
+        Map<String, String> properties = new HashMap<>(this.properties);
+        properties.put("otel.configuration.service.url", "http://localhost:" + server.getAddress().getPort());
+        properties.put("otel.configuration.service.client", client);
+        if (timeout != null) {
+            properties.put("otel.configuration.service.timeout", timeout);
+        }
+        return new MapConfigProperties(properties);
+    }
+
+    /**
+     * The agent properties, of which the client only reads strings
+     */
+    static class MapConfigProperties implements ConfigProperties {
+        private final Map<String, String> properties;
+
+        MapConfigProperties(Map<String, String> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public String getString(String name) {
+            return properties.get(name);
+        }
+
+        @Override
+        public Boolean getBoolean(String name) {
+            String value = properties.get(name);
+            return value == null ? null : Boolean.valueOf(value);
+        }
+
+        @Override
+        public Integer getInt(String name) {
+            String value = properties.get(name);
+            return value == null ? null : Integer.valueOf(value);
+        }
+
+        @Override
+        public Long getLong(String name) {
+            String value = properties.get(name);
+            return value == null ? null : Long.valueOf(value);
+        }
+
+        @Override
+        public Double getDouble(String name) {
+            String value = properties.get(name);
+            return value == null ? null : Double.valueOf(value);
+        }
+
+        @Override
+        public Duration getDuration(String name) {
+            String value = properties.get(name);
+            return value == null ? null : Duration.ofMillis(Long.parseLong(value));
+        }
+
+        @Override
+        public List<String> getList(String name) {
+            String value = properties.get(name);
+            return value == null ? List.of() : Arrays.asList(value.split(","));
+        }
+
+        @Override
+        public Map<String, String> getMap(String name) {
+            return Map.of();
+        }
+    }
+
+}
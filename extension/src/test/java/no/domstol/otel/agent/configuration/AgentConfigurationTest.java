@@ -6,15 +6,20 @@ package no.domstol.otel.agent.configuration;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.junit.jupiter.api.Test;
 
@@ -24,6 +29,8 @@ import tools.jackson.databind.ObjectMapper;
 import tools.jackson.dataformat.yaml.YAMLFactory;
 
 import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanKind;
+import no.domstol.otel.agent.configuration.TypedCondition.Operator;
 
 public class AgentConfigurationTest {
 
@@ -60,6 +67,13 @@ public class AgentConfigurationTest {
         assertEquals(AgentConfiguration.SamplerType.always_on, config.getSampler());
     }
 
+    @Test
+    public void testParentBasedSamplers() {
+        assertTrue(AgentConfiguration.SamplerType.parentbased_ratelimited.isParentBased());
+        assertFalse(AgentConfiguration.SamplerType.traceidratio.isParentBased());
+        assertFalse(AgentConfiguration.SamplerType.adaptive.isParentBased());
+    }
+
     @Test
     public void testSetAndGetSampleRatio() {
         AgentConfiguration config = new AgentConfiguration();
@@ -67,18 +81,109 @@ public class AgentConfigurationTest {
         assertEquals(0.5, config.getSampleRatio());
     }
 
+    @Test
+    public void testSetAndGetMaxSpansPerSecond() {
+        AgentConfiguration config = new AgentConfiguration();
+        assertNull(config.getMaxSpansPerSecond());
+        config.setSampler(AgentConfiguration.SamplerType.parentbased_ratelimited);
+        config.setMaxSpansPerSecond(100.0);
+        assertEquals(100.0, config.getMaxSpansPerSecond());
+        assertNotEquals(new AgentConfiguration(), config);
+        assertTrue(config.toString().contains("\"maxSpansPerSecond\" : 100.0"));
+    }
+
     @Test
     public void testLoadConfigurationFile() throws StreamReadException, DatabindException, IOException {
         ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
         Path file = Paths.get("src", "test", "resources", "traces-configuration.yaml");
         AgentConfiguration configuration = yamlMapper.readValue(file.toFile(), AgentConfiguration.class);
 
-        Map<String, List<Map<AttributeKey<String>, Pattern>>> rules = configuration.getRules();
+        Map<String, List<CompiledRule>> rules = configuration.getRules();
 
         assertFalse(rules.get("include").isEmpty());
         assertFalse(rules.get("exclude").isEmpty());
     }
 
+    @Test
+    public void testSampleRules() throws Exception {
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        AgentConfiguration configuration = yamlMapper.readValue("rules:\n" + "  - sample:\n"
+                + "    - http.target: \"^/api/search\"\n" + "      ratio: 0.01\n", AgentConfiguration.class);
+        List<CompiledRule> sample = configuration.getRules().get("sample");
+        assertEquals(1, sample.size());
+        assertEquals("^/api/search",
+                sample.get(0).getAttributes().get(AttributeKey.stringKey("http.target")).pattern());
+        // the ratio is not an attribute to match
+        assertEquals(1, sample.get(0).getAttributes().size());
+        assertEquals(0.01, sample.get(0).getRatio());
+
+        AgentConfiguration invalid = yamlMapper.readValue("rules:\n" + "  - sample:\n"
+                + "    - http.target: \"^/api/search\"\n" + "      ratio: 2\n", AgentConfiguration.class);
+        assertThrows(IllegalArgumentException.class, invalid::getRules);
+    }
+
+    @Test
+    public void testTypedRules() throws Exception {
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        AgentConfiguration configuration = yamlMapper.readValue("rules:\n" + "  - exclude:\n"
+                + "    - http.status_code:long: lt 400\n" + "      cache.hit:boolean: true\n"
+                + "      http.target: \"^/api\"\n", AgentConfiguration.class);
+        CompiledRule rule = configuration.getRules().get("exclude").get(0);
+        // the comparisons are parsed, and kept apart from the string attributes
+        assertEquals(Set.of(new TypedCondition(AttributeKey.longKey("http.status_code"), Operator.lt, List.of(400L)),
+                new TypedCondition(AttributeKey.booleanKey("cache.hit"), Operator.eq, List.of(true))),
+                Set.copyOf(rule.getTypedConditions()));
+        assertEquals(Set.of(AttributeKey.stringKey("http.target")), rule.getAttributes().keySet());
+
+        AgentConfiguration invalid = yamlMapper.readValue("rules:\n" + "  - exclude:\n"
+                + "    - http.status_code:long: about 400\n", AgentConfiguration.class);
+        assertThrows(IllegalArgumentException.class, invalid::getRules);
+    }
+
+    @Test
+    public void testSpanNameAndKindRules() throws Exception {
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        AgentConfiguration configuration = yamlMapper.readValue("rules:\n" + "  - exclude:\n"
+                + "    - span.kind: \"server, Consumer\"\n" + "      span.name: \"^GET \"\n"
+                + "      span.name:string: \"^POST \"\n", AgentConfiguration.class);
+        CompiledRule rule = configuration.getRules().get("exclude").get(0);
+        assertEquals(EnumSet.of(SpanKind.SERVER, SpanKind.CONSUMER), rule.getSpanKinds());
+        assertEquals("^GET ", rule.getSpanName().pattern());
+        // an attribute named like the span name is only tested when asked for
+        assertEquals("^POST ", rule.getAttributes().get(AttributeKey.stringKey("span.name")).pattern());
+        assertEquals(1, rule.getAttributes().size());
+
+        AgentConfiguration regex = yamlMapper.readValue("rules:\n" + "  - exclude:\n"
+                + "    - span.kind: \"^INTERNAL$\"\n", AgentConfiguration.class);
+        assertThrows(IllegalArgumentException.class, regex::getRules);
+        AgentConfiguration unknown = yamlMapper.readValue("rules:\n" + "  - exclude:\n"
+                + "    - span.kind: \"SERVER,INTERNAL_CLIENT\"\n", AgentConfiguration.class);
+        assertThrows(IllegalArgumentException.class, unknown::getRules);
+    }
+
+    @Test
+    public void testRulesAreCompiledOnce() throws Exception {
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        String yaml = "rules:\n" + "  - exclude:\n" + "    - http.target: \"^/cached/a\"\n"
+                + "    - http.target: \"^/cached/b\"\n";
+        AgentConfiguration configuration = yamlMapper.readValue("sampleRatio: 0.1\n" + yaml,
+                AgentConfiguration.class);
+        Map<String, List<CompiledRule>> rules = configuration.getRules();
+        long compiled = RuleCache.compiledPatterns();
+        // a reload only changing the sample ratio compiles nothing
+        AgentConfiguration reloaded = yamlMapper.readValue("sampleRatio: 0.5\n" + yaml, AgentConfiguration.class);
+        assertSame(rules, reloaded.getRules());
+        assertEquals(compiled, RuleCache.compiledPatterns());
+        // changing one rule compiles that pattern only
+        AgentConfiguration changed = yamlMapper.readValue(yaml.replace("/cached/b", "/cached/c"),
+                AgentConfiguration.class);
+        Map<String, List<CompiledRule>> changedRules = changed.getRules();
+        assertEquals(compiled + 1, RuleCache.compiledPatterns());
+        assertSame(rules.get("exclude").get(0).getAttributes().get(AttributeKey.stringKey("http.target")),
+                changedRules.get("exclude").get(0).getAttributes().get(AttributeKey.stringKey("http.target")));
+        assertThrows(UnsupportedOperationException.class, () -> rules.get("exclude").remove(0));
+    }
+
     @Test
     public void testSerializeToJSON() throws StreamReadException, DatabindException, IOException {
         ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
@@ -0,0 +1,145 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import no.domstol.otel.agent.configuration.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private CircuitBreaker breaker(long seed) {
+        return new CircuitBreaker(3, 30_000, 300_000, new Random(seed), now::get);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = breaker(1);
+        assertFalse(breaker.failed());
+        assertFalse(breaker.failed());
+        // a success in between starts counting again
+        assertEquals(2, breaker.succeeded());
+        assertFalse(breaker.failed());
+        assertFalse(breaker.failed());
+        assertEquals(30_000, breaker.nextDelay());
+        assertTrue(breaker.allowRequest());
+
+        assertTrue(breaker.failed());
+        assertEquals(State.open, breaker.getState());
+        assertEquals(3, breaker.getConsecutiveFailures());
+        long delay = breaker.getDelay();
+        assertTrue(delay >= 30_000 && delay <= 90_000, Long.toString(delay));
+        assertEquals(delay, breaker.nextDelay());
+        assertFalse(breaker.allowRequest());
+
+        now.addAndGet(delay - 1);
+        assertEquals(1, breaker.nextDelay());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        CircuitBreaker breaker = breaker(2);
+        for (int i = 0; i < 3; i++) {
+            breaker.failed();
+        }
+        long previous = breaker.getDelay();
+        now.addAndGet(previous);
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.half_open, breaker.getState());
+
+        // a failed probe opens the circuit again, for longer on average
+        assertTrue(breaker.failed());
+        assertEquals(State.open, breaker.getState());
+        long delay = breaker.getDelay();
+        assertTrue(delay >= 30_000 && delay <= previous * 3, delay + " after " + previous);
+
+        now.addAndGet(delay);
+        assertTrue(breaker.allowRequest());
+        assertEquals(4, breaker.succeeded());
+        assertEquals(State.closed, breaker.getState());
+        assertEquals(30_000, breaker.nextDelay());
+    }
+
+    @Test
+    public void testSingleProbe() {
+        CircuitBreaker breaker = breaker(3);
+        for (int i = 0; i < 3; i++) {
+            breaker.failed();
+        }
+        long delay = breaker.getDelay();
+        now.addAndGet(delay);
+        // only the first caller makes the probe, the others wait for its outcome
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(State.half_open, breaker.getState());
+        assertEquals(3, breaker.succeeded());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+
+        for (int i = 0; i < 3; i++) {
+            breaker.failed();
+        }
+        delay = breaker.getDelay();
+        now.addAndGet(delay);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        // a probe never recorded does not keep the circuit from being probed again
+        now.addAndGet(delay - 1);
+        assertFalse(breaker.allowRequest());
+        now.addAndGet(1);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testUnreportedFailures() {
+        CircuitBreaker breaker = breaker(4);
+        breaker.failed();
+        breaker.failed();
+        int failures = breaker.getUnreportedFailures();
+        assertEquals(2, failures);
+        // failing while the failures are being reported
+        breaker.failed();
+        breaker.reported(failures);
+        assertEquals(1, breaker.getUnreportedFailures());
+        // reaching the service does not report them
+        assertEquals(3, breaker.succeeded());
+        assertEquals(1, breaker.getUnreportedFailures());
+        breaker.reported(1);
+        assertEquals(0, breaker.getUnreportedFailures());
+    }
+
+    @Test
+    public void testDelaysAreBoundedAndSpread() {
+        Set<Long> delays = new HashSet<>();
+        for (long seed = 0; seed < 20; seed++) {
+            CircuitBreaker breaker = breaker(seed);
+            for (int i = 0; i < 50; i++) {
+                breaker.failed();
+                assertTrue(breaker.getDelay() >= 30_000 && breaker.getDelay() <= 300_000);
+                now.addAndGet(breaker.getDelay());
+                breaker.allowRequest();
+            }
+            delays.add(breaker.getDelay());
+            long initial = breaker.initialDelay();
+            assertTrue(initial >= 0 && initial < 30_000);
+        }
+        // agents failing at the same time do not come back at the same time
+        assertTrue(delays.size() > 10, delays.toString());
+    }
+
+}
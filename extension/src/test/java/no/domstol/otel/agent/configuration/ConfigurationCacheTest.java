@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 Domstoladministrasjonen, Norway
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ConfigurationCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ConfigurationCache cache = new ConfigurationCache(directory.resolve("cache/svc.json"));
+        assertNull(cache.read("svc", null));
+
+        AgentConfiguration configuration = new AgentConfiguration();
+        configuration.setServiceName("svc");
+        configuration.setSampler(AgentConfiguration.SamplerType.always_off);
+        configuration.setTimestamp(1000);
+        cache.write(configuration, "\"5d41402abc4b2a76\"");
+        configuration.setTimestamp(2000);
+        cache.write(configuration, "\"6e41402abc4b2a76\"");
+
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        AgentConfiguration cached = cache.read("svc", client);
+        assertEquals(configuration, cached);
+        assertEquals("\"6e41402abc4b2a76\"", client.getRevision());
+        // only the file itself is left
+        try (Stream<Path> files = Files.list(directory.resolve("cache"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testOtherServiceIsNotRead() {
+        ConfigurationCache cache = new ConfigurationCache(directory.resolve("svc.json"));
+        AgentConfiguration configuration = new AgentConfiguration();
+        configuration.setServiceName("other");
+        cache.write(configuration, "\"5d41402abc4b2a76\"");
+        AgentConfigurationServiceClient client = new AgentConfigurationServiceClient();
+        assertNull(cache.read("svc", client));
+        assertNull(client.getRevision());
+    }
+
+    @Test
+    public void testUnreadableIsIgnored() throws IOException {
+        Path file = directory.resolve("svc.json");
+        Files.write(file, "{\"revision\":".getBytes(StandardCharsets.UTF_8));
+        assertNull(new ConfigurationCache(file).read("svc", null));
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.AttributeKey;
+import no.domstol.otel.agent.configuration.TypedCondition.Operator;
+
+public class TypedConditionTest {
+
+    private static final AttributeKey<Long> STATUS = AttributeKey.longKey("http.status_code");
+    private static final AttributeKey<Double> DURATION = AttributeKey.doubleKey("duration");
+    private static final AttributeKey<Boolean> CACHED = AttributeKey.booleanKey("cached");
+
+    @Test
+    public void testKey() {
+        assertEquals(STATUS, TypedCondition.key("http.status_code:long"));
+        assertEquals(DURATION, TypedCondition.key("duration:double"));
+        assertEquals(CACHED, TypedCondition.key("cached:boolean"));
+        assertNull(TypedCondition.key("http.target"));
+        assertNull(TypedCondition.key("url:https"));
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(new TypedCondition(STATUS, Operator.eq, List.of(500L)),
+                TypedCondition.parse("http.status_code:long", "500"));
+        assertEquals(new TypedCondition(STATUS, Operator.range, List.of(500L, 599L)),
+                TypedCondition.parse("http.status_code:long", " range 500 .. 599"));
+        assertEquals(new TypedCondition(STATUS, Operator.in, List.of(401L, 403L)),
+                TypedCondition.parse("http.status_code:long", "in 401, 403"));
+        assertEquals(new TypedCondition(DURATION, Operator.lt, List.of(0.5)),
+                TypedCondition.parse("duration:double", "lt 0.5"));
+        assertEquals(new TypedCondition(CACHED, Operator.ne, List.of(true)),
+                TypedCondition.parse("cached:boolean", "ne true"));
+        assertEquals("http.status_code:long=range 500..599",
+                TypedCondition.parse("http.status_code:long", "range 500..599").toString());
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("cached:boolean", "lt true"));
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("cached:boolean", "yes"));
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("http.status_code:long", "about 500"));
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("http.status_code:long", "range 500"));
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("http.status_code:long", "ge 0.5"));
+        assertThrows(IllegalArgumentException.class, () -> TypedCondition.parse("http.target", "500"));
+        assertThrows(IllegalArgumentException.class, () -> new TypedCondition(STATUS, Operator.ge, List.of(0.5)));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TypedCondition(STATUS, Operator.range, List.of(500L)));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+
+public class AdaptiveRatioControllerTest {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(AdaptiveRatioController.INTERVAL_SECONDS);
+
+    @Test
+    public void testConvergesOnTarget() {
+        AtomicLong now = new AtomicLong();
+        AdaptiveRatioController controller = new AdaptiveRatioController(600, 0.0, now::get);
+        assertEquals(0.0, controller.getRatio());
+        // 100 root spans per second, 6000 per minute
+        for (int i = 0; i < 20; i++) {
+            roots(controller.getSampler(), 1000);
+            now.addAndGet(INTERVAL);
+            controller.adjust();
+        }
+        assertEquals(0.1, controller.getRatio(), 0.001);
+        // the traffic doubles, the ratio follows gradually
+        roots(controller.getSampler(), 2000);
+        now.addAndGet(INTERVAL);
+        Sampler sampler = controller.adjust();
+        assertNotNull(sampler);
+        assertSame(sampler, controller.getSampler());
+        assertTrue(controller.getRatio() < 0.1 && controller.getRatio() > 0.05, "ratio " + controller.getRatio());
+        for (int i = 0; i < 20; i++) {
+            roots(controller.getSampler(), 2000);
+            now.addAndGet(INTERVAL);
+            controller.adjust();
+        }
+        assertEquals(0.05, controller.getRatio(), 0.001);
+        // a steady rate does not replace the sampler
+        roots(controller.getSampler(), 2000);
+        now.addAndGet(INTERVAL);
+        assertNull(controller.adjust());
+    }
+
+    @Test
+    public void testOnlyRootSpansAreCounted() {
+        AtomicLong now = new AtomicLong();
+        AdaptiveRatioController controller = new AdaptiveRatioController(60, 1.0, now::get);
+        Sampler sampler = controller.getSampler();
+        roots(sampler, 10);
+        Context parent = Context.root().with(Span.wrap(SpanContext.create("4bf92f3577b34da6a3ce929d0e0e4736",
+                "00f067aa0ba902b7", TraceFlags.getSampled(), TraceState.getDefault())));
+        for (int i = 0; i < 1000; i++) {
+            sampler.shouldSample(parent, "4bf92f3577b34da6a3ce929d0e0e4736", "child", SpanKind.INTERNAL,
+                    Attributes.empty(), Collections.emptyList());
+        }
+        now.addAndGet(INTERVAL);
+        controller.adjust();
+        // 60 root spans per minute, all of them can be sampled
+        assertEquals(1.0, controller.getRatio());
+    }
+
+    @Test
+    public void testNoTraffic() {
+        AtomicLong now = new AtomicLong();
+        AdaptiveRatioController controller = new AdaptiveRatioController(60, 0.5, now::get);
+        now.addAndGet(INTERVAL);
+        controller.adjust();
+        assertEquals(1.0, controller.getRatio());
+    }
+
+    private static void roots(Sampler sampler, int count) {
+        for (int i = 0; i < count; i++) {
+            sampler.shouldSample(Context.root(), String.format("%032x", i + 1), "root", SpanKind.SERVER,
+                    Attributes.empty(), Collections.emptyList());
+        }
+    }
+
+}
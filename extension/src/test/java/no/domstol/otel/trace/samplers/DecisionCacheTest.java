@@ -0,0 +1,108 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import no.domstol.otel.agent.configuration.CompiledRule;
+
+public class DecisionCacheTest {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+
+    @SuppressWarnings("unchecked")
+    private static final AttributeKey<String>[] KEYS = new AttributeKey[] { HTTP_TARGET, HTTP_METHOD };
+
+    @Test
+    public void testGetAndPut() {
+        DecisionCache cache = new DecisionCache(KEYS, 16);
+        Attributes get = Attributes.of(HTTP_TARGET, "/health", HTTP_METHOD, "GET");
+        assertEquals(DecisionCache.MISS, cache.get(get));
+        cache.put(get, 3);
+        assertEquals(3, cache.get(get));
+        // only the values of the keys tested count
+        assertEquals(3, cache.get(Attributes.of(HTTP_TARGET, "/health", HTTP_METHOD, "GET",
+                AttributeKey.stringKey("thread.name"), "main")));
+        assertEquals(DecisionCache.MISS, cache.get(Attributes.of(HTTP_TARGET, "/health", HTTP_METHOD, "POST")));
+        // a missing attribute is part of the key
+        Attributes target = Attributes.of(HTTP_TARGET, "/health");
+        assertEquals(DecisionCache.MISS, cache.get(target));
+        cache.put(target, -1);
+        assertEquals(-1, cache.get(target));
+        assertEquals(3, cache.get(get));
+    }
+
+    @Test
+    public void testNameAndKind() {
+        @SuppressWarnings("unchecked")
+        AttributeKey<String>[] keys = new AttributeKey[] { HTTP_TARGET, AttributeKey.stringKey("span.name") };
+        DecisionCache cache = new DecisionCache(keys, 1, true, 16);
+        Attributes attributes = Attributes.of(HTTP_TARGET, "/health");
+        cache.put("GET /health", SpanKind.SERVER, attributes, 2);
+        assertEquals(2, cache.get("GET /health", SpanKind.SERVER, attributes));
+        assertEquals(DecisionCache.MISS, cache.get("GET /health", SpanKind.CLIENT, attributes));
+        assertEquals(DecisionCache.MISS, cache.get("GET /ready", SpanKind.SERVER, attributes));
+        // the name is not taken from the attributes
+        assertEquals(DecisionCache.MISS, cache.get(null, SpanKind.SERVER,
+                Attributes.of(HTTP_TARGET, "/health", AttributeKey.stringKey("span.name"), "GET /health")));
+    }
+
+    @Test
+    public void testBounded() {
+        DecisionCache cache = new DecisionCache(KEYS, 10);
+        assertEquals(16, cache.capacity());
+        for (int i = 0; i < 1000; i++) {
+            cache.put(Attributes.of(HTTP_TARGET, "/cases/" + i), i);
+        }
+        int cached = 0;
+        for (int i = 0; i < 1000; i++) {
+            int group = cache.get(Attributes.of(HTTP_TARGET, "/cases/" + i));
+            if (group != DecisionCache.MISS) {
+                assertEquals(i, group);
+                cached++;
+            }
+        }
+        assertEquals(16, cached);
+    }
+
+    @Test
+    public void testKeepsReferencedEntries() {
+        DecisionCache cache = new DecisionCache(KEYS, DecisionCache.WAYS);
+        Attributes hot = Attributes.of(HTTP_TARGET, "/hot");
+        cache.put(hot, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, cache.get(hot));
+            cache.put(Attributes.of(HTTP_TARGET, "/cold/" + i), 2);
+        }
+    }
+
+    @Test
+    public void testNewRulesInvalidate() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("exclude", List.of(new CompiledRule(Map.of(HTTP_TARGET, Pattern.compile("^/health")))));
+        RuleProgram program = RuleProgram.compile(rules, 100);
+        Attributes health = Attributes.of(HTTP_TARGET, "/health");
+        program.cache().put(health, program.evaluate(health));
+        assertEquals(0, program.cache().get(health));
+        RuleProgram replaced = RuleProgram.compile(rules, 100);
+        assertNotSame(program.cache(), replaced.cache());
+        assertEquals(DecisionCache.MISS, replaced.cache().get(health));
+        assertNull(RuleProgram.compile(rules).cache());
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+import no.domstol.otel.agent.configuration.CompiledRule;
+import no.domstol.otel.trace.samplers.DynamicSamplerWrapper.RuleScope;
+
+public class DynamicSamplerWrapperTest {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> PROBE = AttributeKey.stringKey("probe");
+    private static final AttributeKey<Long> VERSION = AttributeKey.longKey("version");
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    @Test
+    public void testUpdateReplacesBoth() {
+        Sampler sampler = Sampler.alwaysOn();
+        DynamicSamplerWrapper wrapper = new DynamicSamplerWrapper(Sampler.alwaysOff(), null);
+        long version = wrapper.getState().version;
+        wrapper.update(sampler, rules(7));
+        SamplerState state = wrapper.getState();
+        assertSame(sampler, state.sampler);
+        assertEquals(1, state.program.size());
+        assertEquals(version + 1, state.version);
+        // the same rules are not compiled again
+        wrapper.update(Sampler.alwaysOff(), state.program.rules());
+        assertSame(state.program, wrapper.getState().program);
+        assertEquals(version + 2, wrapper.getState().version);
+        wrapper.setRules(null);
+        assertSame(Sampler.alwaysOff(), wrapper.getState().sampler);
+        assertEquals(version + 3, wrapper.getState().version);
+    }
+
+    @Test
+    public void testUnsupportedRulesAreRejected() {
+        DynamicSamplerWrapper wrapper = new DynamicSamplerWrapper(Sampler.alwaysOn(), rules(1));
+        SamplerState state = wrapper.getState();
+        // the rules use a lookahead, which RE2/J does not support
+        assertThrows(IllegalArgumentException.class,
+                () -> wrapper.update(Sampler.alwaysOff(), rules(2), RegexEngine.re2j));
+        assertSame(state, wrapper.getState());
+        // the same rules are compiled again for another engine
+        Map<String, List<CompiledRule>> rules = Map.of("exclude",
+                List.of(new CompiledRule(Map.of(PROBE, Pattern.compile("^(x+x+)+y")))));
+        wrapper.update(Sampler.alwaysOff(), rules, RegexEngine.re2j);
+        RuleProgram program = wrapper.getState().program;
+        assertEquals(RegexEngine.re2j, program.engine());
+        wrapper.setRules(rules);
+        assertSame(program, wrapper.getState().program);
+        wrapper.update(Sampler.alwaysOff(), rules, RegexEngine.java);
+        assertEquals(RegexEngine.java, wrapper.getState().program.engine());
+        assertEquals(SamplingDecision.DROP, wrapper.shouldSample(Context.root(), TRACE_ID, "span", SpanKind.SERVER,
+                Attributes.of(PROBE, "xxxy"), Collections.emptyList()).getDecision());
+    }
+
+    @Test
+    public void testParentDecidesOutsideRuleScope() {
+        // every span is excluded by the rules and included by the sampler
+        Map<String, List<CompiledRule>> rules = Map.of("exclude",
+                List.of(new CompiledRule(Map.of(HTTP_TARGET, Pattern.compile("^/")))));
+        Attributes attributes = Attributes.of(HTTP_TARGET, "/api");
+        Context sampled = parent(TraceFlags.getSampled(), true);
+        Context dropped = parent(TraceFlags.getDefault(), false);
+
+        DynamicSamplerWrapper all = new DynamicSamplerWrapper(Sampler.alwaysOn(), rules, 0, 0, RegexEngine.java,
+                RuleScope.all, List.of(SpanKind.SERVER));
+        assertEquals(SamplingDecision.DROP, decide(all, sampled, SpanKind.INTERNAL, attributes));
+
+        DynamicSamplerWrapper root = new DynamicSamplerWrapper(Sampler.alwaysOn(), rules, 0, 0, RegexEngine.java,
+                RuleScope.root, List.of(SpanKind.SERVER));
+        assertEquals(SamplingDecision.DROP, decide(root, Context.root(), SpanKind.SERVER, attributes));
+        assertEquals(SamplingDecision.RECORD_AND_SAMPLE, decide(root, sampled, SpanKind.SERVER, attributes));
+        assertEquals(SamplingDecision.DROP, decide(root, dropped, SpanKind.INTERNAL, Attributes.empty()));
+
+        DynamicSamplerWrapper entry = new DynamicSamplerWrapper(Sampler.alwaysOn(), rules, 0, 0, RegexEngine.java,
+                RuleScope.entry, List.of(SpanKind.SERVER));
+        assertEquals(SamplingDecision.DROP, decide(entry, Context.root(), SpanKind.INTERNAL, attributes));
+        assertEquals(SamplingDecision.DROP, decide(entry, sampled, SpanKind.SERVER, attributes));
+        assertEquals(SamplingDecision.RECORD_AND_SAMPLE, decide(entry, sampled, SpanKind.CLIENT, attributes));
+        SamplerMetrics.Snapshot snapshot = entry.getMetrics().copyAndClear();
+        assertEquals(2, snapshot.filter_excluded_samples);
+        assertEquals(1, snapshot.sampler_included_samples);
+
+        // the scope is replaced along with the sampler, or kept
+        root.update(Sampler.alwaysOn(), RuleScope.all, rules, RegexEngine.java);
+        assertEquals(SamplingDecision.DROP, decide(root, sampled, SpanKind.SERVER, attributes));
+        root.update(Sampler.parentBased(Sampler.alwaysOn()), RuleScope.root, rules, RegexEngine.java);
+        root.update(Sampler.parentBased(Sampler.alwaysOn()), rules, RegexEngine.java);
+        assertEquals(SamplingDecision.RECORD_AND_SAMPLE, decide(root, sampled, SpanKind.SERVER, attributes));
+    }
+
+    @Test
+    public void testSampleRuleDecides() {
+        CompiledRule route = new CompiledRule(Map.of(HTTP_TARGET, Pattern.compile("^/api/search")), 0.0);
+        DynamicSamplerWrapper wrapper = new DynamicSamplerWrapper(Sampler.alwaysOn(), Map.of("sample", List.of(route)));
+        assertEquals(SamplingDecision.DROP, wrapper.shouldSample(Context.root(), TRACE_ID, "span", SpanKind.SERVER,
+                Attributes.of(HTTP_TARGET, "/api/search"), Collections.emptyList()).getDecision());
+        assertEquals(SamplingDecision.RECORD_AND_SAMPLE, wrapper.shouldSample(Context.root(), TRACE_ID, "span",
+                SpanKind.SERVER, Attributes.of(HTTP_TARGET, "/api/cases"), Collections.emptyList()).getDecision());
+        SamplerMetrics.Snapshot snapshot = wrapper.getMetrics().copyAndClear();
+        assertEquals(1, snapshot.sampler_excluded_samples);
+        assertEquals(1, snapshot.sampler_included_samples);
+        assertEquals(0, snapshot.filter_excluded_samples);
+    }
+
+    /**
+     * Replaces the sampler and rules as fast as possible while other threads
+     * are sampling. Every state excludes all spans except those probing its
+     * own version, which are left to its sampler, and the sampler reports the
+     * version it belongs to. A span decided by the rules of one state and the
+     * sampler of another would therefore be reported with the wrong version.
+     */
+    @Test
+    public void testDecisionsUseOnePublishedState() throws Exception {
+        DynamicSamplerWrapper wrapper = new DynamicSamplerWrapper(sampler(1), rules(1));
+        assertEquals(1, wrapper.getState().version);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong decided = new AtomicLong();
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                long previous = 0;
+                while (!done.get() && failure.get() == null) {
+                    long probe = wrapper.getState().version;
+                    SamplingResult result = wrapper.shouldSample(Context.root(), TRACE_ID, "span", SpanKind.SERVER,
+                            Attributes.of(PROBE, String.valueOf(probe)), Collections.emptyList());
+                    if (result.getDecision() == SamplingDecision.RECORD_ONLY) {
+                        long version = result.getAttributes().get(VERSION);
+                        if (version != probe) {
+                            failure.compareAndSet(null, "probe " + probe + " decided by the sampler of " + version);
+                        } else if (version < previous) {
+                            failure.compareAndSet(null, "version " + version + " seen after " + previous);
+                        }
+                        previous = version;
+                        decided.incrementAndGet();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        long version = 1;
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (System.nanoTime() < deadline && failure.get() == null) {
+            version++;
+            wrapper.update(sampler(version), rules(version));
+            Thread.yield();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(version, wrapper.getState().version);
+        assertTrue(decided.get() > 0, "no span was left to the sampler");
+    }
+
+    private static SamplingDecision decide(DynamicSamplerWrapper wrapper, Context parent, SpanKind kind,
+            Attributes attributes) {
+        return wrapper.shouldSample(parent, TRACE_ID, "span", kind, attributes, Collections.emptyList())
+                .getDecision();
+    }
+
+    /**
+     * @return a context with a parent span having the flags
+     */
+    private static Context parent(TraceFlags flags, boolean remote) {
+        SpanContext parent = remote
+                ? SpanContext.createFromRemoteParent(TRACE_ID, "00f067aa0ba902b7", flags, TraceState.getDefault())
+                : SpanContext.create(TRACE_ID, "00f067aa0ba902b7", flags, TraceState.getDefault());
+        return Context.root().with(Span.wrap(parent));
+    }
+
+    /**
+     * @return rules excluding spans unless they probe the version
+     */
+    private static Map<String, List<CompiledRule>> rules(long version) {
+        return Map.of("exclude", List.of(new CompiledRule(Map.of(PROBE, Pattern.compile("^(?!" + version + "$)")))));
+    }
+
+    /**
+     * @return a sampler recording spans with the version
+     */
+    private static Sampler sampler(long version) {
+        SamplingResult result = SamplingResult.create(SamplingDecision.RECORD_ONLY, Attributes.of(VERSION, version));
+        return new Sampler() {
+            @Override
+            public SamplingResult shouldSample(Context parentContext, String traceId, String name, SpanKind spanKind,
+                    Attributes attributes, List<LinkData> parentLinks) {
+                return result;
+            }
+
+            @Override
+            public String getDescription() {
+                return "version " + version;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        int previous = -1;
+        for (long nanos = 0; nanos < 1_000_000; nanos++) {
+            int bucket = LatencyHistogram.bucket(nanos);
+            assertTrue(bucket == previous || bucket == previous + 1, "bucket of " + nanos);
+            assertTrue(nanos <= LatencyHistogram.highestValue(bucket), "highest value of " + nanos);
+            // within about 3% of the duration
+            assertTrue(LatencyHistogram.highestValue(bucket) - nanos <= nanos / LatencyHistogram.SUB_BUCKETS,
+                    "precision of " + nanos);
+            previous = bucket;
+        }
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), LatencyHistogram.bucket(1L << 50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram(1);
+        assertNull(histogram.snapshot());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100);
+        }
+        SamplerMetrics.Latency latency = histogram.snapshot();
+        assertEquals(1000, latency.count);
+        assertEquals(100_000, latency.max);
+        assertWithin(50_000, latency.p50);
+        assertWithin(99_000, latency.p99);
+        assertWithin(99_900, latency.p999);
+        // only what is recorded since the previous snapshot
+        histogram.record(20);
+        latency = histogram.snapshot();
+        assertEquals(1, latency.count);
+        assertEquals(20, latency.p50);
+        assertEquals(20, latency.max);
+        assertNull(histogram.snapshot());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS,
+                actual + " is not " + expected);
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class RateLimitingSamplerTest {
+
+    private static final long MILLISECOND = 1_000_000L;
+
+    @Test
+    public void testBurstAndRefill() {
+        AtomicLong now = new AtomicLong(42);
+        RateLimitingSampler sampler = new RateLimitingSampler(10, now::get);
+        // a full bucket holds one second's worth of spans
+        assertEquals(10, acquire(sampler, 100));
+        // one span per 100 milliseconds is added back
+        now.addAndGet(99 * MILLISECOND);
+        assertFalse(sampler.tryAcquire());
+        now.addAndGet(MILLISECOND);
+        assertTrue(sampler.tryAcquire());
+        assertFalse(sampler.tryAcquire());
+        // idling does not fill the bucket beyond a burst
+        now.addAndGet(60_000 * MILLISECOND);
+        assertEquals(10, acquire(sampler, 100));
+    }
+
+    @Test
+    public void testSteadyRate() {
+        AtomicLong now = new AtomicLong(-5_000 * MILLISECOND);
+        RateLimitingSampler sampler = new RateLimitingSampler(250, now::get);
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            now.addAndGet(MILLISECOND);
+            if (sampler.tryAcquire()) {
+                sampled++;
+            }
+        }
+        // a burst, then 250 per second for the 10 seconds
+        assertEquals(250 + 2_500, sampled, 1);
+    }
+
+    @Test
+    public void testLessThanOnePerSecond() {
+        AtomicLong now = new AtomicLong();
+        RateLimitingSampler sampler = new RateLimitingSampler(0.5, now::get);
+        assertEquals(1, acquire(sampler, 10));
+        now.addAndGet(1_999 * MILLISECOND);
+        assertFalse(sampler.tryAcquire());
+        now.addAndGet(MILLISECOND);
+        assertTrue(sampler.tryAcquire());
+    }
+
+    @Test
+    public void testNoSpans() {
+        assertEquals(0, acquire(new RateLimitingSampler(0), 10));
+        assertEquals(0, acquire(new RateLimitingSampler(-1), 10));
+    }
+
+    private static int acquire(RateLimitingSampler sampler, int attempts) {
+        int acquired = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (sampler.tryAcquire()) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import no.domstol.otel.agent.configuration.AgentConfiguration.RegexEngine;
+
+public class RuleMatcherTest {
+
+    private static final List<String> PATTERNS = List.of("GET", "^GET$", "^/health", "/health/.+", "/health/.*",
+            "^/health/.+", "\\.js$", "^$", "$", "", ".*GET", "/api/v1\\.0/", "/cases/\\d+", "(?i)get", "GET|POST",
+            "a\\\\.*", "^/metrics$", ".+", "\\$$");
+
+    private static final List<String> VALUES = List.of("", "GET", "get", "POST", "GET\n", "GET\r\n", "GET\r",
+            "GET\n\n", "\rGET", "/health", "/health/", "/health/live", "/health/\n", "/x/health/live",
+            "/app/main.js", "/app/main.js\n", "/app/main.jsx", "/api/v1.0/cases", "/api/v1x0/cases",
+            "/cases/42", "a\\b", "/metrics", "/metrics\u2028", "\n", "price$", "GET\u0085");
+
+    @Test
+    public void testMatchesLikeFind() {
+        for (String regex : PATTERNS) {
+            Pattern pattern = Pattern.compile(regex);
+            RuleMatcher matcher = RuleMatcher.of(pattern);
+            for (String value : VALUES) {
+                assertEquals(pattern.matcher(value).find(), matcher.matches(value),
+                        "\"" + regex + "\" (" + matcher.kind + ") on \"" + value + "\"");
+            }
+        }
+    }
+
+    @Test
+    public void testClassification() {
+        assertEquals(RuleMatcher.Kind.CONTAINS, RuleMatcher.of(Pattern.compile("GET")).kind);
+        assertEquals(RuleMatcher.Kind.CONTAINS, RuleMatcher.of(Pattern.compile("/health/.+")).kind);
+        assertEquals(RuleMatcher.Kind.EXACT, RuleMatcher.of(Pattern.compile("^/metrics$")).kind);
+        assertEquals(RuleMatcher.Kind.PREFIX, RuleMatcher.of(Pattern.compile("^/api/")).kind);
+        assertEquals(RuleMatcher.Kind.SUFFIX, RuleMatcher.of(Pattern.compile("\\.js$")).kind);
+        assertEquals(RuleMatcher.Kind.REGEX, RuleMatcher.of(Pattern.compile("/cases/\\d+")).kind);
+        assertEquals(RuleMatcher.Kind.REGEX, RuleMatcher.of(Pattern.compile("GET", Pattern.CASE_INSENSITIVE)).kind);
+        assertEquals("/api/v1.0/", RuleMatcher.of(Pattern.compile("/api/v1\\.0/")).literal);
+    }
+
+    @Test
+    public void testSharedMatchers() {
+        // more rules than slots, so rules share the matchers of a thread
+        List<RuleMatcher> matchers = new ArrayList<>();
+        for (int i = 0; i <= RuleMatcher.MATCHER_SLOTS; i++) {
+            matchers.add(RuleMatcher.of(Pattern.compile("/cases/" + i + "\\d"),
+                    i % 2 == 0 ? RegexEngine.java : RegexEngine.re2j));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < matchers.size(); i++) {
+                assertTrue(matchers.get(i).matches("/cases/" + i + "7"), "rule " + i);
+                assertFalse(matchers.get(i).matches("/cases/" + (i + 1) + "7"), "rule " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testRe2j() {
+        // the values without line terminators, where RE2 and Java agree
+        for (String regex : List.of("/cases/\\d+", "(?i)get", "GET|POST", "^/health/.+", "(x+x+)+y",
+                "[a-z]+\\.jsx?$")) {
+            Pattern pattern = Pattern.compile(regex);
+            RuleMatcher matcher = RuleMatcher.of(pattern, RegexEngine.re2j);
+            for (String value : VALUES) {
+                if (value.chars().noneMatch(c -> c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028')) {
+                    assertEquals(pattern.matcher(value).find(), matcher.matches(value),
+                            "\"" + regex + "\" on \"" + value + "\"");
+                }
+            }
+        }
+        assertTrue(RuleMatcher.of(Pattern.compile("/cases/\\d+"), RegexEngine.re2j) instanceof RuleMatcher.Re2j);
+        assertTrue(RuleMatcher.of(Pattern.compile("GET", Pattern.CASE_INSENSITIVE), RegexEngine.re2j)
+                .matches("get"));
+        // literals do not need a regular expression engine at all
+        assertEquals(RuleMatcher.Kind.PREFIX, RuleMatcher.of(Pattern.compile("^/api/"), RegexEngine.re2j).kind);
+        // nor does RE2 support backreferences or lookaround
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> RuleMatcher.of(Pattern.compile("(a)\\1"), RegexEngine.re2j));
+        assertTrue(e.getMessage().contains("(a)\\1"), e.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> RuleMatcher.of(Pattern.compile("GET(?!X)"), RegexEngine.re2j));
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.trace.SpanKind;
+import no.domstol.otel.agent.configuration.CompiledRule;
+
+public class RuleProgramTest {
+
+    private static final AttributeKey<String> HTTP_TARGET = AttributeKey.stringKey("http.target");
+    private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+    private static final AttributeKey<String> USER_AGENT = AttributeKey.stringKey("user_agent.original");
+
+    private static final List<AttributeKey<String>> KEYS = List.of(HTTP_TARGET, HTTP_METHOD, USER_AGENT);
+
+    private static final List<String> PATTERNS = List.of("GET", "^GET$", "POST", "^/health", "/health/.+",
+            "/health/.*", "\\.js$", "^/metrics$", "^/metrics/$", "/api/v1\\.0/", "/cases/\\d+", "(?i)get", "GET|POST",
+            "kube-probe", "^kube-probe/", "Mozilla", "/live$", "/ready", "alth", "health", "^$", "", "\\.css$",
+            "^/static/.+", "/documents");
+
+    private static final List<String> VALUES = List.of("", "GET", "get", "POST", "GET\n", "GET\r\n", "/health",
+            "/health/", "/health/live", "/health/ready", "/health/\n", "/x/health/live", "/app/main.js",
+            "/app/main.js\n", "/api/v1.0/cases/42/documents", "/metrics", "/metrics\n", "/metrics/", "/static/",
+            "/static/app.css", "kube-probe/1.29", "Mozilla/5.0 kube-probe", "healthhealth");
+
+    @Test
+    public void testEvaluatesLikeLoop() {
+        Random random = new Random(42);
+        for (int groups : new int[] { 1, 3, 10, 40, 70, 150 }) {
+            Map<String, List<CompiledRule>> rules = new HashMap<>();
+            rules.put("include", createGroups(random, groups / 3));
+            rules.put("exclude", createGroups(random, groups - groups / 3));
+            RuleProgram program = RuleProgram.compile(rules);
+            for (int i = 0; i < 500; i++) {
+                AttributesBuilder builder = Attributes.builder();
+                for (AttributeKey<String> key : KEYS) {
+                    // leave some attributes out
+                    int value = random.nextInt(VALUES.size() + 2);
+                    if (value < VALUES.size()) {
+                        builder.put(key, VALUES.get(value));
+                    }
+                }
+                Attributes attributes = builder.build();
+                int expected = loop(rules.get("include"), attributes);
+                if (expected < 0) {
+                    expected = loop(rules.get("exclude"), attributes);
+                    if (expected >= 0) {
+                        expected += rules.get("include").size();
+                    }
+                }
+                assertEquals(expected, program.evaluate(attributes), groups + " groups, " + attributes);
+            }
+        }
+    }
+
+    @Test
+    public void testProgramsShareScratch() {
+        // a large program leaves groups in the space of the thread that a smaller one does not use
+        List<CompiledRule> groups = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            groups.add(rule(HTTP_TARGET, "^/health"));
+        }
+        RuleProgram large = RuleProgram.compile(Map.of("exclude", groups));
+        RuleProgram small = RuleProgram.compile(Map.of("exclude", List.of(rule(HTTP_TARGET, "^/metrics$"))));
+        Attributes health = Attributes.of(HTTP_TARGET, "/health");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, large.evaluate(health));
+            assertEquals(-1, small.evaluate(health));
+            assertEquals(0, small.evaluate(Attributes.of(HTTP_TARGET, "/metrics")));
+        }
+    }
+
+    @Test
+    public void testEmptyGroupNeverMatches() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("exclude", List.of(new CompiledRule(Map.of())));
+        RuleProgram program = RuleProgram.compile(rules);
+        assertEquals(-1, program.evaluate(Attributes.of(HTTP_TARGET, "/health")));
+        assertEquals(-1, RuleProgram.EMPTY.evaluate(Attributes.of(HTTP_TARGET, "/health")));
+        assertTrue(RuleProgram.compile(null).isEmpty());
+    }
+
+    @Test
+    public void testIncludeTakesPrecedence() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("include", List.of(rule(HTTP_TARGET, "/health/ready")));
+        rules.put("exclude", List.of(rule(HTTP_TARGET, "^/health")));
+        RuleProgram program = RuleProgram.compile(rules);
+        int group = program.evaluate(Attributes.of(HTTP_TARGET, "/health/ready"));
+        assertTrue(program.isInclude(group));
+        group = program.evaluate(Attributes.of(HTTP_TARGET, "/health/live"));
+        assertEquals(1, group);
+        assertEquals("{http.target=^/health}", program.describe(group));
+    }
+
+    @Test
+    public void testSampleRules() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("exclude", List.of(rule(HTTP_TARGET, "^/api/search/health")));
+        rules.put("sample", List.of(sample(0.01, HTTP_TARGET, "^/api/search"), sample(0.2, HTTP_TARGET, "^/api/")));
+        RuleProgram program = RuleProgram.compile(rules);
+        assertNull(program.sampler(0));
+        assertEquals(0, program.evaluate(Attributes.of(HTTP_TARGET, "/api/search/health")));
+        int group = program.evaluate(Attributes.of(HTTP_TARGET, "/api/search?q=x"));
+        assertEquals(1, group);
+        assertFalse(program.isInclude(group));
+        assertEquals("TraceIdRatioBased{0.010000}", program.sampler(group).getDescription());
+        group = program.evaluate(Attributes.of(HTTP_TARGET, "/api/cases/42"));
+        assertEquals("TraceIdRatioBased{0.200000}", program.sampler(group).getDescription());
+        assertTrue(program.id(group).startsWith("sample:"), program.id(group));
+        // the same samplers are used for every span
+        assertSame(program.sampler(group), program.sampler(program.evaluate(Attributes.of(HTTP_TARGET, "/api/x"))));
+        assertEquals(-1, program.evaluate(Attributes.of(HTTP_TARGET, "/static/app.js")));
+        // the ratio is not taken for an attribute of the same name
+        AttributeKey<String> ratio = AttributeKey.stringKey("ratio");
+        rules.put("sample", List.of(sample(0.5, ratio, "^high$")));
+        program = RuleProgram.compile(rules);
+        assertEquals(1, program.evaluate(Attributes.of(ratio, "high")));
+        assertEquals(-1, program.evaluate(Attributes.of(ratio, "0.5")));
+        // a ratio is required
+        rules.put("sample", List.of(rule(HTTP_TARGET, "^/api/")));
+        assertThrows(IllegalArgumentException.class, () -> RuleProgram.compile(rules));
+    }
+
+    @Test
+    public void testSpanNameAndKind() {
+        AttributeKey<String> name = AttributeKey.stringKey("span.name");
+        AttributeKey<String> kind = AttributeKey.stringKey("span.kind");
+        Map<AttributeKey<String>, Pattern> none = Map.of();
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("include", List.of(new CompiledRule(Pattern.compile("^GET /cases$"), EnumSet.of(SpanKind.SERVER),
+                none, List.of(), Double.NaN)));
+        rules.put("exclude", List.of(new CompiledRule(null, EnumSet.of(SpanKind.INTERNAL), none, List.of(), Double.NaN),
+                new CompiledRule(Pattern.compile("^SELECT$"), null, Map.of(HTTP_TARGET, Pattern.compile("^/health")),
+                        List.of(), Double.NaN),
+                new CompiledRule(null, EnumSet.of(SpanKind.CLIENT, SpanKind.PRODUCER),
+                        Map.of(HTTP_METHOD, Pattern.compile("GET")), List.of(), Double.NaN),
+                rule(name, "^DELETE")));
+        RuleProgram program = RuleProgram.compile(rules);
+        Attributes empty = Attributes.empty();
+        assertEquals(0, program.evaluate("GET /cases", SpanKind.SERVER, empty));
+        assertEquals(-1, program.evaluate("GET /cases", SpanKind.CONSUMER, empty));
+        assertEquals(1, program.evaluate("GET /cases", SpanKind.INTERNAL, empty));
+        assertEquals(2, program.evaluate("SELECT", SpanKind.CLIENT, Attributes.of(HTTP_TARGET, "/health")));
+        assertEquals(-1, program.evaluate("SELECT cases", SpanKind.CLIENT, Attributes.of(HTTP_TARGET, "/health")));
+        assertEquals(3, program.evaluate("GET", SpanKind.PRODUCER, Attributes.of(HTTP_METHOD, "GET")));
+        assertEquals(-1, program.evaluate("GET", SpanKind.SERVER, Attributes.of(HTTP_METHOD, "GET")));
+        // the name and kind are not taken from the attributes
+        assertEquals(-1, program.evaluate(Attributes.of(kind, "SERVER")));
+        // and an attribute named like the span name is only an attribute
+        assertEquals(4, program.evaluate("SELECT", SpanKind.SERVER, Attributes.of(name, "DELETE /cases")));
+        assertEquals(-1, program.evaluate("DELETE /cases", SpanKind.SERVER, empty));
+        // a span without a kind only matches groups not testing it
+        assertEquals(2, program.evaluate("SELECT", null, Attributes.of(HTTP_TARGET, "/health")));
+        assertEquals(-1, program.evaluate("GET /cases", null, empty));
+    }
+
+    @Test
+    public void testReorder() {
+        Map<AttributeKey<String>, Pattern> group = new LinkedHashMap<>();
+        group.put(HTTP_METHOD, Pattern.compile("G(E|X)T"));
+        group.put(USER_AGENT, Pattern.compile("Mozilla"));
+        group.put(HTTP_TARGET, Pattern.compile("^/health"));
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("exclude", List.of(new CompiledRule(group), rule(HTTP_METHOD, "POST", HTTP_TARGET, "^/metrics")));
+        RuleProgram program = RuleProgram.compile(rules);
+        Attributes api = Attributes.of(HTTP_TARGET, "/api/cases", HTTP_METHOD, "GET", USER_AGENT, "Mozilla/5.0");
+        Attributes health = Attributes.of(HTTP_TARGET, "/health", HTTP_METHOD, "GET", USER_AGENT, "Mozilla/5.0");
+        // the thread profiles one in every interval of evaluations, of any program
+        for (int i = 0; i < (RuleProgram.MIN_PROFILED - 1) * RuleProgram.PROFILE_INTERVAL; i++) {
+            assertEquals(-1, program.evaluate(api));
+        }
+        // not profiled enough yet
+        assertNull(program.reorder());
+        for (int i = 0; i < RuleProgram.PROFILE_INTERVAL; i++) {
+            assertEquals(-1, program.evaluate(api));
+        }
+        RuleProgram reordered = program.reorder();
+        // the target rules out every group, the method only one
+        assertTrue(reordered.describeKeys().startsWith("http.target "), reordered.describeKeys());
+        assertEquals(-1, reordered.evaluate(api));
+        assertEquals(0, reordered.evaluate(health));
+        assertEquals(1, reordered.evaluate(Attributes.of(HTTP_TARGET, "/metrics", HTTP_METHOD, "POST")));
+        assertSame(program.counters(), reordered.counters());
+        assertEquals(program.id(0), reordered.id(0));
+        assertNull(reordered.reorder());
+    }
+
+    @Test
+    public void testIds() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("include", List.of(rule(HTTP_METHOD, "POST")));
+        rules.put("exclude", List.of(rule(HTTP_TARGET, "^/health", HTTP_METHOD, "GET"), rule(HTTP_METHOD, "POST"),
+                rule(HTTP_METHOD, "POST")));
+        RuleProgram program = RuleProgram.compile(rules);
+        assertTrue(program.id(0).matches("include:[0-9a-f]{8}"), program.id(0));
+        assertTrue(program.id(1).matches("exclude:[0-9a-f]{8}"), program.id(1));
+        // the same conditions as an include rule, but a different kind
+        assertEquals(program.id(0).replace("include", "exclude"), program.id(2));
+        // duplicates are told apart
+        assertEquals(program.id(2) + "-2", program.id(3));
+        // the ids do not depend on the order of the rules or their conditions
+        Map<AttributeKey<String>, Pattern> reordered = new LinkedHashMap<>();
+        reordered.put(HTTP_METHOD, Pattern.compile("GET"));
+        reordered.put(HTTP_TARGET, Pattern.compile("^/health"));
+        rules.put("exclude", List.of(rule(HTTP_METHOD, "POST"), new CompiledRule(reordered)));
+        assertEquals(program.id(1), RuleProgram.compile(rules).id(2));
+    }
+
+    private static CompiledRule rule(AttributeKey<String> key, String pattern) {
+        return new CompiledRule(Map.of(key, Pattern.compile(pattern)));
+    }
+
+    private static CompiledRule rule(AttributeKey<String> key, String pattern, AttributeKey<String> otherKey,
+            String otherPattern) {
+        return new CompiledRule(Map.of(key, Pattern.compile(pattern), otherKey, Pattern.compile(otherPattern)));
+    }
+
+    private static CompiledRule sample(double ratio, AttributeKey<String> key, String pattern) {
+        return new CompiledRule(Map.of(key, Pattern.compile(pattern)), ratio);
+    }
+
+    private static List<CompiledRule> createGroups(Random random, int count) {
+        List<CompiledRule> groups = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<AttributeKey<String>, Pattern> group = new LinkedHashMap<>();
+            for (AttributeKey<String> key : KEYS) {
+                if (random.nextInt(3) > 0) {
+                    group.put(key, Pattern.compile(PATTERNS.get(random.nextInt(PATTERNS.size()))));
+                }
+            }
+            groups.add(new CompiledRule(group));
+        }
+        return groups;
+    }
+
+    /**
+     * The evaluation as done before the rules were compiled.
+     */
+    private static int loop(List<CompiledRule> set, Attributes attributes) {
+        for (int i = 0; i < set.size(); i++) {
+            boolean match = false;
+            for (Map.Entry<AttributeKey<String>, Pattern> condition : set.get(i).getAttributes().entrySet()) {
+                String string = attributes.get(condition.getKey());
+                match = string != null && condition.getValue().matcher(string).find();
+                if (!match) {
+                    break;
+                }
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
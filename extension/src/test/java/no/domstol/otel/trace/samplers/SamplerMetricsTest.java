@@ -0,0 +1,144 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import tools.jackson.databind.ObjectMapper;
+
+import io.opentelemetry.api.common.AttributeKey;
+import no.domstol.otel.agent.configuration.CompiledRule;
+
+public class SamplerMetricsTest {
+
+    @Test
+    public void testDerivedCounts() {
+        SamplerMetrics metrics = new SamplerMetrics();
+        metrics.filter_included_samples.add(1);
+        metrics.filter_excluded_samples.add(2);
+        metrics.sampler_included_samples.add(3);
+        metrics.sampler_excluded_samples.add(4);
+        metrics.sampler_record_only_samples.add(5);
+        SamplerMetrics.Snapshot snapshot = metrics.copyAndClear();
+        assertEquals(15, snapshot.processed_samples);
+        assertEquals(4, snapshot.recorded_samples);
+        assertEquals(6, snapshot.dropped_samples);
+        // the next snapshot only holds what has been counted since
+        metrics.sampler_excluded_samples.increment();
+        snapshot = metrics.copyAndClear();
+        assertEquals(1, snapshot.processed_samples);
+        assertEquals(1, snapshot.dropped_samples);
+        assertEquals(0, snapshot.recorded_samples);
+        assertEquals(0, snapshot.filter_included_samples);
+    }
+
+    @Test
+    public void testSerializeToJSON() {
+        SamplerMetrics metrics = new SamplerMetrics();
+        metrics.filter_included_samples.increment();
+        metrics.decision_cache_hits.increment();
+        String json = new ObjectMapper().writeValueAsString(metrics.copyAndClear());
+        assertEquals("{\"decision_cache_hits\":1,\"decision_cache_misses\":0,\"dropped_samples\":0,"
+                + "\"filter_excluded_samples\":0,\"filter_included_samples\":1,\"processed_samples\":1,"
+                + "\"recorded_samples\":1,\"sampler_excluded_samples\":0,\"sampler_included_samples\":0}", json);
+    }
+
+    @Test
+    public void testNoIncrementsLost() throws InterruptedException {
+        SamplerMetrics metrics = new SamplerMetrics();
+        int perThread = 200_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    metrics.sampler_excluded_samples.increment();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // take snapshots while the counters are being incremented
+        long reported = 0;
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            SamplerMetrics.Snapshot snapshot = metrics.copyAndClear();
+            assertEquals(snapshot.processed_samples, snapshot.dropped_samples);
+            assertTrue(snapshot.dropped_samples >= 0);
+            reported += snapshot.dropped_samples;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reported += metrics.copyAndClear().dropped_samples;
+        assertEquals(4L * perThread, reported);
+    }
+
+    @Test
+    public void testTakeUntilCommitted() {
+        AttributeKey<String> target = AttributeKey.stringKey("http.target");
+        RuleProgram program = RuleProgram.compile(Map.of("exclude",
+                List.of(new CompiledRule(Map.of(target, Pattern.compile("^/health"))))));
+        SamplerMetrics metrics = new SamplerMetrics();
+        metrics.setRuleCounters(program.counters());
+        metrics.sampler_included_samples.add(2);
+        program.counters().increment(0);
+        SamplerMetrics.Snapshot failed = metrics.take();
+        assertEquals(2, failed.sampler_included_samples);
+
+        // not committed, so what was taken is part of the next snapshot
+        metrics.sampler_included_samples.increment();
+        SamplerMetrics.Snapshot posted = metrics.take();
+        assertEquals(3, posted.sampler_included_samples);
+        assertEquals(Map.of(program.id(0), 1L), posted.rule_hits);
+        assertTrue(metrics.commit(posted));
+        // a snapshot taken before the last one committed is stale
+        assertFalse(metrics.commit(failed));
+        assertFalse(metrics.commit(posted));
+        SamplerMetrics.Snapshot next = metrics.take();
+        assertEquals(0, next.sampler_included_samples);
+        assertEquals(Map.of(), next.rule_hits);
+    }
+
+    @Test
+    public void testRuleHits() {
+        AttributeKey<String> target = AttributeKey.stringKey("http.target");
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("exclude", List.of(new CompiledRule(Map.of(target, Pattern.compile("^/health"))),
+                new CompiledRule(Map.of(target, Pattern.compile("^/metrics")))));
+        RuleProgram first = RuleProgram.compile(rules);
+        SamplerMetrics metrics = new SamplerMetrics();
+        metrics.setRuleCounters(first.counters());
+        first.counters().increment(0);
+        first.counters().increment(0);
+        first.counters().increment(1);
+        assertEquals(Map.of(first.id(0), 2L, first.id(1), 1L), metrics.copyAndClear().rule_hits);
+        assertEquals(Map.of(), metrics.copyAndClear().rule_hits);
+
+        // replace the rules, while a thread still uses the previous ones
+        rules.put("exclude", List.of(new CompiledRule(Map.of(target, Pattern.compile("^/metrics")))));
+        RuleProgram second = RuleProgram.compile(rules);
+        metrics.setRuleCounters(second.counters());
+        first.counters().increment(0);
+        second.counters().increment(0);
+        // the same rule has the same id in both
+        assertEquals(first.id(1), second.id(0));
+        assertEquals(Map.of(first.id(0), 1L, second.id(0), 1L), metrics.copyAndClear().rule_hits);
+        first.counters().increment(0);
+        assertEquals(Map.of(first.id(0), 1L), metrics.copyAndClear().rule_hits);
+        // the previous rules are no longer reported
+        first.counters().increment(0);
+        assertEquals(Map.of(), metrics.copyAndClear().rule_hits);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.trace.samplers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import no.domstol.otel.agent.configuration.CompiledRule;
+import no.domstol.otel.agent.configuration.TypedCondition;
+
+public class TypedMatcherTest {
+
+    private static final AttributeKey<Long> STATUS = AttributeKey.longKey("http.status_code");
+    private static final AttributeKey<Double> DURATION = AttributeKey.doubleKey("duration");
+    private static final AttributeKey<Boolean> CACHED = AttributeKey.booleanKey("cached");
+
+    @Test
+    public void testLongComparisons() {
+        assertMatches(STATUS, "500", 500L, true);
+        assertMatches(STATUS, "eq 500", 501L, false);
+        assertMatches(STATUS, "ne 500", 501L, true);
+        assertMatches(STATUS, "ne 500", 500L, false);
+        assertMatches(STATUS, "lt 400", 399L, true);
+        assertMatches(STATUS, "lt 400", 400L, false);
+        assertMatches(STATUS, "le 400", 400L, true);
+        assertMatches(STATUS, "gt 499", 500L, true);
+        assertMatches(STATUS, "gt 499", 499L, false);
+        assertMatches(STATUS, "ge 500", 500L, true);
+        assertMatches(STATUS, "range 500..599", 599L, true);
+        assertMatches(STATUS, "range 500..599", 600L, false);
+        assertMatches(STATUS, "in 401, 403,404", 403L, true);
+        assertMatches(STATUS, "in 401,403,404", 402L, false);
+        assertMatches(STATUS, "lt " + Long.MIN_VALUE, Long.MIN_VALUE, false);
+        assertMatches(STATUS, "gt " + Long.MAX_VALUE, Long.MAX_VALUE, false);
+    }
+
+    @Test
+    public void testDoubleAndBooleanComparisons() {
+        assertMatches(DURATION, "lt 0.5", 0.4999, true);
+        assertMatches(DURATION, "lt 0.5", 0.5, false);
+        assertMatches(DURATION, "ge 0.5", 0.5, true);
+        assertMatches(DURATION, "gt 0.5", 0.5, false);
+        assertMatches(DURATION, "range 0.1..0.2", 0.15, true);
+        assertMatches(DURATION, "in 0.25,0.5", 0.5, true);
+        assertMatches(CACHED, "true", true, true);
+        assertMatches(CACHED, "eq true", false, false);
+        assertMatches(CACHED, "ne true", false, true);
+        // a condition on another attribute is not combined
+        assertThrows(IllegalArgumentException.class, () -> TypedMatcher.compile(DURATION,
+                List.of(TypedCondition.parse("http.status_code:long", "500")), List.of(new long[] { 1L })));
+    }
+
+    @Test
+    public void testRules() {
+        Map<String, List<CompiledRule>> rules = new HashMap<>();
+        rules.put("include", List.of(new CompiledRule(null, null, Map.of(),
+                List.of(TypedCondition.parse("http.status_code:long", "ge 500")), Double.NaN)));
+        rules.put("exclude", List.of(
+                new CompiledRule(Map.of(AttributeKey.stringKey("http.target"), Pattern.compile("^/health")))));
+        RuleProgram program = RuleProgram.compile(rules, 16);
+        Attributes error = Attributes.of(AttributeKey.stringKey("http.target"), "/health", STATUS, 503L);
+        Attributes ok = Attributes.of(AttributeKey.stringKey("http.target"), "/health", STATUS, 200L);
+        assertEquals(0, program.evaluate(error));
+        assertEquals(1, program.evaluate(ok));
+        // an attribute of another type is not compared
+        assertEquals(-1, program.evaluate(Attributes.of(AttributeKey.stringKey("http.status_code"), "503")));
+        // the typed values are part of the cached decision
+        program.cache().put(error, 0);
+        assertEquals(DecisionCache.MISS, program.cache().get(ok));
+        assertEquals(0, program.cache().get(error));
+    }
+
+    private static <T> void assertMatches(AttributeKey<T> key, String comparison, T value, boolean expected) {
+        long[] satisfied = new long[1];
+        compile(key, comparison).match(Attributes.of(key, value), satisfied);
+        assertEquals(expected ? 1L : 0L, satisfied[0], comparison + " of " + value);
+    }
+
+    private static TypedMatcher compile(AttributeKey<?> key, String comparison) {
+        TypedCondition condition = TypedCondition.parse(
+                key.getKey() + ":" + key.getType().name().toLowerCase(Locale.ROOT), comparison);
+        return TypedMatcher.compile(key, List.of(condition), List.of(new long[] { 1L }));
+    }
+
+}
@@ -95,6 +95,7 @@ public class AgentConfigurationController {
         model.addAttribute("config", config);
         model.addAttribute("formattedRules", configurationRenderer.getFormattedRules(config));
         model.addAttribute("formattedTimestamp", formatTimestamp(config.getTimestamp()));
+        model.addAttribute("effectiveSampleRatio", getEffectiveSampleRatio(internalURL, configName));
         return "configurationDetails";
     }
 
@@ -107,6 +108,7 @@ public class AgentConfigurationController {
         model.addAttribute("frontendVersion", frontendVersion);
         model.addAttribute("serviceVersion", getServiceVersion(internalURL));
         model.addAttribute("samplerTypes", AgentConfiguration.SamplerType.values());
+        model.addAttribute("regexEngines", AgentConfiguration.RegexEngine.values());
     }
 
     private void addListModelAttributes(Model model, List<AgentConfiguration> configs) {
@@ -136,6 +138,19 @@ public class AgentConfigurationController {
                 .format(TIMESTAMP_FORMATTER);
     }
 
+    /**
+     * @return the ratio most recently reported by the adaptive sampler of the
+     *         service, or <code>null</code> if it is not in use
+     */
+    private Object getEffectiveSampleRatio(String internalURL, String configName) {
+        try {
+            Map<?, ?> metrics = restTemplate.getForObject(internalURL + "/metrics/" + configName, Map.class);
+            return metrics == null ? null : metrics.get("effective_sample_ratio");
+        } catch (RestClientException e) {
+            return null;
+        }
+    }
+
     private String getServiceVersion(String internalURL) {
         try {
             Map<?, ?> info = restTemplate.getForObject(internalURL + "/actuator/info", Map.class);
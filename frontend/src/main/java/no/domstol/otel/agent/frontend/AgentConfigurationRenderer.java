@@ -56,7 +56,7 @@ public class AgentConfigurationRenderer {
 							sb.append("  ");
 						sb.append(key);
 						sb.append(": ");
-						sb.append(val);
+						appendValue(sb, key, val);
 						sb.append("\n");
 						first = false;
 					}
@@ -74,7 +74,23 @@ public class AgentConfigurationRenderer {
 							sb.append("  ");
 						sb.append(key);
 						sb.append(": ");
-						sb.append(val);
+						appendValue(sb, key, val);
+						sb.append("\n");
+						first = false;
+					}
+				}
+			}
+			if (rule.getSample() != null && !rule.getSample().isEmpty()) {
+				sb.append("sample:\n");
+				for (Map<String, String> set : rule.getSample()) {
+					sb.append("- ");
+					boolean first = true;
+					for (Map.Entry<String, String> entry : set.entrySet()) {
+						if (!first)
+							sb.append("  ");
+						sb.append(entry.getKey());
+						sb.append(": ");
+						appendValue(sb, entry.getKey(), entry.getValue());
 						sb.append("\n");
 						first = false;
 					}
@@ -84,4 +100,17 @@ public class AgentConfigurationRenderer {
 		return sb.toString();
 	}
 
+	/**
+	 * Appends the value of a condition. The comparison of a typed attribute,
+	 * e.g. <code>http.status_code:long: ge 500</code>, is quoted so that it is
+	 * read back as text rather than as a number or boolean.
+	 */
+	private static void appendValue(StringBuilder sb, String key, String val) {
+		if (val != null && (key.endsWith(":long") || key.endsWith(":double") || key.endsWith(":boolean"))) {
+			sb.append('"').append(val.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		} else {
+			sb.append(val);
+		}
+	}
+
 }
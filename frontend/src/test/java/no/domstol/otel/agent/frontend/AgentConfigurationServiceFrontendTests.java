@@ -85,6 +85,8 @@ class AgentConfigurationServiceFrontendTests {
 		assertThat(((AgentConfiguration) configs.get(0)).getServiceName()).isEqualTo("test-service");
 		assertThat((AgentConfiguration.SamplerType[]) model.getAttribute("samplerTypes"))
 				.containsExactly(AgentConfiguration.SamplerType.values());
+		assertThat((AgentConfiguration.RegexEngine[]) model.getAttribute("regexEngines"))
+				.containsExactly(AgentConfiguration.RegexEngine.values());
 		server.verify();
 	}
 
@@ -124,7 +126,8 @@ class AgentConfigurationServiceFrontendTests {
 						        "exclude": [
 						          {
 						            "http.target": "/health/.+",
-						            "http.method": "GET"
+						            "http.method": "GET",
+						            "http.status_code:long": "lt 400"
 						          }
 						        ]
 						      }
@@ -144,7 +147,9 @@ class AgentConfigurationServiceFrontendTests {
 		mockMvc.perform(get("/"))
 				.andExpect(status().isOk())
 				.andExpect(content().string(containsString("test-service")))
-				.andExpect(content().string(containsString("traceidratio")));
+				.andExpect(content().string(containsString("traceidratio")))
+				.andExpect(content().string(containsString("http.status_code:long:")))
+				.andExpect(content().string(containsString("lt 400")));
 		server.verify();
 	}
 
@@ -179,10 +184,19 @@ class AgentConfigurationServiceFrontendTests {
 						}
 						""", APPLICATION_JSON));
 
+		server.expect(requestTo("http://localhost:8080/metrics/test-service"))
+				.andRespond(withSuccess("""
+						{
+						  "processed_samples": 1200,
+						  "effective_sample_ratio": 0.0125
+						}
+						""", APPLICATION_JSON));
+
 		mockMvc.perform(get("/test-service"))
 				.andExpect(status().isOk())
 				.andExpect(content().string(containsString("parentbased_traceidratio")))
-				.andExpect(content().string(containsString("http.method")));
+				.andExpect(content().string(containsString("http.method")))
+				.andExpect(content().string(containsString("0.0125")));
 		server.verify();
 	}
 
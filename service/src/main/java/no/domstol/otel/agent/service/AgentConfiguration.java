@@ -37,6 +37,16 @@ public class AgentConfiguration {
 
     public enum SamplerType {
         always_on, always_off, traceidratio, parentbased_always_on, parentbased_always_off, parentbased_traceidratio,
+        ratelimited, parentbased_ratelimited, adaptive,
+    }
+
+    /**
+     * The engines evaluating the regular expressions of the rules.
+     *
+     * @since 1.8
+     */
+    public enum RegexEngine {
+        java, re2j,
     }
 
     @JsonProperty("serviceName")
@@ -48,6 +58,18 @@ public class AgentConfiguration {
     @JsonProperty("sampleRatio")
     private Double sampleRatio = 0.0;
 
+    /** The maximum number of spans sampled per second by the rate limited samplers */
+    @JsonProperty("maxSpansPerSecond")
+    private Double maxSpansPerSecond;
+
+    /** The number of root spans to sample per minute by the adaptive sampler */
+    @JsonProperty("targetSpansPerMinute")
+    private Double targetSpansPerMinute;
+
+    /** The engine evaluating the regular expressions of the rules, if not the agent default */
+    @JsonProperty("regexEngine")
+    private RegexEngine regexEngine;
+
     @JsonProperty("readOnly")
     private boolean readOnly = false;
 
@@ -65,6 +87,10 @@ public class AgentConfiguration {
         @JsonProperty("include")
         private List<Map<String, String>> include;
 
+        /** Rules sampling a ratio of the spans they match, given by the "ratio" entry */
+        @JsonProperty("sample")
+        private List<Map<String, String>> sample;
+
         public List<Map<String, String>> getExclude() {
             return exclude;
         }
@@ -81,6 +107,14 @@ public class AgentConfiguration {
             this.include = include;
         }
 
+        public List<Map<String, String>> getSample() {
+            return sample;
+        }
+
+        public void setSample(List<Map<String, String>> sample) {
+            this.sample = sample;
+        }
+
     }
 
     public AgentConfiguration() {
@@ -107,6 +141,30 @@ public class AgentConfiguration {
         this.sampleRatio = sampleRatio;
     }
 
+    public Double getMaxSpansPerSecond() {
+        return maxSpansPerSecond;
+    }
+
+    public void setMaxSpansPerSecond(Double maxSpansPerSecond) {
+        this.maxSpansPerSecond = maxSpansPerSecond;
+    }
+
+    public Double getTargetSpansPerMinute() {
+        return targetSpansPerMinute;
+    }
+
+    public void setTargetSpansPerMinute(Double targetSpansPerMinute) {
+        this.targetSpansPerMinute = targetSpansPerMinute;
+    }
+
+    public RegexEngine getRegexEngine() {
+        return regexEngine;
+    }
+
+    public void setRegexEngine(RegexEngine regexEngine) {
+        this.regexEngine = regexEngine;
+    }
+
     public SamplerType getSampler() {
         return sampler;
     }
@@ -19,15 +19,22 @@ package no.domstol.otel.agent.service;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
@@ -39,8 +46,14 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import tools.jackson.databind.ObjectMapper;
 
 /**
@@ -55,6 +68,38 @@ public class AgentConfigurationController {
     private ConcurrentMap<String, AgentConfiguration> configurations = new ConcurrentHashMap<>();
 
     private static String CLIENT_ID = "AgentConfigurationServiceClient/1.3";
+
+    private static final String OTEL_AGENTS_CONFIGURATION_REQUESTS = "otel_agents_configuration_requests";
+    private static final String TAG_NAME = "otel.service.name";
+    private static final String TAG_STATUS = "status";
+    private static final ObjectMapper etagMapper = new ObjectMapper();
+
+    /** The longest time a watch may wait for a change, in seconds */
+    static final int MAX_WATCH_TIMEOUT = 120;
+
+    private MeterRegistry registry = new SimpleMeterRegistry();
+
+    /** Receives the metrics posted along with a synchronization */
+    private MetricsController metricsController;
+
+    /**
+     * The requests waiting for a change of each configuration. These do not
+     * hold a thread while waiting, only the connection.
+     */
+    private final ConcurrentMap<String, Set<Watch>> watches = new ConcurrentHashMap<>();
+
+    /**
+     * A request waiting for the configuration to no longer have the tag
+     */
+    private static class Watch {
+        final DeferredResult<ResponseEntity<AgentConfiguration>> result;
+        final String ifNoneMatch;
+
+        Watch(DeferredResult<ResponseEntity<AgentConfiguration>> result, String ifNoneMatch) {
+            this.result = result;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+    }
     
     @PostMapping("/agent-configuration")
     public ResponseEntity<?> addAgentConfigurations(@RequestHeader("User-Agent") String userAgent,
@@ -69,6 +114,7 @@ public class AgentConfigurationController {
                     configuration.setTimestamp(Instant.now().toEpochMilli());
                 }
                 getConfigurations().put(configuration.getServiceName(), configuration);
+                changed(configuration.getServiceName());
             }
         }
         if (!conflicts.isEmpty()) {
@@ -82,13 +128,199 @@ public class AgentConfigurationController {
         else return ResponseEntity.created(new URI("/agent-configuration/" + configurations.get(0).getServiceName())).build();
     }
     
+    /**
+     * Returns the configuration of an agent along with a strong ETag, derived
+     * from its content. If the configuration has not changed since the agent
+     * last read it, as given by the <code>If-None-Match</code> header, only
+     * <code>304 Not Modified</code> is returned.
+     */
     @GetMapping("/agent-configuration/{agentName}")
     public ResponseEntity<AgentConfiguration> getAgentConfiguration(@RequestHeader("User-Agent") String userAgent,
-            @PathVariable String agentName) {
-        if (!getConfigurations().containsKey(agentName)) {
+            @PathVariable String agentName,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        AgentConfiguration configuration = getConfigurations().get(agentName);
+        if (configuration == null) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(getConfigurations().get(agentName));
+        String etag = etag(configuration);
+        if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+            countRequest(agentName, HttpStatus.NOT_MODIFIED);
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag)
+                    .header(HttpHeaders.LINK, syncLink(agentName)).build();
+        }
+        countRequest(agentName, HttpStatus.OK);
+        return ResponseEntity.ok().eTag(etag).header(HttpHeaders.LINK, syncLink(agentName)).body(configuration);
+    }
+
+    /**
+     * Synchronizes an agent in one request, rather than getting the
+     * configuration and posting the metrics separately. The metrics posted
+     * are recorded as if posted to <code>/metrics/{agentName}</code>, and the
+     * configuration is returned just as by
+     * {@link #getAgentConfiguration(String, String, String)}, that is, only
+     * if it no longer has the tag given by <code>If-None-Match</code>.
+     * <p>
+     * Support for this is advertised by a <code>Link</code> header with the
+     * relation <code>sync</code>, on the configuration and on the response
+     * here, so that an agent can tell when it is not, or no longer,
+     * supported.
+     * </p>
+     *
+     * @param metrics the metrics collected by the agent since it last posted
+     *                them, if any
+     * @since 1.8
+     */
+    @PostMapping("/agent-configuration/{agentName}/sync")
+    public ResponseEntity<AgentConfiguration> syncAgentConfiguration(@RequestHeader("User-Agent") String userAgent,
+            @PathVariable String agentName,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestBody(required = false) SamplerMetrics metrics) {
+        if (metrics != null && metricsController != null) {
+            metricsController.handleRequest(agentName, metrics);
+        }
+        AgentConfiguration configuration = getConfigurations().get(agentName);
+        if (configuration == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).header(HttpHeaders.LINK, syncLink(agentName))
+                    .build();
+        }
+        return getAgentConfiguration(userAgent, agentName, ifNoneMatch);
+    }
+
+    /**
+     * @return the link to the synchronization of the agent
+     */
+    private static String syncLink(String agentName) {
+        return "</agent-configuration/" + agentName + "/sync>; rel=\"sync\"";
+    }
+
+    /**
+     * Waits for the configuration of an agent to change, returning it as soon
+     * as it no longer has the entity tag given by <code>If-None-Match</code>,
+     * which is at once if it already has changed or no tag is given. If it
+     * does not change within the timeout, <code>304 Not Modified</code> is
+     * returned, and the agent is expected to watch again. An agent without a
+     * configuration gets <code>404 Not Found</code> at once.
+     *
+     * @param timeout the longest time to wait, in seconds
+     * @since 1.8
+     */
+    @GetMapping("/agent-configuration/{agentName}/watch")
+    public DeferredResult<ResponseEntity<AgentConfiguration>> watchAgentConfiguration(
+            @RequestHeader("User-Agent") String userAgent,
+            @PathVariable String agentName,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestParam(defaultValue = "30") int timeout) {
+        DeferredResult<ResponseEntity<AgentConfiguration>> result = new DeferredResult<>(
+                TimeUnit.SECONDS.toMillis(Math.max(1, Math.min(timeout, MAX_WATCH_TIMEOUT))));
+        if (ifNoneMatch == null || getConfigurations().get(agentName) == null) {
+            result.setResult(currentConfiguration(agentName));
+            return result;
+        }
+        Watch watch = new Watch(result, ifNoneMatch);
+        // adding and removing a watch are atomic, so that the set of an agent
+        // is removed once empty, but never while a watch is being added to it
+        watches.compute(agentName, (name, waiting) -> {
+            Set<Watch> set = waiting != null ? waiting : ConcurrentHashMap.newKeySet();
+            set.add(watch);
+            return set;
+        });
+        result.onCompletion(() -> watches.computeIfPresent(agentName, (name, waiting) -> {
+            waiting.remove(watch);
+            return waiting.isEmpty() ? null : waiting;
+        }));
+        result.onTimeout(() -> {
+            countRequest(agentName, HttpStatus.NOT_MODIFIED);
+            result.setResult(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(ifNoneMatch).build());
+        });
+        // changed before the watch was added, in which case it was not notified
+        notify(agentName, watch);
+        return result;
+    }
+
+    /**
+     * @return the number of agents with watches waiting
+     */
+    int watchedAgents() {
+        return watches.size();
+    }
+
+    /**
+     * Completes the watches of a configuration that has changed.
+     */
+    private void changed(String agentName) {
+        Set<Watch> waiting = watches.get(agentName);
+        if (waiting != null) {
+            for (Watch watch : waiting) {
+                notify(agentName, watch);
+            }
+        }
+    }
+
+    private void notify(String agentName, Watch watch) {
+        AgentConfiguration configuration = getConfigurations().get(agentName);
+        if (watch.result.isSetOrExpired()) {
+            return;
+        }
+        if (configuration == null || !matches(watch.ifNoneMatch, etag(configuration))) {
+            watch.result.setResult(currentConfiguration(agentName));
+        }
+    }
+
+    /**
+     * @return the configuration of the agent with its tag, or 404 if there is
+     *         none
+     */
+    private ResponseEntity<AgentConfiguration> currentConfiguration(String agentName) {
+        AgentConfiguration configuration = getConfigurations().get(agentName);
+        if (configuration == null) {
+            return ResponseEntity.notFound().build();
+        }
+        countRequest(agentName, HttpStatus.OK);
+        return ResponseEntity.ok().eTag(etag(configuration)).body(configuration);
+    }
+
+    /**
+     * @return a strong entity tag, the SHA-256 digest of the configuration as
+     *         JSON
+     */
+    static String etag(AgentConfiguration configuration) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(etagMapper.writeValueAsBytes(configuration));
+            return "\"" + HexFormat.of().formatHex(digest) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return whether the <code>If-None-Match</code> header lists the entity
+     *         tag, using the weak comparison as required for this header
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the requests for a configuration by their status, so that the
+     * share of polls answered with <code>304 Not Modified</code> can be
+     * followed.
+     */
+    private void countRequest(String agentName, HttpStatus status) {
+        Counter.builder(OTEL_AGENTS_CONFIGURATION_REQUESTS).tag(TAG_NAME, agentName)
+                .tag(TAG_STATUS, String.valueOf(status.value()))
+                .description("the number of requests for the agent configuration").baseUnit("requests")
+                .register(registry).increment();
     }
 
     @PutMapping("/agent-configuration/{agentName}")
@@ -109,6 +341,7 @@ public class AgentConfigurationController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("This configuration is read-only");
         }
         getConfigurations().put(agentName, configuration);
+        changed(agentName);
         return ResponseEntity.ok().build();
     }
 
@@ -125,6 +358,7 @@ public class AgentConfigurationController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("This configuration is read-only");
         }
         getConfigurations().remove(agentName);
+        changed(agentName);
         return ResponseEntity.ok().build();
     }
     
@@ -152,6 +386,7 @@ public class AgentConfigurationController {
             // Update the timestamp for the configuration
             patchedConfig.setTimestamp(Instant.now().toEpochMilli());
             getConfigurations().put(agentName, patchedConfig);
+            changed(agentName);
             return ResponseEntity.ok(patchedConfig);
         } catch (Exception e) {
             return ResponseEntity.badRequest().body("Failed to update configuration: " + e.getMessage());
@@ -172,4 +407,28 @@ public class AgentConfigurationController {
         this.configurations = configurations;
     }
 
+    /**
+     * @param registry the registry of the request counters, exposed to
+     *                 Prometheus
+     * @since 1.8
+     */
+    @Autowired
+    public void setMeterRegistry(PrometheusMeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    MeterRegistry getMeterRegistry() {
+        return registry;
+    }
+
+    /**
+     * @param metricsController receives the metrics posted along with a
+     *                          synchronization
+     * @since 1.8
+     */
+    @Autowired
+    public void setMetricsController(MetricsController metricsController) {
+        this.metricsController = metricsController;
+    }
+
 }
@@ -17,6 +17,10 @@
  */
 package no.domstol.otel.agent.service;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -27,6 +31,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 
 @RestController
@@ -40,10 +45,26 @@ public class MetricsController {
     private static final String OTEL_AGENTS_FILTER_EXCLUDED_SAMPLES = "otel_agents_filter_excluded_samples";
     private static final String OTEL_AGENTS_DROPPED_SAMPLES = "otel_agents_dropped_samples";
     private static final String OTEL_AGENTS_RECORDED_SAMPLES = "otel_agents_recorded_samples";
+    private static final String OTEL_AGENTS_DECISION_CACHE_HITS = "otel_agents_decision_cache_hits";
+    private static final String OTEL_AGENTS_DECISION_CACHE_MISSES = "otel_agents_decision_cache_misses";
+    private static final String OTEL_AGENTS_RULE_HITS = "otel_agents_rule_hits";
+    private static final String OTEL_AGENTS_DECISION_LATENCY = "otel_agents_decision_latency";
+    private static final String OTEL_AGENTS_DECISION_LATENCY_MAX = "otel_agents_decision_latency_max";
+    private static final String OTEL_AGENTS_TIMED_DECISIONS = "otel_agents_timed_decisions";
+    private static final String OTEL_AGENTS_EFFECTIVE_SAMPLE_RATIO = "otel_agents_effective_sample_ratio";
+    private static final String OTEL_AGENTS_CONFIGURATION_FAILURES = "otel_agents_configuration_failures";
     private static final String TAG_NAME = "otel.service.name";
+    private static final String TAG_RULE = "rule";
+    private static final String TAG_PERCENTILE = "percentile";
     private final PrometheusMeterRegistry registry;
     private boolean registered;
 
+    /** The values of the latency gauges, which must be strongly referenced */
+    private final Map<String, AtomicLong> latencies = new ConcurrentHashMap<>();
+
+    /** The metrics most recently reported by each service */
+    private final Map<String, SamplerMetrics> latest = new ConcurrentHashMap<>();
+
     public MetricsController(PrometheusMeterRegistry prometheusMeterRegistry) {
         this.registry = prometheusMeterRegistry;
     }
@@ -70,6 +91,73 @@ public class MetricsController {
         Counter.builder(OTEL_AGENTS_PROCESSED_SAMPLES).tag(TAG_NAME, serviceName)
                 .description("the number of samples processed")
                 .baseUnit("samples").register(registry);
+        Counter.builder(OTEL_AGENTS_DECISION_CACHE_HITS).tag(TAG_NAME, serviceName)
+                .description("the number of filtering decisions found in the decision cache")
+                .baseUnit("samples").register(registry);
+        Counter.builder(OTEL_AGENTS_DECISION_CACHE_MISSES).tag(TAG_NAME, serviceName)
+                .description("the number of filtering decisions not found in the decision cache")
+                .baseUnit("samples").register(registry);
+    }
+
+    /**
+     * Exposes the latest latency percentiles reported by the agent as gauges,
+     * as these are already computed by the agent and cannot be aggregated.
+     */
+    private void updateLatency(String serviceName, SamplerMetrics.Latency latency) {
+        latencyGauge(OTEL_AGENTS_DECISION_LATENCY, serviceName, "50").set(latency.p50);
+        latencyGauge(OTEL_AGENTS_DECISION_LATENCY, serviceName, "99").set(latency.p99);
+        latencyGauge(OTEL_AGENTS_DECISION_LATENCY, serviceName, "99.9").set(latency.p999);
+        latencyGauge(OTEL_AGENTS_DECISION_LATENCY_MAX, serviceName, null).set(latency.max);
+        Counter.builder(OTEL_AGENTS_TIMED_DECISIONS).tag(TAG_NAME, serviceName)
+                .description("the number of sampling decisions timed").baseUnit("samples")
+                .register(registry).increment(latency.count);
+    }
+
+    private AtomicLong latencyGauge(String name, String serviceName, String percentile) {
+        return latencies.computeIfAbsent(name + "|" + serviceName + "|" + percentile, key -> {
+            AtomicLong value = new AtomicLong();
+            Gauge.Builder<AtomicLong> gauge = Gauge.builder(name, value, AtomicLong::doubleValue)
+                    .tag(TAG_NAME, serviceName)
+                    .description("the time taken by the sampler to decide, as reported by the agent")
+                    .baseUnit("nanoseconds");
+            if (percentile != null) {
+                gauge.tag(TAG_PERCENTILE, percentile);
+            }
+            gauge.register(registry);
+            return value;
+        });
+    }
+
+    /**
+     * Exposes the ratio used by the adaptive sampler of the service, or NaN if
+     * it is not used, as reported most recently.
+     */
+    private void registerRatioGauge(String serviceName) {
+        Gauge.builder(OTEL_AGENTS_EFFECTIVE_SAMPLE_RATIO, latest, metrics -> {
+            SamplerMetrics reported = metrics.get(serviceName);
+            return reported == null || reported.effective_sample_ratio == null ? Double.NaN
+                    : reported.effective_sample_ratio;
+        }).tag(TAG_NAME, serviceName).description("the ratio set by the adaptive sampler")
+                .register(registry);
+    }
+
+    /**
+     * Counts the failures of the agent to reach the service, as reported once
+     * it reaches the service again, each failure reported once.
+     */
+    private void countFailures(String serviceName, Integer failures) {
+        Counter.builder(OTEL_AGENTS_CONFIGURATION_FAILURES).tag(TAG_NAME, serviceName)
+                .description("the number of failed attempts by the agent to reach the service")
+                .register(registry).increment(failures);
+    }
+
+    @GetMapping(path = "{serviceName}", produces = "application/json")
+    public ResponseEntity<SamplerMetrics> getLatestMetrics(@PathVariable String serviceName) {
+        SamplerMetrics metrics = latest.get(serviceName);
+        if (metrics == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(metrics);
     }
 
     @GetMapping(produces = MediaType.TEXT_PLAIN_VALUE)
@@ -98,6 +186,25 @@ public class MetricsController {
                 .increment(metrics.sampler_included_samples.doubleValue());
         registry.counter(OTEL_AGENTS_PROCESSED_SAMPLES, TAG_NAME, serviceName)
                 .increment(metrics.processed_samples.doubleValue());
+        registry.counter(OTEL_AGENTS_DECISION_CACHE_HITS, TAG_NAME, serviceName)
+                .increment(metrics.decision_cache_hits.doubleValue());
+        registry.counter(OTEL_AGENTS_DECISION_CACHE_MISSES, TAG_NAME, serviceName)
+                .increment(metrics.decision_cache_misses.doubleValue());
+        if (metrics.rule_hits != null) {
+            metrics.rule_hits.forEach((rule, hits) -> Counter.builder(OTEL_AGENTS_RULE_HITS)
+                    .tag(TAG_NAME, serviceName).tag(TAG_RULE, rule)
+                    .description("the number of samples decided by a filtering rule").baseUnit("samples")
+                    .register(registry).increment(hits));
+        }
+        if (metrics.decision_latency != null) {
+            updateLatency(serviceName, metrics.decision_latency);
+        }
+        if (metrics.consecutive_failures != null) {
+            countFailures(serviceName, metrics.consecutive_failures);
+        }
+        if (latest.put(serviceName, metrics) == null) {
+            registerRatioGauge(serviceName);
+        }
         return ResponseEntity.ok("Success");
     }
 
@@ -17,6 +17,8 @@
  */
 package no.domstol.otel.agent.service;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -57,4 +59,54 @@ public class SamplerMetrics {
     @JsonProperty("recorded_samples")
     AtomicLong recorded_samples = new AtomicLong();
 
+    /** The number of filtering decisions found in the decision cache */
+    @JsonProperty("decision_cache_hits")
+    AtomicLong decision_cache_hits = new AtomicLong();
+
+    /** The number of filtering decisions not found in the decision cache */
+    @JsonProperty("decision_cache_misses")
+    AtomicLong decision_cache_misses = new AtomicLong();
+
+    /** The number of samples decided by each filtering rule, by rule id */
+    @JsonProperty("rule_hits")
+    Map<String, Long> rule_hits = new HashMap<>();
+
+    /** The time taken by the sampling decisions timed, if timing is enabled */
+    @JsonProperty("decision_latency")
+    Latency decision_latency;
+
+    /** The ratio currently used by the adaptive sampler, if in use */
+    @JsonProperty("effective_sample_ratio")
+    Double effective_sample_ratio;
+
+    /** The state of the circuit to the configuration service, if reported */
+    @JsonProperty("circuit_state")
+    String circuit_state;
+
+    /** The number of failures to reach the service since the previous report, if reported */
+    @JsonProperty("consecutive_failures")
+    Integer consecutive_failures;
+
+    /**
+     * A summary of the time taken by sampling decisions, in nanoseconds.
+     */
+    static class Latency {
+
+        /** The number of decisions timed */
+        @JsonProperty("count")
+        long count;
+
+        @JsonProperty("p50")
+        long p50;
+
+        @JsonProperty("p99")
+        long p99;
+
+        @JsonProperty("p999")
+        long p999;
+
+        @JsonProperty("max")
+        long max;
+    }
+
 }
@@ -18,10 +18,16 @@
 package no.domstol.otel.agent.service;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.concurrent.ConcurrentHashMap;
@@ -35,8 +41,11 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
 import tools.jackson.databind.ObjectMapper;
 
 @SpringBootTest
@@ -147,6 +156,145 @@ public class AgentConfigurationControllerTest {
         assert (configurations.get("testAgent").getSampleRatio() == 0.5);
     }
 
+    @Test
+    public void testConditionalGetAgentConfiguration() throws Exception {
+        AgentConfiguration agentConfiguration = new AgentConfiguration();
+        agentConfiguration.setServiceName("testAgent");
+        configurations.put(agentConfiguration.getServiceName(), agentConfiguration);
+
+        String etag = mockMvc.perform(get("/agent-configuration/testAgent")
+                .header("User-Agent", USER_AGENT_HEADER))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        assertEquals(AgentConfigurationController.etag(agentConfiguration), etag);
+
+        // unchanged, so nothing is returned
+        mockMvc.perform(get("/agent-configuration/testAgent")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag))
+                .andExpect(content().string(""));
+
+        // changed, so the new configuration and tag are returned
+        AgentConfiguration changed = new AgentConfiguration();
+        changed.setServiceName("testAgent");
+        changed.setSampleRatio(0.5);
+        configurations.put(changed.getServiceName(), changed);
+        String changedEtag = mockMvc.perform(get("/agent-configuration/testAgent")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sampleRatio", is(0.5)))
+                .andReturn().getResponse().getHeader("ETag");
+        assertNotEquals(etag, changedEtag);
+
+        assertEquals(2, agentConfigurationController.getMeterRegistry().get("otel_agents_configuration_requests")
+                .tag("status", "200").counter().count());
+        assertEquals(1, agentConfigurationController.getMeterRegistry().get("otel_agents_configuration_requests")
+                .tag("status", "304").counter().count());
+    }
+
+    @Test
+    public void testWatchAgentConfiguration() throws Exception {
+        AgentConfiguration agentConfiguration = new AgentConfiguration();
+        agentConfiguration.setServiceName("testAgent");
+        configurations.put(agentConfiguration.getServiceName(), agentConfiguration);
+        String etag = AgentConfigurationController.etag(agentConfiguration);
+
+        // without a tag the configuration is returned at once
+        MvcResult result = mockMvc.perform(get("/agent-configuration/testAgent/watch")
+                .header("User-Agent", USER_AGENT_HEADER))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", etag));
+
+        // with the current tag the request waits until the configuration changes
+        result = mockMvc.perform(get("/agent-configuration/testAgent/watch")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", etag))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        AgentConfiguration changed = new AgentConfiguration();
+        changed.setServiceName("testAgent");
+        changed.setSampleRatio(0.25);
+        mockMvc.perform(put("/agent-configuration/testAgent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("User-Agent", USER_AGENT_HEADER)
+                .content(asJsonString(changed)))
+                .andExpect(status().isOk());
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sampleRatio", is(0.25)))
+                .andExpect(header().string("ETag", AgentConfigurationController.etag(configurations.get("testAgent"))));
+
+        // deleted while waiting
+        result = mockMvc.perform(get("/agent-configuration/testAgent/watch")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", AgentConfigurationController.etag(configurations.get("testAgent"))))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        agentConfigurationController.deleteAgentConfiguration(USER_AGENT_HEADER, "testAgent");
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isNotFound());
+        // the completed watches are no longer kept
+        assertEquals(0, agentConfigurationController.watchedAgents());
+
+        // an agent without a configuration is not kept waiting
+        result = mockMvc.perform(get("/agent-configuration/unknownAgent/watch")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", etag))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isNotFound());
+        assertEquals(0, agentConfigurationController.watchedAgents());
+    }
+
+    @Test
+    public void testSyncAgentConfiguration() throws Exception {
+        MetricsController metricsController = new MetricsController(
+                new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        agentConfigurationController.setMetricsController(metricsController);
+        String link = "</agent-configuration/testAgent/sync>; rel=\"sync\"";
+
+        // not registered yet, but supported
+        mockMvc.perform(post("/agent-configuration/testAgent/sync")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("User-Agent", USER_AGENT_HEADER)
+                .content("{\"processed_samples\":5}"))
+                .andExpect(status().isNotFound())
+                .andExpect(header().string("Link", link));
+        assertEquals(5, metricsController.getLatestMetrics("testAgent").getBody().processed_samples.get());
+
+        AgentConfiguration agentConfiguration = new AgentConfiguration();
+        agentConfiguration.setServiceName("testAgent");
+        configurations.put(agentConfiguration.getServiceName(), agentConfiguration);
+        String etag = mockMvc.perform(get("/agent-configuration/testAgent")
+                .header("User-Agent", USER_AGENT_HEADER))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Link", link))
+                .andReturn().getResponse().getHeader("ETag");
+
+        // the metrics are recorded, and the configuration returned only if changed
+        mockMvc.perform(post("/agent-configuration/testAgent/sync")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", etag)
+                .content("{\"processed_samples\":7}"))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag))
+                .andExpect(header().string("Link", link));
+        assertEquals(7, metricsController.getLatestMetrics("testAgent").getBody().processed_samples.get());
+        mockMvc.perform(post("/agent-configuration/testAgent/sync")
+                .header("User-Agent", USER_AGENT_HEADER)
+                .header("If-None-Match", "\"0\""))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.serviceName", is("testAgent")));
+    }
+
     @Test
     public void testGetAllAgentConfigurations() throws Exception {
         AgentConfiguration agentConfiguration1 = new AgentConfiguration();
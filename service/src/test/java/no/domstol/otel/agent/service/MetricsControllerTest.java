@@ -0,0 +1,89 @@
+/*
+ * Copyright Domstoladministrasjonen, Norway
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package no.domstol.otel.agent.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import tools.jackson.databind.ObjectMapper;
+
+public class MetricsControllerTest {
+
+    @Test
+    public void testDecisionLatency() throws Exception {
+        MetricsController controller = new MetricsController(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        SamplerMetrics metrics = new ObjectMapper().readValue("{\"processed_samples\":3,\"recorded_samples\":3,"
+                + "\"decision_latency\":{\"count\":3,\"p50\":250,\"p99\":900,\"p999\":900,\"max\":912}}",
+                SamplerMetrics.class);
+        controller.handleRequest("testAgent", metrics);
+        controller.handleRequest("testAgent", metrics);
+        String scrape = controller.getMetrics();
+        assertTrue(scrape.contains(
+                "otel_agents_decision_latency_nanoseconds{otel_service_name=\"testAgent\",percentile=\"99\"} 900.0"),
+                scrape);
+        assertTrue(scrape.contains("otel_agents_decision_latency_max_nanoseconds{otel_service_name=\"testAgent\"} 912.0"),
+                scrape);
+        assertTrue(scrape.contains("otel_agents_timed_decisions_samples_total{otel_service_name=\"testAgent\"} 6.0"),
+                scrape);
+    }
+
+    @Test
+    public void testDecisionCache() throws Exception {
+        MetricsController controller = new MetricsController(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        SamplerMetrics metrics = new ObjectMapper().readValue("{\"processed_samples\":5,\"recorded_samples\":5,"
+                + "\"decision_cache_hits\":4,\"decision_cache_misses\":1}", SamplerMetrics.class);
+        controller.handleRequest("testAgent", metrics);
+        controller.handleRequest("testAgent", metrics);
+        String scrape = controller.getMetrics();
+        assertTrue(scrape.contains(
+                "otel_agents_decision_cache_hits_samples_total{otel_service_name=\"testAgent\"} 8.0"), scrape);
+        assertTrue(scrape.contains(
+                "otel_agents_decision_cache_misses_samples_total{otel_service_name=\"testAgent\"} 2.0"), scrape);
+    }
+
+    @Test
+    public void testRuleHits() throws Exception {
+        MetricsController controller = new MetricsController(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        controller.handleRequest("testAgent", new ObjectMapper().readValue(
+                "{\"rule_hits\":{\"exclude:3f2a9c1e\":4,\"include:0b7d51aa\":1}}", SamplerMetrics.class));
+        controller.handleRequest("testAgent", new ObjectMapper().readValue(
+                "{\"rule_hits\":{\"exclude:3f2a9c1e\":2,\"include:0b7d51aa\":3}}", SamplerMetrics.class));
+        String scrape = controller.getMetrics();
+        assertTrue(scrape.contains("otel_agents_rule_hits_samples_total{otel_service_name=\"testAgent\","
+                + "rule=\"exclude:3f2a9c1e\"} 6.0"), scrape);
+        assertTrue(scrape.contains("otel_agents_rule_hits_samples_total{otel_service_name=\"testAgent\","
+                + "rule=\"include:0b7d51aa\"} 4.0"), scrape);
+    }
+
+    @Test
+    public void testEffectiveSampleRatio() throws Exception {
+        MetricsController controller = new MetricsController(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        assertEquals(HttpStatus.NOT_FOUND, controller.getLatestMetrics("testAgent").getStatusCode());
+        controller.handleRequest("testAgent",
+                new ObjectMapper().readValue("{\"effective_sample_ratio\":0.25}", SamplerMetrics.class));
+        assertEquals(0.25, controller.getLatestMetrics("testAgent").getBody().effective_sample_ratio);
+        assertTrue(controller.getMetrics()
+                .contains("otel_agents_effective_sample_ratio{otel_service_name=\"testAgent\"} 0.25"));
+    }
+
+    @Test
+    public void testConfigurationFailures() throws Exception {
+        MetricsController controller = new MetricsController(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        controller.handleRequest("testAgent", new ObjectMapper()
+                .readValue("{\"circuit_state\":\"half_open\",\"consecutive_failures\":4}", SamplerMetrics.class));
+        controller.handleRequest("testAgent", new ObjectMapper()
+                .readValue("{\"circuit_state\":\"closed\",\"consecutive_failures\":1}", SamplerMetrics.class));
+        assertEquals("closed", controller.getLatestMetrics("testAgent").getBody().circuit_state);
+        String scrape = controller.getMetrics();
+        assertTrue(scrape.contains("otel_agents_configuration_failures_total{otel_service_name=\"testAgent\"} 5.0"),
+                scrape);
+    }
+
+}